@@ -0,0 +1,27 @@
+package org.openforis.rmb;
+
+import org.openforis.rmb.MessagePoller.TakeOutcome;
+
+// Determines the delay until the repository watcher polls for messages again, based on the outcome of the takes
+// since the previous poll. The delay is doubled, up to the max, while nothing is taken, and reset to the min as soon
+// as a full batch is taken. Only used by the repository watcher thread.
+final class AdaptivePollingSchedule {
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private long delayMillis;
+
+    AdaptivePollingSchedule(long minDelayMillis, long maxDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.delayMillis = minDelayMillis;
+    }
+
+    // An unknown outcome, when nothing was taken for lack of free workers, keeps the delay
+    long nextDelayMillis(TakeOutcome outcome) {
+        if (outcome == TakeOutcome.FULL_BATCH_TAKEN)
+            delayMillis = minDelayMillis;
+        else if (outcome == TakeOutcome.NOTHING_TAKEN)
+            delayMillis = delayMillis > maxDelayMillis / 2 ? maxDelayMillis : delayMillis * 2;
+        return delayMillis;
+    }
+}
@@ -0,0 +1,69 @@
+package org.openforis.rmb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Bytes kept in chunks of bounded size, so a large message never needs a single large array,
+// which G1 would allocate as a humongous object. Chunks grow from small, so small messages stay small.
+final class ChunkedBytes {
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private final List<Integer> chunkLengths = new ArrayList<Integer>();
+
+    private ChunkedBytes() {
+    }
+
+    static ChunkedBytes read(InputStream in) throws IOException {
+        ChunkedBytes bytes = new ChunkedBytes();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (true) {
+            byte[] chunk = new byte[chunkSize];
+            int length = readFully(in, chunk);
+            if (length > 0) {
+                bytes.chunks.add(chunk);
+                bytes.chunkLengths.add(length);
+            }
+            if (length < chunk.length)
+                return bytes;
+            chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int read = in.read(chunk, length, chunk.length - length);
+            if (read == -1)
+                break;
+            length += read;
+        }
+        return length;
+    }
+
+    InputStream toInputStream() {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        for (int i = 0; i < chunks.size(); i++)
+            streams.add(new ByteArrayInputStream(chunks.get(i), 0, chunkLengths.get(i)));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    byte[] toByteArray() {
+        int size = 0;
+        for (int length : chunkLengths)
+            size += length;
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            System.arraycopy(chunks.get(i), 0, bytes, offset, chunkLengths.get(i));
+            offset += chunkLengths.get(i);
+        }
+        return bytes;
+    }
+}
@@ -4,13 +4,15 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 class ExecutorTerminator {
+    // All executors are shut down before waiting for any of them, so they terminate in parallel
     static void shutdownAndAwaitTermination(ExecutorService... executors) {
         for (ExecutorService executor : executors)
-            shutdownAndAwaitTermination(executor);
+            executor.shutdown();
+        for (ExecutorService executor : executors)
+            awaitTermination(executor);
     }
 
-    private static void shutdownAndAwaitTermination(ExecutorService executor) {
-        executor.shutdown();
+    private static void awaitTermination(ExecutorService executor) {
         try {
             if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
                 executor.shutdownNow();
@@ -44,6 +44,7 @@ public final class MessageConsumer<M> {
     final int timeout;
     final TimeUnit timeUnit;
     final int messagesHandledInParallel;
+    final int prefetchCount;
     final int maxRetries;
     final ThrottlingStrategy throttlingStrategy;
     private final MessageHandler<M> handler;
@@ -54,6 +55,7 @@ public final class MessageConsumer<M> {
         timeout = builder.time;
         timeUnit = builder.timeUnit;
         messagesHandledInParallel = builder.messagesHandledInParallel;
+        prefetchCount = builder.prefetchCount;
         handler = builder.handler;
         keepAliveHandler = builder.keepAliveHandler;
         maxRetries = builder.maxRetries;
@@ -137,6 +139,15 @@ public final class MessageConsumer<M> {
         return messagesHandledInParallel;
     }
 
+    /**
+     * The number of messages taken ahead, beyond the ones being handled in parallel.
+     *
+     * @return the number of messages taken ahead
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
     /**
      * The maximum number of times the handler should retry a message after failing to handle it.
      * If the handling never should be retried it's 0, if it should be retried indefinitely until it succeeds it's -1.
@@ -165,6 +176,7 @@ public final class MessageConsumer<M> {
      * <ul>
      * <li>{@code timeout(1, MINUTES);}
      * <li>{@code messagesHandledInParallel(1);}
+     * <li>No prefetching of messages.
      * <li>{@code retryUntilSuccess(new ThrottlingStrategy.ExponentialBackoff(1, MINUTES));}
      * </ul>
      * <p>
@@ -182,6 +194,7 @@ public final class MessageConsumer<M> {
         private TimeUnit timeUnit;
         private ThrottlingStrategy throttlingStrategy;
         private int messagesHandledInParallel;
+        private int prefetchCount;
         private int maxRetries;
 
         private Builder(String consumerId, MessageHandler<M> handler, KeepAliveMessageHandler<M> keepAliveHandler) {
@@ -222,6 +235,36 @@ public final class MessageConsumer<M> {
             return this;
         }
 
+        /**
+         * Specify the number of messages to take ahead, beyond the ones being handled in parallel.
+         * <p>
+         * Without prefetching, a message is only taken once a handler is done with the previous one, so every
+         * message costs a repository round-trip before it's handled. Prefetched messages are handed to the
+         * handlers as they're done instead. This lets fast handlers keep busy.
+         * </p>
+         * <p>
+         * Prefetched messages are in the processing state in the repository, and their timeout starts when taken.
+         * While waiting to be handled, their timeout is reset whenever more than half of it has passed, just like a
+         * long-running handler sending keep-alive. When the message broker is stopped, messages still prefetched
+         * are released, to be taken again.
+         * </p>
+         * <p>
+         * Prefetching loosens the limit on messages handled in parallel across a cluster. Messages are taken from the
+         * first {@link #messagesHandledInParallel(int)} plus prefetchCount pending or processing messages of the
+         * consumer, and prefetched messages don't hold back other nodes. Nodes can therefore handle up to
+         * messagesHandledInParallel plus prefetchCount messages of the consumer at the same time. A single node
+         * still handles no more than messagesHandledInParallel at a time.
+         * </p>
+         *
+         * @param prefetchCount the number of messages to take ahead
+         * @return the builder, so methods can be chained
+         */
+        public Builder<M> prefetch(int prefetchCount) {
+            Is.greaterThenZero(prefetchCount, "prefetchCount must be greater then zero");
+            this.prefetchCount = prefetchCount;
+            return this;
+        }
+
         /**
          * Specify that the consumer should retry a message after failing to handle it.
          *
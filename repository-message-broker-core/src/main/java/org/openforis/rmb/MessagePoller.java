@@ -3,20 +3,34 @@ package org.openforis.rmb;
 import org.openforis.rmb.monitor.MessageUpdateConflictEvent;
 import org.openforis.rmb.monitor.PollingForMessagesEvent;
 import org.openforis.rmb.monitor.TakingMessagesFailedEvent;
+import org.openforis.rmb.spi.BatchUpdatingMessageRepository;
 import org.openforis.rmb.spi.Clock;
 import org.openforis.rmb.spi.MessageProcessingUpdate;
 import org.openforis.rmb.spi.MessageRepository;
 import org.openforis.rmb.spi.MessageSerializer;
+import org.openforis.rmb.spi.StreamingMessageSerializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.openforis.rmb.NamedThreadFactory.multipleThreadFactory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.openforis.rmb.NamedThreadFactory.singleThreadFactory;
 import static org.openforis.rmb.Throttler.DefaultThrottler;
 
@@ -24,99 +38,403 @@ final class MessagePoller {
     private final MessageRepository repository;
     private final MessageSerializer messageSerializer;
     private final Monitors monitors;
-    private final ExecutorService messageTaker;
-    private final ExecutorService workerExecutor;
+    private final WorkerExecutorFactory workerExecutorFactory;
+    private final int workerThreadBudget;
+    private final ScheduledExecutorService messageTaker;
     private final Throttler throttler = new DefaultThrottler(new Clock.SystemClock());
 
-    private ConcurrentHashMap<MessageConsumer<?>, AtomicInteger> currentlyProcessingMessageCountByConsumer =
-            new ConcurrentHashMap<MessageConsumer<?>, AtomicInteger>();
+    private final Clock clock = new Clock.SystemClock();
 
-    MessagePoller(MessageRepository repository, MessageSerializer messageSerializer, Monitors monitors) {
+    private final ConcurrentHashMap<MessageConsumer<?>, ConsumerWorkers> workersByConsumer =
+            new ConcurrentHashMap<MessageConsumer<?>, ConsumerWorkers>();
+    private final AtomicInteger takenMessageCount = new AtomicInteger(); // Handled or prefetched, across consumers
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicBoolean pollPending = new AtomicBoolean();
+    private final AtomicInteger coalescedPollCount = new AtomicInteger();
+    private final AtomicReference<TakeOutcome> takeOutcome = new AtomicReference<TakeOutcome>();
+    private int budgetRotation; // Only used by the message taker thread
+
+    MessagePoller(MessageRepository repository, MessageSerializer messageSerializer, Monitors monitors,
+                  WorkerExecutorFactory workerExecutorFactory, int workerThreadBudget) {
         this.repository = repository;
         this.messageSerializer = messageSerializer;
         this.monitors = monitors;
-        messageTaker = Executors.newSingleThreadExecutor(singleThreadFactory("rmb.MessageTaker"));
-        workerExecutor = Executors.newCachedThreadPool(multipleThreadFactory("rmb.WorkerExecutor"));
+        this.workerExecutorFactory = workerExecutorFactory;
+        this.workerThreadBudget = workerThreadBudget;
+        messageTaker = Executors.newSingleThreadScheduledExecutor(singleThreadFactory("rmb.MessageTaker"));
     }
 
     void registerConsumers(Collection<MessageConsumer<?>> consumers) {
         for (MessageConsumer<?> consumer : consumers) {
-            currentlyProcessingMessageCountByConsumer.put(consumer, new AtomicInteger());
+            ConsumerWorkers workers = new ConsumerWorkers(consumer, createWorkerExecutor(consumer));
+            workersByConsumer.put(consumer, workers);
+            if (consumer.prefetchCount > 0)
+                scheduleLeaseRenewal(workers);
+        }
+    }
+
+    // Checked every quarter of the timeout, so leases are renewed before three quarters of the timeout have passed.
+    // Runs on the message taker thread, so it never runs concurrently with a take.
+    private void scheduleLeaseRenewal(final ConsumerWorkers workers) {
+        long periodMillis = Math.max(1, timeoutMillis(workers.consumer) / 4);
+        messageTaker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                renewPrefetchedLeases(workers);
+            }
+        }, periodMillis, periodMillis, MILLISECONDS);
+    }
+
+    // Prefetched messages are out of reach of the workers while renewed, so they're never handled with a stale lease.
+    // A message that timed out and was taken by someone else conflicts, and is dropped.
+    private void renewPrefetchedLeases(ConsumerWorkers workers) {
+        long oldTakenTime = clock.millis() - timeoutMillis(workers.consumer) / 2;
+        List<TakenMessage> takenMessages = workers.removePrefetchedTakenBefore(oldTakenTime);
+        List<MessageProcessingUpdate> updates = new ArrayList<MessageProcessingUpdate>();
+        for (TakenMessage takenMessage : takenMessages)
+            updates.add(takenMessage.update.processing(clock));
+        List<Boolean> results;
+        try {
+            results = updates.isEmpty() ? Collections.<Boolean>emptyList() : updateAll(updates);
+        } catch (RuntimeException e) {
+            workers.prefetchedAgain(takenMessages); // Renewed before they're handled, or left to time out
+            return;
+        }
+        List<TakenMessage> renewed = new ArrayList<TakenMessage>();
+        for (int i = 0; i < takenMessages.size(); i++) {
+            TakenMessage takenMessage = takenMessages.get(i);
+            MessageProcessingUpdate<?> update = updates.get(i);
+            if (results.get(i))
+                renewed.add(new TakenMessage(update, takenMessage.serializedMessage, clock.millis()));
+            else
+                dropConflicting(update, takenMessage);
         }
+        workers.prefetchedAgain(renewed);
     }
 
+    // Made in a single batch when possible. When the worker updates are batched, the renewals are made right away,
+    // instead of waiting on the message taker thread for other updates to join each of them.
+    private List<Boolean> updateAll(List<MessageProcessingUpdate> updates) {
+        if (repository instanceof BatchUpdatingMessageRepository)
+            return ((BatchUpdatingMessageRepository) repository).updateAll(updates);
+        List<Boolean> results = new ArrayList<Boolean>();
+        for (MessageProcessingUpdate update : updates)
+            results.add(repository.update(update));
+        return results;
+    }
+
+    // Frees up room for another message, taken by the next poll
+    private void dropConflicting(MessageProcessingUpdate<?> update, TakenMessage takenMessage) {
+        takenMessageCount.decrementAndGet();
+        try {
+            monitors.onEvent(new MessageUpdateConflictEvent(update, deserialize(takenMessage.serializedMessage)));
+        } catch (RuntimeException ignore) {
+            // Dropped all the same, even if the message fails to deserialize
+        }
+        poll();
+    }
+
+    private long timeoutMillis(MessageConsumer<?> consumer) {
+        return consumer.timeUnit.toMillis(consumer.timeout);
+    }
+
+    private ExecutorService createWorkerExecutor(MessageConsumer<?> consumer) {
+        int maxThreads = Math.min(consumer.messagesHandledInParallel, workerThreadBudget);
+        return workerExecutorFactory.create(consumer.id, maxThreads);
+    }
+
+    // At most one poll is pending at a time, and requests made while it's pending are folded into it.
+    // A request made while taking messages makes a new poll pending, since the take might have missed messages.
     void poll() {
+        if (!pollPending.compareAndSet(false, true)) {
+            coalescedPollCount.incrementAndGet();
+            return;
+        }
         messageTaker.execute(new Runnable() {
             public void run() {
-                takeMessages();
+                pollPending.set(false);
+                takeMessages(coalescedPollCount.getAndSet(0));
             }
         });
     }
 
-    private void takeMessages() {
+    private void takeMessages(int coalescedPollCount) {
         final Map<MessageConsumer<?>, Integer> maxCountByConsumer = determineMaxCountByConsumer();
         if (maxCountByConsumer.isEmpty())
             return;
+        final Map<MessageConsumer<?>, Integer> takenCountByConsumer = new HashMap<MessageConsumer<?>, Integer>();
         try {
-            monitors.onEvent(new PollingForMessagesEvent(maxCountByConsumer));
+            monitors.onEvent(new PollingForMessagesEvent(maxCountByConsumer, coalescedPollCount));
             repository.take(maxCountByConsumer, new MessageRepository.MessageTakenCallback() {
                 public void taken(MessageProcessingUpdate update, Object serializedMessage) {
-                    consume(update, serializedMessage);
+                    Integer takenCount = takenCountByConsumer.get(update.getConsumer());
+                    takenCountByConsumer.put(update.getConsumer(), takenCount == null ? 1 : takenCount + 1);
+                    if (serializedMessage instanceof InputStream)
+                        consumeStreamed(maxCountByConsumer, update, (InputStream) serializedMessage);
+                    else
+                        consume(new TakenMessage(update, serializedMessage, clock.millis()));
                 }
             });
+            recordTakeOutcome(takeOutcome(maxCountByConsumer, takenCountByConsumer));
         } catch (Exception e) {
             monitors.onEvent(new TakingMessagesFailedEvent(maxCountByConsumer, e));
         }
     }
 
-    private <M> void consume(final MessageProcessingUpdate<M> update, final Object serializedMessage) {
-        incrementCurrentlyProcessingMessageCount(update.getConsumer());
+    private TakeOutcome takeOutcome(Map<MessageConsumer<?>, Integer> maxCountByConsumer,
+                                    Map<MessageConsumer<?>, Integer> takenCountByConsumer) {
+        if (takenCountByConsumer.isEmpty())
+            return TakeOutcome.NOTHING_TAKEN;
+        for (Map.Entry<MessageConsumer<?>, Integer> entry : takenCountByConsumer.entrySet())
+            if (entry.getValue() >= maxCountByConsumer.get(entry.getKey()))
+                return TakeOutcome.FULL_BATCH_TAKEN;
+        return TakeOutcome.MESSAGES_TAKEN;
+    }
 
-        workerExecutor.execute(new Runnable() {
-            @SuppressWarnings("unchecked")
-            public void run() {
-                M message = (M) messageSerializer.deserialize(serializedMessage);
-                try {
-                    new Worker<M>(repository, throttler, monitors, update, message).consume();
-                } catch (InterruptedException ignore) {
-                    Thread.currentThread().interrupt();
-                } catch (Worker.MessageUpdateConflict e) {
-                    monitors.onEvent(new MessageUpdateConflictEvent(update, message));
-                } finally {
-                    decrementCurrentlyProcessingMessageCount(update.getConsumer());
-                    poll();
-                }
-            }
-        });
+    // Keeps the most significant outcome, until collected
+    private void recordTakeOutcome(TakeOutcome outcome) {
+        while (true) {
+            TakeOutcome previous = takeOutcome.get();
+            if (previous != null && previous.compareTo(outcome) >= 0)
+                return;
+            if (takeOutcome.compareAndSet(previous, outcome))
+                return;
+        }
+    }
+
+    // The most significant outcome of the takes made since the previous invocation.
+    // Null if nothing was taken for lack of free workers.
+    TakeOutcome collectTakeOutcome() {
+        return takeOutcome.getAndSet(null);
+    }
+
+    // The stream is only valid during the callback, so it's copied right away, on the taking thread, into chunks of
+    // bounded size. Deserializing is left to the workers, so the taking thread only spends time on I/O while the
+    // connection is held. A message failing to be read is left to time out, without preventing the other messages
+    // from being taken.
+    private void consumeStreamed(Map<MessageConsumer<?>, Integer> maxCountByConsumer,
+                                 MessageProcessingUpdate<?> update, InputStream serializedMessage) {
+        ChunkedBytes bytes;
+        try {
+            bytes = ChunkedBytes.read(serializedMessage);
+        } catch (IOException e) {
+            monitors.onEvent(new TakingMessagesFailedEvent(maxCountByConsumer,
+                    new MessageSerializer.DeserilizationFailed("Failed to read serialized message", e)));
+            return;
+        }
+        consume(new TakenMessage(update, bytes, clock.millis()));
     }
 
-    private void decrementCurrentlyProcessingMessageCount(MessageConsumer<?> consumer) {
-        AtomicInteger messageCount = currentlyProcessingMessageCount(consumer);
-        messageCount.decrementAndGet();
+    private Object deserialize(Object serializedMessage) {
+        if (!(serializedMessage instanceof ChunkedBytes))
+            return messageSerializer.deserialize(serializedMessage);
+        ChunkedBytes bytes = (ChunkedBytes) serializedMessage;
+        if (messageSerializer instanceof StreamingMessageSerializer)
+            return ((StreamingMessageSerializer) messageSerializer).deserialize(bytes.toInputStream());
+        return messageSerializer.deserialize(bytes.toByteArray());
     }
 
-    private void incrementCurrentlyProcessingMessageCount(MessageConsumer<?> consumer) {
-        AtomicInteger messageCount = currentlyProcessingMessageCount(consumer);
-        messageCount.incrementAndGet();
+    private void consume(TakenMessage takenMessage) {
+        takenMessageCount.incrementAndGet();
+        workers(takenMessage.update.getConsumer()).taken(takenMessage);
     }
 
-    private AtomicInteger currentlyProcessingMessageCount(MessageConsumer<?> consumer) {
-        return currentlyProcessingMessageCountByConsumer.get(consumer);
+    @SuppressWarnings("unchecked")
+    private <M> void work(TakenMessage takenMessage) {
+        MessageProcessingUpdate<M> update = (MessageProcessingUpdate<M>) takenMessage.update;
+        M message = null;
+        try {
+            message = (M) deserialize(takenMessage.serializedMessage);
+            update = renewLeaseIfOld(update, takenMessage.takenTime);
+            new Worker<M>(repository, throttler, monitors, update, message).consume();
+        } catch (InterruptedException ignore) {
+            Thread.currentThread().interrupt();
+        } catch (Worker.MessageUpdateConflict e) {
+            monitors.onEvent(new MessageUpdateConflictEvent(update, message));
+        } finally {
+            takenMessageCount.decrementAndGet();
+            workers(update.getConsumer()).done();
+            poll();
+        }
+    }
+
+    // A prefetched message might have waited long enough for its lease to be close to timing out.
+    // If it already timed out and was taken by someone else, the renewal conflicts, and the message is skipped.
+    private <M> MessageProcessingUpdate<M> renewLeaseIfOld(MessageProcessingUpdate<M> update, long takenTime) {
+        if (clock.millis() - takenTime < timeoutMillis(update.getConsumer()) / 2)
+            return update;
+        MessageProcessingUpdate<M> renewed = update.processing(clock);
+        if (!repository.update(renewed))
+            throw new Worker.MessageUpdateConflict(renewed);
+        return renewed;
+    }
+
+    private ConsumerWorkers workers(MessageConsumer<?> consumer) {
+        return workersByConsumer.get(consumer);
     }
 
     private Map<MessageConsumer<?>, Integer> determineMaxCountByConsumer() {
-        Map<MessageConsumer<?>, Integer> maxCountByConsumer = new HashMap<MessageConsumer<?>, Integer>();
-        for (Map.Entry<MessageConsumer<?>, AtomicInteger> entry : currentlyProcessingMessageCountByConsumer.entrySet()) {
+        Map<MessageConsumer<?>, Integer> maxCountByConsumer = new LinkedHashMap<MessageConsumer<?>, Integer>();
+        int totalMaxCount = 0;
+        for (Map.Entry<MessageConsumer<?>, ConsumerWorkers> entry : workersByConsumer.entrySet()) {
             MessageConsumer<?> consumer = entry.getKey();
-            int messageCount = entry.getValue().get();
-            int maxCount = consumer.messagesHandledInParallel - messageCount;
-            if (maxCount > 0)
+            int messageCount = entry.getValue().takenCount();
+            int maxCount = consumer.messagesHandledInParallel + consumer.prefetchCount - messageCount;
+            if (maxCount > 0) {
                 maxCountByConsumer.put(consumer, maxCount);
+                totalMaxCount += maxCount;
+            }
         }
-        return maxCountByConsumer;
+        int budget = workerThreadBudget - takenMessageCount.get();
+        if (totalMaxCount <= budget)
+            return maxCountByConsumer;
+        return shareBudget(maxCountByConsumer, budget);
+    }
+
+    // Hands out one message at a time, starting with a different consumer each time, so no consumer is starved
+    private Map<MessageConsumer<?>, Integer> shareBudget(Map<MessageConsumer<?>, Integer> maxCountByConsumer,
+                                                         int budget) {
+        Map<MessageConsumer<?>, Integer> sharedMaxCountByConsumer = new HashMap<MessageConsumer<?>, Integer>();
+        if (budget <= 0)
+            return sharedMaxCountByConsumer;
+        List<MessageConsumer<?>> consumers = new ArrayList<MessageConsumer<?>>(maxCountByConsumer.keySet());
+        budgetRotation = (budgetRotation + 1) % consumers.size();
+        Collections.rotate(consumers, budgetRotation);
+        while (budget > 0) {
+            for (MessageConsumer<?> consumer : consumers) {
+                Integer count = sharedMaxCountByConsumer.get(consumer);
+                int sharedMaxCount = count == null ? 0 : count;
+                if (budget > 0 && sharedMaxCount < maxCountByConsumer.get(consumer)) {
+                    sharedMaxCountByConsumer.put(consumer, sharedMaxCount + 1);
+                    budget--;
+                }
+            }
+        }
+        return sharedMaxCountByConsumer;
     }
 
     void stop() {
-        ExecutorTerminator.shutdownAndAwaitTermination(messageTaker, workerExecutor);
+        stopped.set(true);
+        List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        executors.add(messageTaker);
+        for (ConsumerWorkers workers : workersByConsumer.values())
+            executors.add(workers.executor);
+        ExecutorTerminator.shutdownAndAwaitTermination(executors.toArray(new ExecutorService[executors.size()]));
+        releasePrefetchedMessages();
+    }
+
+    // Makes them available to other nodes right away, instead of once their leases time out
+    private void releasePrefetchedMessages() {
+        for (ConsumerWorkers workers : workersByConsumer.values()) {
+            for (TakenMessage takenMessage : workers.removePrefetched()) {
+                try {
+                    repository.update(takenMessage.update.released(clock));
+                } catch (RuntimeException ignore) {
+                    // Left to time out
+                }
+            }
+        }
+    }
+
+    // In order of significance
+    enum TakeOutcome {
+        NOTHING_TAKEN, MESSAGES_TAKEN, FULL_BATCH_TAKEN
+    }
+
+    private static final class TakenMessage {
+        final MessageProcessingUpdate<?> update;
+        final Object serializedMessage;
+        final long takenTime;
+
+        TakenMessage(MessageProcessingUpdate<?> update, Object serializedMessage, long takenTime) {
+            this.update = update;
+            this.serializedMessage = serializedMessage;
+            this.takenTime = takenTime;
+        }
+    }
+
+    // Hands taken messages to the executor, never more than messagesHandledInParallel at a time.
+    // Messages taken beyond that are prefetched, and handed over as workers are done.
+    private final class ConsumerWorkers {
+        final MessageConsumer<?> consumer;
+        final ExecutorService executor;
+        private final Queue<TakenMessage> prefetched = new LinkedList<TakenMessage>(); // Guarded by this
+        private int workingCount; // Guarded by this
+
+        ConsumerWorkers(MessageConsumer<?> consumer, ExecutorService executor) {
+            this.consumer = consumer;
+            this.executor = executor;
+        }
+
+        synchronized int takenCount() {
+            return workingCount + prefetched.size();
+        }
+
+        void taken(TakenMessage takenMessage) {
+            synchronized (this) {
+                if (workingCount >= consumer.messagesHandledInParallel) {
+                    prefetched.add(takenMessage);
+                    return;
+                }
+                workingCount++;
+            }
+            execute(takenMessage);
+        }
+
+        void done() {
+            TakenMessage next;
+            synchronized (this) {
+                next = stopped.get() ? null : prefetched.poll();
+                if (next == null) {
+                    workingCount--;
+                    return;
+                }
+            }
+            execute(next);
+        }
+
+        synchronized List<TakenMessage> removePrefetched() {
+            List<TakenMessage> removed = new ArrayList<TakenMessage>(prefetched);
+            prefetched.clear();
+            return removed;
+        }
+
+        synchronized List<TakenMessage> removePrefetchedTakenBefore(long takenTime) {
+            List<TakenMessage> removed = new ArrayList<TakenMessage>();
+            for (Iterator<TakenMessage> it = prefetched.iterator(); it.hasNext(); ) {
+                TakenMessage takenMessage = it.next();
+                if (takenMessage.takenTime < takenTime) {
+                    removed.add(takenMessage);
+                    it.remove();
+                }
+            }
+            return removed;
+        }
+
+        // Put back first, since they were taken first. Workers that became free in the meantime get them right away.
+        void prefetchedAgain(List<TakenMessage> takenMessages) {
+            List<TakenMessage> toExecute = new ArrayList<TakenMessage>();
+            synchronized (this) {
+                LinkedList<TakenMessage> remaining = new LinkedList<TakenMessage>(prefetched);
+                prefetched.clear();
+                for (TakenMessage takenMessage : takenMessages) {
+                    if (!stopped.get() && workingCount < consumer.messagesHandledInParallel) {
+                        workingCount++;
+                        toExecute.add(takenMessage);
+                    } else
+                        prefetched.add(takenMessage);
+                }
+                prefetched.addAll(remaining);
+            }
+            for (TakenMessage takenMessage : toExecute)
+                execute(takenMessage);
+        }
+
+        private void execute(final TakenMessage takenMessage) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    work(takenMessage);
+                }
+            });
+        }
     }
 }
@@ -5,6 +5,7 @@ import org.openforis.rmb.spi.TransactionSynchronizer;
 import org.openforis.rmb.util.Is;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -41,6 +42,18 @@ public interface MessageQueue<M> {
      */
     void publish(M message);
 
+    /**
+     * Publish messages to a backing repository, in the order of the collection's iterator. Just like
+     * {@link #publish(Object)}, this can only be done in a transaction, and an exception is thrown if it's not.
+     * <p>
+     * This is equivalent to publishing the messages one by one, but the messages are added to the repository
+     * in one go, which is much faster when publishing many messages.
+     * </p>
+     *
+     * @param messages the messages to publish. Must not contain null
+     */
+    void publishAll(Collection<M> messages);
+
     /**
      * Builds {@link MessageQueue} instances. Register consumers the {@link MessageQueue} by calling
      * {@link #consumer(MessageConsumer.Builder)} or
@@ -124,6 +137,13 @@ public interface MessageQueue<M> {
                 Is.notNull(message, "message must not be null");
                 queueManager.publish(id, message);
             }
+
+            public void publishAll(Collection<M> messages) {
+                Is.notNull(messages, "messages must not be null");
+                for (M message : messages)
+                    Is.notNull(message, "messages must not contain null");
+                queueManager.publishAll(id, messages);
+            }
         }
     }
 }
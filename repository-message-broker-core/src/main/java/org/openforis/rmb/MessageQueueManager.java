@@ -1,13 +1,26 @@
 package org.openforis.rmb;
 
 import org.openforis.rmb.RepositoryMessageBroker.Config;
+import org.openforis.rmb.monitor.ListeningForPublishedMessagesFailedEvent;
 import org.openforis.rmb.monitor.MessagePublishedEvent;
 import org.openforis.rmb.monitor.MessageQueueCreatedEvent;
+import org.openforis.rmb.spi.BatchAddingMessageRepository;
+import org.openforis.rmb.spi.BufferingTransactionSynchronizer;
+import org.openforis.rmb.spi.MessageNotifier;
 import org.openforis.rmb.spi.MessageRepository;
 import org.openforis.rmb.spi.MessageSerializer;
+import org.openforis.rmb.spi.StreamingMessageRepository;
+import org.openforis.rmb.spi.StreamingMessageSerializer;
 import org.openforis.rmb.spi.TransactionSynchronizer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -21,6 +34,9 @@ final class MessageQueueManager {
     private final MessageSerializer messageSerializer;
     private final Monitors monitors;
     private final MessageRepositoryWatcher repositoryWatcher;
+    private final MessageNotifier messageNotifier;
+    private final boolean publishBuffering;
+    private final boolean streamingSerialization;
 
     private final Map<String, List<MessageConsumer<?>>> consumersByQueueId = new ConcurrentHashMap<String, List<MessageConsumer<?>>>();
     private final Set<String> queueIds = new HashSet<String>(); // For asserting global queue id uniqueness
@@ -30,22 +46,91 @@ final class MessageQueueManager {
     public MessageQueueManager(Config config) {
         this.repository = config.messageRepository;
         this.transactionSynchronizer = config.transactionSynchronizer;
-        this.messagePoller = new MessagePoller(repository, config.messageSerializer, config.monitors);
+        this.messagePoller = new MessagePoller(workerRepository(config), config.messageSerializer, config.monitors,
+                config.workerExecutorFactory, config.workerThreadBudget);
         this.messageSerializer = config.messageSerializer;
         this.monitors = config.monitors;
         this.repositoryWatcher = new MessageRepositoryWatcher(messagePoller, config);
+        this.messageNotifier = config.messageNotifier;
+        this.publishBuffering = config.publishBuffering;
+        this.streamingSerialization = config.messageSerializer instanceof StreamingMessageSerializer
+                && config.messageRepository instanceof StreamingMessageRepository;
+    }
+
+    private MessageRepository workerRepository(Config config) {
+        if (config.updateBatchMaxSize <= 1)
+            return repository;
+        return new UpdateBatchingMessageRepository(repository,
+                config.updateBatchMaxSize, config.updateBatchMaxDelay, config.updateBatchMaxDelayTimeUnit);
     }
 
     <M> void publish(String queueId, M message) {
         if (!started.get())
             throw new IllegalStateException("MessageBroker has not been started");
         assertInTransaction(queueId, message);
+        if (publishBuffering) {
+            publishBuffer().add(queueId, message, serialize(message));
+            return;
+        }
         List<MessageConsumer<?>> consumers = consumersByQueueId.get(queueId);
-        repository.add(queueId, consumers, messageSerializer.serialize(message));
+        repository.add(queueId, consumers, serialize(message));
         monitors.onEvent(new MessagePublishedEvent(queueId, message));
+        notifyMessagesPublishedBeforeCommit();
         pollForMessagesOnCommit();
     }
 
+    <M> void publishAll(String queueId, Collection<M> messages) {
+        if (!started.get())
+            throw new IllegalStateException("MessageBroker has not been started");
+        if (messages.isEmpty())
+            return;
+        assertInTransaction(queueId, messages);
+        if (publishBuffering) {
+            PublishBuffer buffer = publishBuffer();
+            for (M message : messages)
+                buffer.add(queueId, message, serialize(message));
+            return;
+        }
+        List<Object> serializedMessages = new ArrayList<Object>(messages.size());
+        for (M message : messages)
+            serializedMessages.add(serialize(message));
+        addAll(queueId, new ArrayList<Object>(messages), serializedMessages);
+        notifyMessagesPublishedBeforeCommit();
+        pollForMessagesOnCommit();
+    }
+
+    // Added one by one, unless the repository can add them in one go
+    private void addAll(String queueId, List<Object> messages, List<Object> serializedMessages) {
+        List<MessageConsumer<?>> consumers = consumersByQueueId.get(queueId);
+        if (repository instanceof BatchAddingMessageRepository)
+            ((BatchAddingMessageRepository) repository).addAll(queueId, consumers, serializedMessages);
+        else
+            for (Object serializedMessage : serializedMessages)
+                repository.add(queueId, consumers, serializedMessage);
+        for (Object message : messages)
+            monitors.onEvent(new MessagePublishedEvent(queueId, message));
+    }
+
+    // Streamed messages are handed to the repository without copying the serialized bytes into another byte[]
+    private Object serialize(Object message) {
+        if (!streamingSerialization)
+            return messageSerializer.serialize(message);
+        SerializedMessageOutputStream out = new SerializedMessageOutputStream();
+        ((StreamingMessageSerializer) messageSerializer).serialize(message, out);
+        return out.toInputStream();
+    }
+
+    // The poll is registered when the buffer is created, so there is one per transaction
+    private PublishBuffer publishBuffer() {
+        return ((BufferingTransactionSynchronizer) transactionSynchronizer).buffer(this,
+                new BufferingTransactionSynchronizer.BufferFactory<PublishBuffer>() {
+                    public PublishBuffer create() {
+                        pollForMessagesOnCommit();
+                        return new PublishBuffer();
+                    }
+                });
+    }
+
     void registerQueue(String queueId, List<MessageConsumer<?>> consumers) {
         assertQueueIdUniqueness(queueId);
         assertConsumerUniqueness(consumers);
@@ -58,9 +143,11 @@ final class MessageQueueManager {
     void start() {
         started.set(true);
         repositoryWatcher.start();
+        pollForMessagesPublishedByOtherNodes();
     }
 
     void stop() {
+        messageNotifier.stop();
         repositoryWatcher.stop();
         messagePoller.stop();
     }
@@ -73,6 +160,73 @@ final class MessageQueueManager {
         });
     }
 
+    // Once per transaction, right before it commits, if the transaction synchronizer can buffer.
+    // Otherwise, once per publish.
+    private void notifyMessagesPublishedBeforeCommit() {
+        if (messageNotifier == MessageNotifier.NULL_MESSAGE_NOTIFIER)
+            return;
+        if (!(transactionSynchronizer instanceof BufferingTransactionSynchronizer)) {
+            messageNotifier.notifyMessagesPublished();
+            return;
+        }
+        ((BufferingTransactionSynchronizer) transactionSynchronizer).buffer(messageNotifier,
+                new BufferingTransactionSynchronizer.BufferFactory<NotifyBuffer>() {
+                    public NotifyBuffer create() {
+                        return new NotifyBuffer();
+                    }
+                });
+    }
+
+    private void pollForMessagesPublishedByOtherNodes() {
+        messageNotifier.start(new MessageNotifier.Listener() {
+            public void messagesPublished() {
+                messagePoller.poll();
+            }
+
+            public void listeningFailed(Exception exception) {
+                monitors.onEvent(new ListeningForPublishedMessagesFailedEvent(messageNotifier, exception));
+            }
+        });
+    }
+
+    // Messages published in a transaction, added to the repository with one batch per queue right before commit
+    private final class PublishBuffer implements BufferingTransactionSynchronizer.Buffer {
+        private final Map<String, List<Object>> messagesByQueueId = new LinkedHashMap<String, List<Object>>();
+        private final Map<String, List<Object>> serializedMessagesByQueueId =
+                new LinkedHashMap<String, List<Object>>();
+
+        void add(String queueId, Object message, Object serializedMessage) {
+            if (!messagesByQueueId.containsKey(queueId)) {
+                messagesByQueueId.put(queueId, new ArrayList<Object>());
+                serializedMessagesByQueueId.put(queueId, new ArrayList<Object>());
+            }
+            messagesByQueueId.get(queueId).add(message);
+            serializedMessagesByQueueId.get(queueId).add(serializedMessage);
+        }
+
+        public void flush() {
+            if (messagesByQueueId.isEmpty())
+                return;
+            for (String queueId : messagesByQueueId.keySet())
+                addAll(queueId, messagesByQueueId.get(queueId), serializedMessagesByQueueId.get(queueId));
+            messageNotifier.notifyMessagesPublished();
+        }
+    }
+
+    // Notifies the message notifier once for all messages published in a transaction, right before commit
+    private final class NotifyBuffer implements BufferingTransactionSynchronizer.Buffer {
+        public void flush() {
+            messageNotifier.notifyMessagesPublished();
+        }
+    }
+
+    // Reads the written bytes in place, instead of copying them like toByteArray()
+    private static final class SerializedMessageOutputStream extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
     private void assertInTransaction(String queueId, Object message) {
         if (!transactionSynchronizer.isInTransaction())
             throw new IllegalStateException("Trying to publish a message outside of a transaction. " +
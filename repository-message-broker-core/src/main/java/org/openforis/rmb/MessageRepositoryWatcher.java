@@ -4,15 +4,17 @@ import org.openforis.rmb.RepositoryMessageBroker.Config;
 
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class MessageRepositoryWatcher {
     private final MessagePoller messagePoller;
     private final MessageQueueSizeChecker queueSizeChecker;
     private final Monitors monitors;
-    private final long pollingPeriod;
-    private final TimeUnit pollingTimeUnit;
+    private final AdaptivePollingSchedule pollingSchedule;
+    private final long queueSizeCheckPeriodMillis;
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
             NamedThreadFactory.singleThreadFactory("rmb.MessageRepositoryWatcher")
     );
@@ -21,8 +23,9 @@ class MessageRepositoryWatcher {
         this.messagePoller = messagePoller;
         this.monitors = config.monitors;
         this.queueSizeChecker = new MessageQueueSizeChecker(config.messageRepository, monitors);
-        this.pollingPeriod = config.repositoryWatcherPollingPeriod;
-        this.pollingTimeUnit = config.repositoryWatcherPollingTimeUnit;
+        this.pollingSchedule = new AdaptivePollingSchedule(
+                config.messagePollingMinPeriodMillis, config.messagePollingMaxPeriodMillis);
+        this.queueSizeCheckPeriodMillis = config.queueSizeCheckPeriodMillis;
     }
 
     void includeQueue(String queueId, List<MessageConsumer<?>> consumers) {
@@ -33,18 +36,33 @@ class MessageRepositoryWatcher {
     void start() {
         executor.scheduleWithFixedDelay(new Runnable() {
             public void run() {
-                pollForTimedOutMessages();
                 pollForQueueSizeUpdates();
             }
-        }, 0, pollingPeriod, pollingTimeUnit);
+        }, 0, queueSizeCheckPeriodMillis, MILLISECONDS);
+        schedulePollForTimedOutMessages(0);
     }
 
     private void pollForQueueSizeUpdates() {
         queueSizeChecker.check();
     }
 
+    // Rescheduled after every poll, with a delay adapting to the outcome of the takes since the previous one
+    private void schedulePollForTimedOutMessages(long delayMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    pollForTimedOutMessages();
+                }
+            }, delayMillis, MILLISECONDS);
+        } catch (RejectedExecutionException ignore) {
+            // Stopped while polling
+        }
+    }
+
     private void pollForTimedOutMessages() {
+        long delayMillis = pollingSchedule.nextDelayMillis(messagePoller.collectTakeOutcome());
         messagePoller.poll();
+        schedulePollForTimedOutMessages(delayMillis);
     }
 
     void stop() {
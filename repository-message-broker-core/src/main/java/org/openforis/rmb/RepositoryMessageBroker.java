@@ -4,14 +4,21 @@ package org.openforis.rmb;
 import org.openforis.rmb.monitor.Event;
 import org.openforis.rmb.monitor.MessageBrokerStartedEvent;
 import org.openforis.rmb.monitor.MessageBrokerStoppedEvent;
+import org.openforis.rmb.monitor.MessageRepositoryProblemsFoundEvent;
 import org.openforis.rmb.monitor.Monitor;
 import org.openforis.rmb.objectserialization.ObjectSerializationMessageSerializer;
+import org.openforis.rmb.spi.BatchAddingMessageRepository;
+import org.openforis.rmb.spi.BatchUpdatingMessageRepository;
+import org.openforis.rmb.spi.BufferingTransactionSynchronizer;
+import org.openforis.rmb.spi.MessageNotifier;
 import org.openforis.rmb.spi.MessageRepository;
 import org.openforis.rmb.spi.MessageSerializer;
 import org.openforis.rmb.spi.TransactionSynchronizer;
+import org.openforis.rmb.spi.VerifiableMessageRepository;
 import org.openforis.rmb.util.Is;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -56,22 +63,29 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  */
 // @formatter:on
 public final class RepositoryMessageBroker implements MessageBroker {
+    private final MessageRepository repository;
     private final Monitors monitors;
     private final MessageQueueManager queueManager;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
     private RepositoryMessageBroker(Config config) {
+        this.repository = config.messageRepository;
         this.monitors = config.monitors;
         this.queueManager = new MessageQueueManager(config);
     }
 
+    /**
+     * Starts the message broker. If the repository is a {@link VerifiableMessageRepository}, it's verified first,
+     * and any problems found are reported to the monitors as a {@link MessageRepositoryProblemsFoundEvent}.
+     */
     public void start() {
         if (!started.compareAndSet(false, true))
             throw new IllegalStateException("Message broker has already been started");
         if (stopped.get())
             throw new IllegalStateException("Message broker has been stopped, and cannot be restarted");
         addShutdownHook();
+        verifyRepository();
         queueManager.start();
         monitors.onEvent(new MessageBrokerStartedEvent(this));
     }
@@ -118,6 +132,19 @@ public final class RepositoryMessageBroker implements MessageBroker {
     }
 
 
+    private void verifyRepository() {
+        if (!(repository instanceof VerifiableMessageRepository))
+            return;
+        List<String> problems;
+        try {
+            problems = ((VerifiableMessageRepository) repository).verify();
+        } catch (RuntimeException e) {
+            problems = Collections.singletonList("Failed to verify repository: " + e);
+        }
+        if (!problems.isEmpty())
+            monitors.onEvent(new MessageRepositoryProblemsFoundEvent(repository, problems));
+    }
+
     private void addShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             public void run() {
@@ -136,6 +163,11 @@ public final class RepositoryMessageBroker implements MessageBroker {
      * <li>{@code messageSerializer(new ObjectSerializationMessageSerializer());}
      * <li>{@code repositoryWatcherPollingSchedule(30, SECONDS);}
      * <li>No registered monitors.
+     * <li>No batching of message processing updates.
+     * <li>No notification of other nodes when publishing messages.
+     * <li>No buffering of published messages.
+     * <li>{@code workerExecutorFactory(WorkerExecutorFactory.THREAD_POOL);}
+     * <li>No global limit on the number of worker threads.
      * </ul>
      * <p>
      * Instances of this class are created through
@@ -149,6 +181,18 @@ public final class RepositoryMessageBroker implements MessageBroker {
         private final List<Monitor<Event>> monitors = new ArrayList<Monitor<Event>>();
         private long repositoryWatcherPollingPeriod;
         private TimeUnit repositoryWatcherPollingTimeUnit;
+        private long messagePollingMinPeriod;
+        private long messagePollingMaxPeriod;
+        private TimeUnit messagePollingTimeUnit;
+        private long queueSizeCheckPeriod;
+        private TimeUnit queueSizeCheckTimeUnit;
+        private int updateBatchMaxSize = 1;
+        private long updateBatchMaxDelay;
+        private TimeUnit updateBatchMaxDelayTimeUnit = TimeUnit.MILLISECONDS;
+        private MessageNotifier messageNotifier = MessageNotifier.NULL_MESSAGE_NOTIFIER;
+        private boolean publishBuffering;
+        private WorkerExecutorFactory workerExecutorFactory = WorkerExecutorFactory.THREAD_POOL;
+        private int workerThreadBudget = Integer.MAX_VALUE;
 
         private Builder(MessageRepository messageRepository, TransactionSynchronizer transactionSynchronizer) {
             this.messageRepository = messageRepository;
@@ -176,7 +220,8 @@ public final class RepositoryMessageBroker implements MessageBroker {
          * Specify how often the repository should be polled when looking for abandoned messages and
          * checking for queue size.
          * <p>
-         * If not specified, the repository will be polled every 30 seconds.
+         * If not specified, the repository will be polled every 30 seconds. The two can be scheduled separately through
+         * {@link #adaptiveMessagePolling(long, long, TimeUnit)} and {@link #queueSizeCheckSchedule(long, TimeUnit)}.
          * </p>
          *
          * @param period   how often to poll. Must be creater than zero.
@@ -191,6 +236,177 @@ public final class RepositoryMessageBroker implements MessageBroker {
             return this;
         }
 
+        /**
+         * Specify that the repository should be polled for messages on an adaptive schedule.
+         * <p>
+         * While polls find no messages, the delay between polls is doubled, up to maxPeriod. As soon as a poll takes as
+         * many messages as there were free workers, more messages are likely to be waiting, and the delay is reset to
+         * minPeriod. This keeps the latency low when busy, and the load on the repository low when idle.
+         * </p>
+         * <p>
+         * If not specified, the repository is polled for messages as specified by
+         * {@link #repositoryWatcherPollingSchedule(long, TimeUnit)}.
+         * </p>
+         *
+         * @param minPeriod the shortest time between polls. Must be greater than zero.
+         * @param maxPeriod the longest time between polls. Must not be shorter than minPeriod.
+         * @param timeUnit  the time unit of the periods. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder adaptiveMessagePolling(long minPeriod, long maxPeriod, TimeUnit timeUnit) {
+            Is.greaterThenZero(minPeriod, "minPeriod must be greater than zero");
+            Is.notNull(timeUnit, "timeUnit must not be null");
+            if (maxPeriod < minPeriod)
+                throw new IllegalArgumentException("maxPeriod must not be shorter than minPeriod");
+            this.messagePollingMinPeriod = minPeriod;
+            this.messagePollingMaxPeriod = maxPeriod;
+            this.messagePollingTimeUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Specify how often the size of the queues should be checked.
+         * <p>
+         * If not specified, the queue sizes are checked as specified by
+         * {@link #repositoryWatcherPollingSchedule(long, TimeUnit)}.
+         * </p>
+         *
+         * @param period   how often to check. Must be greater than zero.
+         * @param timeUnit the time unit of the period. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder queueSizeCheckSchedule(long period, TimeUnit timeUnit) {
+            Is.greaterThenZero(period, "period must be greater than zero");
+            Is.notNull(timeUnit, "timeUnit must not be null");
+            this.queueSizeCheckPeriod = period;
+            this.queueSizeCheckTimeUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Specify that message processing updates made by concurrent workers should be batched.
+         * <p>
+         * When a worker updates the status of a message processing, the update waits for at most maxDelay
+         * for updates from other workers. All collected updates are then made in one go, through
+         * {@link BatchUpdatingMessageRepository#updateAll(List)}, or one by one if the repository doesn't implement
+         * it. With many short-lived messages, this trades a few milliseconds of latency for far fewer repository
+         * round-trips and transaction commits.
+         * </p>
+         * <p>
+         * If not specified, each update is made on its own.
+         * </p>
+         *
+         * @param maxBatchSize the max number of updates to make in one go. Must be greater than zero.
+         * @param maxDelay     the max time to wait for other updates. Must be greater than zero.
+         * @param timeUnit     the time unit of maxDelay. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder updateBatching(int maxBatchSize, long maxDelay, TimeUnit timeUnit) {
+            Is.greaterThenZero(maxBatchSize, "maxBatchSize must be greater than zero");
+            Is.greaterThenZero(maxDelay, "maxDelay must be greater than zero");
+            Is.notNull(timeUnit, "timeUnit must not be null");
+            this.updateBatchMaxSize = maxBatchSize;
+            this.updateBatchMaxDelay = maxDelay;
+            this.updateBatchMaxDelayTimeUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Specify the {@link MessageNotifier} to notify message brokers on other nodes through when publishing messages.
+         * <p>
+         * Published messages are taken right away by the node publishing them. Other nodes only find them when polling
+         * the repository, as specified by {@link #repositoryWatcherPollingSchedule(long, TimeUnit)}. With a notifier,
+         * other nodes take them as soon as the publishing transaction commits, without having to poll the repository
+         * more often.
+         * </p>
+         * <p>
+         * If not specified, other nodes are not notified.
+         * </p>
+         *
+         * @param messageNotifier the implementation to use. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder messageNotifier(MessageNotifier messageNotifier) {
+            Is.notNull(messageNotifier, "messageNotifier must not be null");
+            this.messageNotifier = messageNotifier;
+            return this;
+        }
+
+        /**
+         * Specify that messages published in a transaction should be buffered, and added to the repository right
+         * before the transaction commits.
+         * <p>
+         * Messages are serialized when published, but added to the repository with a single
+         * {@link BatchAddingMessageRepository#addAll(String, List, List)} per queue, or one by one if the repository
+         * doesn't implement it. Consumers are polled for once the transaction commits, instead of once per published
+         * message. This makes transactions publishing many messages much faster. The messages of a queue are added in the order they were published.
+         * </p>
+         * <p>
+         * This requires the {@link TransactionSynchronizer} to be a {@link BufferingTransactionSynchronizer}.
+         * </p>
+         * <p>
+         * If not specified, messages are added to the repository when published.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         * @throws IllegalStateException if the transaction synchronizer isn't a
+         *                               {@link BufferingTransactionSynchronizer}
+         */
+        public Builder publishBuffering() {
+            if (!(transactionSynchronizer instanceof BufferingTransactionSynchronizer))
+                throw new IllegalStateException("Publish buffering requires a BufferingTransactionSynchronizer, " +
+                        "got " + transactionSynchronizer);
+            this.publishBuffering = true;
+            return this;
+        }
+
+        /**
+         * Specify the {@link WorkerExecutorFactory} creating the executors running the message handlers.
+         * <p>
+         * With {@link WorkerExecutorFactory#VIRTUAL_THREADS}, messages are handled on virtual threads, which is
+         * suitable for handlers mostly blocking on I/O. This requires Java 21 or later.
+         * </p>
+         * <p>
+         * If not specified, {@link WorkerExecutorFactory#THREAD_POOL} is used.
+         * </p>
+         *
+         * @param workerExecutorFactory the implementation to use. Must not be null.
+         * @return the builder, so methods can be chained
+         * @throws IllegalStateException if specifying {@link WorkerExecutorFactory#VIRTUAL_THREADS} when running on
+         *                               Java versions older than 21
+         */
+        public Builder workerExecutorFactory(WorkerExecutorFactory workerExecutorFactory) {
+            Is.notNull(workerExecutorFactory, "workerExecutorFactory must not be null");
+            if (workerExecutorFactory == WorkerExecutorFactory.VIRTUAL_THREADS
+                    && !WorkerExecutorFactory.VirtualThreads.isSupported())
+                throw new IllegalStateException("Virtual threads require Java 21 or later. Running " +
+                        System.getProperty("java.version"));
+            this.workerExecutorFactory = workerExecutorFactory;
+            return this;
+        }
+
+        /**
+         * Specify the max number of threads handling messages, across all consumers of the message broker.
+         * <p>
+         * Each consumer has its own pool of worker threads, of at most
+         * {@link MessageConsumer.Builder#messagesHandledInParallel(int)} threads. Threads are only kept while
+         * in use, and for a minute after. With many consumers, the total number of threads can still get large
+         * when a burst of messages is published. With a budget, no more messages are taken than there are threads
+         * left in the budget, and the available threads are shared between consumers with messages to handle.
+         * </p>
+         * <p>
+         * If not specified, the number of threads is only limited by the consumers.
+         * </p>
+         *
+         * @param maxThreads the max number of worker threads. Must be greater than zero.
+         * @return the builder, so methods can be chained
+         */
+        public Builder workerThreadBudget(int maxThreads) {
+            Is.greaterThenZero(maxThreads, "maxThreads must be greater than zero");
+            this.workerThreadBudget = maxThreads;
+            return this;
+        }
+
         /**
          * Registers a monitor, to be notified about events generated by the message broker.
          * This method can be called multiple times to register multiple monitors.
@@ -222,12 +438,38 @@ public final class RepositoryMessageBroker implements MessageBroker {
                             messageRepository,
                             transactionSynchronizer,
                             messageSerializer, new Monitors(monitors),
-                            repositoryWatcherPollingPeriod,
-                            repositoryWatcherPollingTimeUnit
+                            messagePollingMinPeriodMillis(),
+                            messagePollingMaxPeriodMillis(),
+                            queueSizeCheckPeriodMillis(),
+                            updateBatchMaxSize,
+                            updateBatchMaxDelay,
+                            updateBatchMaxDelayTimeUnit,
+                            messageNotifier,
+                            publishBuffering,
+                            workerExecutorFactory,
+                            workerThreadBudget
                     )
             );
         }
 
+        private long messagePollingMinPeriodMillis() {
+            if (messagePollingTimeUnit == null)
+                return repositoryWatcherPollingTimeUnit.toMillis(repositoryWatcherPollingPeriod);
+            return messagePollingTimeUnit.toMillis(messagePollingMinPeriod);
+        }
+
+        private long messagePollingMaxPeriodMillis() {
+            if (messagePollingTimeUnit == null)
+                return repositoryWatcherPollingTimeUnit.toMillis(repositoryWatcherPollingPeriod);
+            return messagePollingTimeUnit.toMillis(messagePollingMaxPeriod);
+        }
+
+        private long queueSizeCheckPeriodMillis() {
+            if (queueSizeCheckTimeUnit == null)
+                return repositoryWatcherPollingTimeUnit.toMillis(repositoryWatcherPollingPeriod);
+            return queueSizeCheckTimeUnit.toMillis(queueSizeCheckPeriod);
+        }
+
         public String toString() {
             return "Builder{" +
                     "messageRepository=" + messageRepository +
@@ -236,6 +478,18 @@ public final class RepositoryMessageBroker implements MessageBroker {
                     ", monitors=" + monitors +
                     ", repositoryWatcherPollingPeriod=" + repositoryWatcherPollingPeriod +
                     ", repositoryWatcherPollingTimeUnit=" + repositoryWatcherPollingTimeUnit +
+                    ", messagePollingMinPeriod=" + messagePollingMinPeriod +
+                    ", messagePollingMaxPeriod=" + messagePollingMaxPeriod +
+                    ", messagePollingTimeUnit=" + messagePollingTimeUnit +
+                    ", queueSizeCheckPeriod=" + queueSizeCheckPeriod +
+                    ", queueSizeCheckTimeUnit=" + queueSizeCheckTimeUnit +
+                    ", updateBatchMaxSize=" + updateBatchMaxSize +
+                    ", updateBatchMaxDelay=" + updateBatchMaxDelay +
+                    ", updateBatchMaxDelayTimeUnit=" + updateBatchMaxDelayTimeUnit +
+                    ", messageNotifier=" + messageNotifier +
+                    ", publishBuffering=" + publishBuffering +
+                    ", workerExecutorFactory=" + workerExecutorFactory +
+                    ", workerThreadBudget=" + workerThreadBudget +
                     '}';
         }
     }
@@ -245,23 +499,47 @@ public final class RepositoryMessageBroker implements MessageBroker {
         final TransactionSynchronizer transactionSynchronizer;
         final MessageSerializer messageSerializer;
         final Monitors monitors;
-        final long repositoryWatcherPollingPeriod;
-        final TimeUnit repositoryWatcherPollingTimeUnit;
+        final long messagePollingMinPeriodMillis;
+        final long messagePollingMaxPeriodMillis;
+        final long queueSizeCheckPeriodMillis;
+        final int updateBatchMaxSize;
+        final long updateBatchMaxDelay;
+        final TimeUnit updateBatchMaxDelayTimeUnit;
+        final MessageNotifier messageNotifier;
+        final boolean publishBuffering;
+        final WorkerExecutorFactory workerExecutorFactory;
+        final int workerThreadBudget;
 
         public Config(
                 MessageRepository messageRepository,
                 TransactionSynchronizer transactionSynchronizer,
                 MessageSerializer messageSerializer,
                 Monitors monitors,
-                long repositoryWatcherPollingPeriod,
-                TimeUnit repositoryWatcherPollingTimeUnit
+                long messagePollingMinPeriodMillis,
+                long messagePollingMaxPeriodMillis,
+                long queueSizeCheckPeriodMillis,
+                int updateBatchMaxSize,
+                long updateBatchMaxDelay,
+                TimeUnit updateBatchMaxDelayTimeUnit,
+                MessageNotifier messageNotifier,
+                boolean publishBuffering,
+                WorkerExecutorFactory workerExecutorFactory,
+                int workerThreadBudget
         ) {
             this.messageRepository = messageRepository;
             this.transactionSynchronizer = transactionSynchronizer;
             this.messageSerializer = messageSerializer;
             this.monitors = monitors;
-            this.repositoryWatcherPollingPeriod = repositoryWatcherPollingPeriod;
-            this.repositoryWatcherPollingTimeUnit = repositoryWatcherPollingTimeUnit;
+            this.messagePollingMinPeriodMillis = messagePollingMinPeriodMillis;
+            this.messagePollingMaxPeriodMillis = messagePollingMaxPeriodMillis;
+            this.queueSizeCheckPeriodMillis = queueSizeCheckPeriodMillis;
+            this.updateBatchMaxSize = updateBatchMaxSize;
+            this.updateBatchMaxDelay = updateBatchMaxDelay;
+            this.updateBatchMaxDelayTimeUnit = updateBatchMaxDelayTimeUnit;
+            this.messageNotifier = messageNotifier;
+            this.publishBuffering = publishBuffering;
+            this.workerExecutorFactory = workerExecutorFactory;
+            this.workerThreadBudget = workerThreadBudget;
         }
 
         public String toString() {
@@ -270,8 +548,16 @@ public final class RepositoryMessageBroker implements MessageBroker {
                     ", transactionSynchronizer=" + transactionSynchronizer +
                     ", messageSerializer=" + messageSerializer +
                     ", monitors=" + monitors +
-                    ", repositoryWatcherPollingPeriod=" + repositoryWatcherPollingPeriod +
-                    ", repositoryWatcherPollingTimeUnit=" + repositoryWatcherPollingTimeUnit +
+                    ", messagePollingMinPeriodMillis=" + messagePollingMinPeriodMillis +
+                    ", messagePollingMaxPeriodMillis=" + messagePollingMaxPeriodMillis +
+                    ", queueSizeCheckPeriodMillis=" + queueSizeCheckPeriodMillis +
+                    ", updateBatchMaxSize=" + updateBatchMaxSize +
+                    ", updateBatchMaxDelay=" + updateBatchMaxDelay +
+                    ", updateBatchMaxDelayTimeUnit=" + updateBatchMaxDelayTimeUnit +
+                    ", messageNotifier=" + messageNotifier +
+                    ", publishBuffering=" + publishBuffering +
+                    ", workerExecutorFactory=" + workerExecutorFactory +
+                    ", workerThreadBudget=" + workerThreadBudget +
                     '}';
         }
     }
@@ -0,0 +1,201 @@
+package org.openforis.rmb;
+
+import org.openforis.rmb.spi.BatchUpdatingMessageRepository;
+import org.openforis.rmb.spi.MessageProcessingFilter;
+import org.openforis.rmb.spi.MessageProcessingUpdate;
+import org.openforis.rmb.spi.MessageRepository;
+import org.openforis.rmb.util.Is;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commits message processing updates made by concurrent workers. The first update to arrive waits for at most
+ * maxDelay for other updates, then makes all collected updates through
+ * {@link BatchUpdatingMessageRepository#updateAll(List)}, or one by one if the repository can't update in batches.
+ * If a batch update fails, its updates are made one by one instead.
+ * Each updating thread is blocked until its batch has been made, and gets the result, or failure, of its own update.
+ * Updates made through {@link #updateAll(List)} already are a batch, and are made right away.
+ * All other operations are delegated as is.
+ */
+final class UpdateBatchingMessageRepository implements BatchUpdatingMessageRepository {
+    private final MessageRepository repository;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final Object lock = new Object();
+    private Batch collectingBatch; // Guarded by lock
+
+    UpdateBatchingMessageRepository(MessageRepository repository, int maxBatchSize, long maxDelay, TimeUnit timeUnit) {
+        this.repository = repository;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+    }
+
+    public boolean update(MessageProcessingUpdate update) {
+        Is.notNull(update, "update must not be null");
+        Batch batch;
+        int index;
+        boolean leader = false;
+        synchronized (lock) {
+            if (collectingBatch == null) {
+                collectingBatch = new Batch();
+                leader = true;
+            }
+            batch = collectingBatch;
+            index = batch.add(update);
+            if (batch.size() >= maxBatchSize) {
+                collectingBatch = null;
+                lock.notifyAll();
+            }
+        }
+        if (leader) {
+            awaitMoreUpdates(batch);
+            batch.flush(repository);
+        }
+        return batch.result(index);
+    }
+
+    public List<Boolean> updateAll(List<MessageProcessingUpdate> updates) {
+        Is.notNull(updates, "updates must not be null");
+        Batch batch = new Batch();
+        for (MessageProcessingUpdate update : updates)
+            batch.add(update);
+        batch.flush(repository);
+        List<Boolean> results = new ArrayList<Boolean>();
+        for (int i = 0; i < updates.size(); i++)
+            results.add(batch.result(i));
+        return results;
+    }
+
+    private void awaitMoreUpdates(Batch batch) {
+        boolean interrupted = false;
+        synchronized (lock) {
+            long deadline = System.nanoTime() + maxDelayNanos;
+            long remaining = maxDelayNanos;
+            while (collectingBatch == batch && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            if (collectingBatch == batch)
+                collectingBatch = null;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void add(String queueId, List<MessageConsumer<?>> consumers, Object serializedMessage) {
+        repository.add(queueId, consumers, serializedMessage);
+    }
+
+    public void take(Map<MessageConsumer<?>, Integer> maxCountByConsumer, MessageTakenCallback callback) {
+        repository.take(maxCountByConsumer, callback);
+    }
+
+    public void findMessageProcessing(Collection<MessageConsumer<?>> consumers,
+                                      MessageProcessingFilter filter,
+                                      MessageProcessingFoundCallback callback) {
+        repository.findMessageProcessing(consumers, filter, callback);
+    }
+
+    public Map<MessageConsumer<?>, Integer> messageCountByConsumer(Collection<MessageConsumer<?>> consumers,
+                                                                   MessageProcessingFilter filter) {
+        return repository.messageCountByConsumer(consumers, filter);
+    }
+
+    public void deleteMessageProcessing(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter) {
+        repository.deleteMessageProcessing(consumers, filter);
+    }
+
+    public String toString() {
+        return "UpdateBatchingMessageRepository{" +
+                "repository=" + repository +
+                ", maxBatchSize=" + maxBatchSize +
+                ", maxDelayNanos=" + maxDelayNanos +
+                '}';
+    }
+
+    private static final class Batch {
+        private final List<MessageProcessingUpdate> updates = new ArrayList<MessageProcessingUpdate>();
+        private final CountDownLatch flushed = new CountDownLatch(1);
+        private final List<Boolean> results = new ArrayList<Boolean>();
+        private final List<RuntimeException> failures = new ArrayList<RuntimeException>();
+
+        int add(MessageProcessingUpdate update) {
+            updates.add(update);
+            return updates.size() - 1;
+        }
+
+        int size() {
+            return updates.size();
+        }
+
+        // A batch with a single update is made just like an unbatched update. Should a batch update fail,
+        // the updates are made one by one, so a single failing update doesn't fail the whole batch.
+        void flush(MessageRepository repository) {
+            try {
+                if (updates.size() > 1 && repository instanceof BatchUpdatingMessageRepository && updateAll(repository))
+                    return;
+                updateOneByOne(repository);
+            } finally {
+                flushed.countDown();
+            }
+        }
+
+        private boolean updateAll(MessageRepository repository) {
+            try {
+                List<Boolean> batchResults = ((BatchUpdatingMessageRepository) repository).updateAll(updates);
+                results.addAll(batchResults);
+                failures.addAll(Collections.<RuntimeException>nCopies(batchResults.size(), null));
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        private void updateOneByOne(MessageRepository repository) {
+            for (MessageProcessingUpdate update : updates) {
+                try {
+                    results.add(repository.update(update));
+                    failures.add(null);
+                } catch (RuntimeException e) {
+                    results.add(null);
+                    failures.add(e);
+                }
+            }
+        }
+
+        boolean result(int index) {
+            awaitFlushed();
+            if (index >= results.size())
+                throw new IllegalStateException("Batch of message processing updates failed");
+            if (failures.get(index) != null)
+                throw failures.get(index);
+            return results.get(index);
+        }
+
+        private void awaitFlushed() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    flushed.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
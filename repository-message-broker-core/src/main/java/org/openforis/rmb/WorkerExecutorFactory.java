@@ -0,0 +1,121 @@
+package org.openforis.rmb;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.openforis.rmb.NamedThreadFactory.multipleThreadFactory;
+
+/**
+ * Creates the executors running the message handlers. Each consumer gets its own executor.
+ * <p>
+ * An executor is never given more messages at a time than the consumer's
+ * {@link MessageConsumer.Builder#messagesHandledInParallel(int)}, or the message broker's
+ * {@link RepositoryMessageBroker.Builder#workerThreadBudget(int)}, if lower.
+ * </p>
+ */
+public interface WorkerExecutorFactory {
+    /**
+     * Creates executors with a pool of platform threads, with at most as many threads as messages handled in
+     * parallel. Idle threads time out after a minute.
+     */
+    WorkerExecutorFactory THREAD_POOL = new ThreadPool();
+
+    /**
+     * Creates executors starting a virtual thread per message. Handlers blocking on I/O, and retries waiting to be
+     * made, then don't tie up any platform threads, so many messages can be handled in parallel cheaply.
+     * <p>
+     * This requires Java 21 or later. Check with {@link VirtualThreads#isSupported()}.
+     * </p>
+     */
+    WorkerExecutorFactory VIRTUAL_THREADS = new VirtualThreads();
+
+    /**
+     * Creates the executor of a consumer. Invoked when a queue is created.
+     *
+     * @param consumerId the id of the consumer
+     * @param maxThreads the max number of messages given to the executor at a time
+     * @return the executor. It's shut down when the message broker is stopped.
+     */
+    ExecutorService create(String consumerId, int maxThreads);
+
+    /**
+     * Creates executors with a pool of platform threads.
+     */
+    final class ThreadPool implements WorkerExecutorFactory {
+        private ThreadPool() {
+        }
+
+        public ExecutorService create(String consumerId, int maxThreads) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), multipleThreadFactory("rmb.WorkerExecutor." + consumerId));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        public String toString() {
+            return "ThreadPool";
+        }
+    }
+
+    /**
+     * Creates executors starting a virtual thread per message.
+     * <p>
+     * The library is built for older Java versions, so virtual threads are created through reflection.
+     * </p>
+     */
+    final class VirtualThreads implements WorkerExecutorFactory {
+        private VirtualThreads() {
+        }
+
+        /**
+         * Checks if virtual threads are supported by the running JVM.
+         *
+         * @return true if running on Java 21 or later
+         */
+        public static boolean isSupported() {
+            try {
+                Thread.class.getMethod("ofVirtual");
+                Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @throws IllegalStateException if virtual threads aren't supported by the running JVM
+         */
+        public ExecutorService create(String consumerId, int maxThreads) {
+            if (!isSupported())
+                throw new IllegalStateException("Virtual threads require Java 21 or later. Running " +
+                        System.getProperty("java.version"));
+            try {
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderType.getMethod("name", String.class, long.class)
+                        .invoke(builder, "rmb.WorkerExecutor." + consumerId + "-", 1L);
+                ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+                Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) newExecutor.invoke(null, threadFactory);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e.getCause());
+            }
+        }
+
+        public String toString() {
+            return "VirtualThreads";
+        }
+    }
+}
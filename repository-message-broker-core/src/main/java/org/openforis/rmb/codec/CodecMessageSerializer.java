@@ -0,0 +1,266 @@
+package org.openforis.rmb.codec;
+
+import org.openforis.rmb.spi.MessageSerializer;
+import org.openforis.rmb.spi.StreamingMessageSerializer;
+import org.openforis.rmb.util.Is;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+// @formatter:off
+/**
+ * Serializes messages of explicitly registered types to a compact binary form, using a {@link MessageCodec} for
+ * each type.
+ * <p>
+ * A serialized message is a format byte, the tag of its type and what the codec wrote. No class descriptors are
+ * written, which makes messages a fraction of the size of Java object serialization, and a lot faster to write and
+ * read. Messages of types not registered are serialized by the fallback serializer, if one is specified. Messages
+ * not starting with the format byte are deserialized by the fallback serializer too, so it can be introduced while
+ * messages serialized by the fallback are still in the repository. The format byte never starts messages serialized
+ * by Java object serialization.
+ * </p>
+ * <p>
+ * Codecs are looked up by the exact class of the message. Tags must never be reused for other types, while messages
+ * with the tag may still be in the repository.
+ * </p>
+ * <strong>Usage example:</strong>
+ * <pre>
+ * {@code
+
+    MessageSerializer serializer = CodecMessageSerializer.builder()
+            .register(1, OrderPlaced.class, new OrderPlacedCodec())
+            .register(2, OrderShipped.class, new OrderShippedCodec())
+            .fallback(new ObjectSerializationMessageSerializer())
+            .build();
+ * }
+ * </pre>
+ * <p>
+ * This class is thread safe, as long as the codecs are.
+ * </p>
+ */
+// @formatter:on
+public final class CodecMessageSerializer implements StreamingMessageSerializer {
+    private static final int FORMAT = 0xC0;
+    private static final int FALLBACK_STRING_FORMAT = 0xC1; // A String from the fallback, streamed as UTF-8
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<Class<?>, Registration<?>> registrationByType;
+    private final Map<Integer, Registration<?>> registrationByTag;
+    private final MessageSerializer fallback;
+
+    private CodecMessageSerializer(Builder builder) {
+        this.registrationByType = new HashMap<Class<?>, Registration<?>>(builder.registrationByType);
+        this.registrationByTag = new HashMap<Integer, Registration<?>>(builder.registrationByTag);
+        this.fallback = builder.fallback;
+    }
+
+    /**
+     * Provides a builder for creating {@link CodecMessageSerializer}s.
+     *
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Object serialize(Object message) throws SerializationFailed {
+        Is.notNull(message, "message must not be null");
+        if (!registrationByType.containsKey(message.getClass()))
+            return fallback(message).serialize(message);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        serialize(message, out);
+        return out.toByteArray();
+    }
+
+    public void serialize(Object message, OutputStream out) throws SerializationFailed {
+        Is.notNull(message, "message must not be null");
+        Is.notNull(out, "out must not be null");
+        Registration<?> registration = registrationByType.get(message.getClass());
+        if (registration == null) {
+            serializeWithFallback(message, out);
+            return;
+        }
+        try {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeByte(FORMAT);
+            writeTag(registration.tag, dataOut);
+            registration.write(message, dataOut);
+            dataOut.flush();
+        } catch (IOException e) {
+            throw new SerializationFailed("Failed to serialize " + message, e);
+        }
+    }
+
+    public Object deserialize(Object serializedMessage) throws DeserilizationFailed {
+        Is.notNull(serializedMessage, "serializedMessage must not be null");
+        if (!(serializedMessage instanceof byte[]) || !isFormatted((byte[]) serializedMessage))
+            return fallback(serializedMessage).deserialize(serializedMessage);
+        return deserialize(new ByteArrayInputStream((byte[]) serializedMessage));
+    }
+
+    public Object deserialize(InputStream in) throws DeserilizationFailed {
+        Is.notNull(in, "in must not be null");
+        if (!in.markSupported())
+            in = new BufferedInputStream(in);
+        try {
+            in.mark(1);
+            int format = in.read();
+            if (format == FALLBACK_STRING_FORMAT)
+                return fallback(in).deserialize(new String(readBytes(in), UTF_8));
+            if (format != FORMAT) {
+                in.reset();
+                return deserializeWithFallback(in);
+            }
+            DataInputStream dataIn = new DataInputStream(in);
+            int tag = readTag(dataIn);
+            Registration<?> registration = registrationByTag.get(tag);
+            if (registration == null)
+                throw new DeserilizationFailed("No codec registered with tag " + tag);
+            return registration.codec.read(dataIn);
+        } catch (IOException e) {
+            throw new DeserilizationFailed("Failed to deserialize message", e);
+        }
+    }
+
+    private void serializeWithFallback(Object message, OutputStream out) {
+        MessageSerializer fallback = fallback(message);
+        if (fallback instanceof StreamingMessageSerializer) {
+            ((StreamingMessageSerializer) fallback).serialize(message, out);
+            return;
+        }
+        Object serializedMessage = fallback.serialize(message);
+        try {
+            if (serializedMessage instanceof String) {
+                out.write(FALLBACK_STRING_FORMAT);
+                out.write(((String) serializedMessage).getBytes(UTF_8));
+            } else
+                out.write((byte[]) serializedMessage);
+        } catch (IOException e) {
+            throw new SerializationFailed("Failed to serialize " + message, e);
+        }
+    }
+
+    private Object deserializeWithFallback(InputStream in) throws IOException {
+        MessageSerializer fallback = fallback(in);
+        if (fallback instanceof StreamingMessageSerializer)
+            return ((StreamingMessageSerializer) fallback).deserialize(in);
+        return fallback.deserialize(readBytes(in));
+    }
+
+    private byte[] readBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.read(buffer)) != -1)
+            out.write(buffer, 0, length);
+        return out.toByteArray();
+    }
+
+    private MessageSerializer fallback(Object messageOrSerializedMessage) {
+        if (fallback == null)
+            throw new IllegalArgumentException("No codec registered for " + messageOrSerializedMessage +
+                    ", and no fallback serializer specified");
+        return fallback;
+    }
+
+    private boolean isFormatted(byte[] bytes) {
+        return bytes.length > 0 && ((bytes[0] & 0xFF) == FORMAT || (bytes[0] & 0xFF) == FALLBACK_STRING_FORMAT);
+    }
+
+    // Variable length, seven bits per byte, so tags below 128 take a single byte
+    private static void writeTag(int tag, DataOutput out) throws IOException {
+        while ((tag & ~0x7F) != 0) {
+            out.writeByte((tag & 0x7F) | 0x80);
+            tag >>>= 7;
+        }
+        out.writeByte(tag);
+    }
+
+    private static int readTag(DataInput in) throws IOException {
+        int tag = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            tag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return tag;
+        }
+        throw new DeserilizationFailed("Malformed tag");
+    }
+
+    private static final class Registration<M> {
+        final int tag;
+        final Class<M> type;
+        final MessageCodec<M> codec;
+
+        Registration(int tag, Class<M> type, MessageCodec<M> codec) {
+            this.tag = tag;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        void write(Object message, DataOutput out) throws IOException {
+            codec.write(type.cast(message), out);
+        }
+    }
+
+    public static final class Builder {
+        private final Map<Class<?>, Registration<?>> registrationByType = new HashMap<Class<?>, Registration<?>>();
+        private final Map<Integer, Registration<?>> registrationByTag = new HashMap<Integer, Registration<?>>();
+        private MessageSerializer fallback;
+
+        private Builder() {
+        }
+
+        /**
+         * Registers a message type, with the codec writing and reading messages of the type.
+         *
+         * @param tag   the tag identifying the type in serialized messages. Must be zero or greater, and unique.
+         *              Tags below 128 take a single byte.
+         * @param type  the type of the messages. Must not be null, and not already registered.
+         * @param codec the codec writing and reading messages of the type. Must not be null.
+         * @param <M>   the type of the messages
+         * @return the builder, so methods can be chained
+         */
+        public <M> Builder register(int tag, Class<M> type, MessageCodec<M> codec) {
+            Is.zeroOrGreater(tag, "tag must be zero or greater");
+            Is.notNull(type, "type must not be null");
+            Is.notNull(codec, "codec must not be null");
+            if (registrationByTag.containsKey(tag))
+                throw new IllegalArgumentException("Tag " + tag + " is already registered");
+            if (registrationByType.containsKey(type))
+                throw new IllegalArgumentException("Type " + type.getName() + " is already registered");
+            Registration<M> registration = new Registration<M>(tag, type, codec);
+            registrationByTag.put(tag, registration);
+            registrationByType.put(type, registration);
+            return this;
+        }
+
+        /**
+         * Specify the serializer to use for messages of types not registered, and for deserializing messages not
+         * serialized by a codec.
+         * <p>
+         * If not specified, serializing a message of a type not registered fails with an
+         * {@link IllegalArgumentException}.
+         * </p>
+         *
+         * @param fallback the fallback serializer. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder fallback(MessageSerializer fallback) {
+            Is.notNull(fallback, "fallback must not be null");
+            this.fallback = fallback;
+            return this;
+        }
+
+        /**
+         * Creates the {@link CodecMessageSerializer}, based on how the builder's been configured.
+         *
+         * @return the serializer
+         */
+        public CodecMessageSerializer build() {
+            return new CodecMessageSerializer(this);
+        }
+    }
+}
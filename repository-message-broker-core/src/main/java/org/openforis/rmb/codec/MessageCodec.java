@@ -0,0 +1,33 @@
+package org.openforis.rmb.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads messages of a specific type, registered with a {@link CodecMessageSerializer}.
+ * <p>
+ * Only the fields of the message are written. The type is identified by the tag it's registered with.
+ * </p>
+ *
+ * @param <M> the type of the message
+ */
+public interface MessageCodec<M> {
+    /**
+     * Write the message.
+     *
+     * @param message the message to write
+     * @param out     the output to write to
+     * @throws IOException if writing failed
+     */
+    void write(M message, DataOutput out) throws IOException;
+
+    /**
+     * Read a message, written by {@link #write(Object, DataOutput)}.
+     *
+     * @param in the input to read from
+     * @return the message
+     * @throws IOException if reading failed
+     */
+    M read(DataInput in) throws IOException;
+}
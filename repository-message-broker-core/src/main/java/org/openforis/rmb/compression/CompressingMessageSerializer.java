@@ -0,0 +1,144 @@
+package org.openforis.rmb.compression;
+
+import org.openforis.rmb.spi.MessageSerializer;
+import org.openforis.rmb.util.Is;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decorates a {@link MessageSerializer}, compressing serialized messages above a size threshold.
+ * <p>
+ * Compressed messages are stored as byte[]: a five byte header followed by the DEFLATE compressed message.
+ * The header identifies the message as compressed, and tells whether the decorated serializer returned a String
+ * or a byte[]. Messages below the threshold, or that don't get any smaller, are returned as serialized by the
+ * decorated serializer. Messages serialized before the decorator was introduced can therefore still be
+ * deserialized, as long as a byte[] returned by the decorated serializer never starts with the header.
+ * </p>
+ * <p>
+ * <strong>Usage example:</strong>
+ * </p>
+ * <pre>
+ * {@code
+ * RepositoryMessageBroker.builder(messageRepository, transactionSynchronizer)
+ *     .messageSerializer(new CompressingMessageSerializer(new XStreamMessageSerializer(), 1024))
+ *     .build();
+ * }
+ * </pre>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class CompressingMessageSerializer implements MessageSerializer {
+    /**
+     * The default threshold, in bytes or characters, above which serialized messages are compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final byte[] MAGIC = {'R', 'M', 'B', 'Z'};
+    private static final byte STRING = 'S';
+    private static final byte BYTES = 'B';
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageSerializer serializer;
+    private final int threshold;
+
+    /**
+     * Creates an instance, compressing messages above {@link #DEFAULT_THRESHOLD}.
+     *
+     * @param serializer the serializer to decorate. Must not be null.
+     */
+    public CompressingMessageSerializer(MessageSerializer serializer) {
+        this(serializer, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param serializer the serializer to decorate. Must not be null.
+     * @param threshold  the length, in bytes for byte[] and characters for String, above which serialized messages
+     *                   are compressed. Must be zero or greater.
+     */
+    public CompressingMessageSerializer(MessageSerializer serializer, int threshold) {
+        Is.notNull(serializer, "serializer must not be null");
+        Is.zeroOrGreater(threshold, "threshold must be zero or greater");
+        this.serializer = serializer;
+        this.threshold = threshold;
+    }
+
+    public Object serialize(Object message) throws SerializationFailed {
+        Object serializedMessage = serializer.serialize(message);
+        if (serializedMessage instanceof String) {
+            String s = (String) serializedMessage;
+            return s.length() > threshold ? compress(s.getBytes(UTF_8), STRING, s) : s;
+        }
+        if (serializedMessage instanceof byte[]) {
+            byte[] bytes = (byte[]) serializedMessage;
+            return bytes.length > threshold ? compress(bytes, BYTES, bytes) : bytes;
+        }
+        return serializedMessage;
+    }
+
+    public Object deserialize(Object serializedMessage) throws DeserilizationFailed {
+        if (serializedMessage instanceof byte[] && isCompressed((byte[]) serializedMessage)) {
+            byte[] bytes = (byte[]) serializedMessage;
+            byte[] decompressed = decompress(bytes);
+            return serializer.deserialize(bytes[MAGIC.length] == STRING
+                    ? new String(decompressed, UTF_8)
+                    : decompressed);
+        }
+        return serializer.deserialize(serializedMessage);
+    }
+
+    // Returns the uncompressed message if compressing doesn't make it smaller
+    private Object compress(byte[] bytes, byte type, Object uncompressed) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + bytes.length / 4);
+            out.write(MAGIC, 0, MAGIC.length);
+            out.write(type);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= bytes.length)
+                    return uncompressed;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end(); // Releases native memory right away, instead of when finalized
+        }
+    }
+
+    private byte[] decompress(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DeserilizationFailed("Compressed message is truncated");
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new DeserilizationFailed("Failed to decompress message", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private boolean isCompressed(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH
+                && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)
+                && (bytes[MAGIC.length] == STRING || bytes[MAGIC.length] == BYTES);
+    }
+}
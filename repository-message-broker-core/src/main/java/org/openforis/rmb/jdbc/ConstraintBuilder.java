@@ -15,13 +15,16 @@ import java.util.List;
 class ConstraintBuilder {
     private final Collection<MessageConsumer<?>> consumers;
     private final MessageProcessingFilter filter;
+    private final JdbcDialect dialect;
     private final Clock clock;
     private final StringBuilder whereClause = new StringBuilder();
     private int i = 0;
 
-    public ConstraintBuilder(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter, Clock clock) {
+    public ConstraintBuilder(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter,
+                             JdbcDialect dialect, Clock clock) {
         this.consumers = consumers;
         this.filter = filter;
+        this.dialect = dialect;
         this.clock = clock;
         consumers();
         states();
@@ -47,14 +50,14 @@ class ConstraintBuilder {
     }
 
     private void consumers() {
-        whereClause.append("\nconsumer_id in (")
-                .append(questionMarks(consumers.size()))
-                .append(")");
+        whereClause.append('\n').append(dialect.in("consumer_id", consumers.size()));
     }
 
     private void consumers(PreparedStatement ps) throws SQLException {
+        List<String> consumerIds = new ArrayList<String>();
         for (MessageConsumer<?> consumer : consumers)
-            ps.setString(nextIndex(), consumer.getId());
+            consumerIds.add(consumer.getId());
+        setIn(ps, consumerIds);
     }
 
     private void states() {
@@ -133,15 +136,13 @@ class ConstraintBuilder {
     private void messageIds() {
         if (filter.getMessageIds().isEmpty())
             return;
-        whereClause.append("\nAND message_id in (").append(questionMarks(filter.getMessageIds().size())).append(')');
-
+        whereClause.append("\nAND ").append(dialect.in("message_id", filter.getMessageIds().size()));
     }
 
     private void messageIds(PreparedStatement ps) throws SQLException {
         if (filter.getMessageIds().isEmpty())
             return;
-        for (String messageId : filter.getMessageIds())
-            ps.setString(nextIndex(), messageId);
+        setIn(ps, filter.getMessageIds());
     }
 
     private boolean includeTimedOut() {
@@ -156,6 +157,10 @@ class ConstraintBuilder {
         return result;
     }
 
+    private void setIn(PreparedStatement ps, Collection<String> values) throws SQLException {
+        i = dialect.setIn(ps, i + 1, values) - 1;
+    }
+
     private int nextIndex() {
         return ++i;
     }
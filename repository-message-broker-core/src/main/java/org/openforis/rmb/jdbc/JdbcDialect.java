@@ -0,0 +1,207 @@
+package org.openforis.rmb.jdbc;
+
+import org.openforis.rmb.util.Is;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Array;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * The vendor-specific SQL used by {@link JdbcMessageRepository}. This lets each database use its fastest constructs,
+ * while other databases fall back on plain JDBC.
+ * <p>
+ * Unless a dialect is specified through {@link JdbcMessageRepository.Builder#dialect(JdbcDialect)}, it's detected
+ * from the {@link DatabaseMetaData} of the first connection used, through {@link #detect(DatabaseMetaData)}.
+ * </p>
+ * <p>
+ * Extend this class to support a database not supported out of the box. Overridden methods must keep the
+ * semantics documented here.
+ * </p>
+ */
+public class JdbcDialect {
+    /**
+     * Plain JDBC, to be used for databases without a specific dialect.
+     * Row limits rely on {@link java.sql.Statement#setMaxRows(int)}, and byte[] are bound as blobs.
+     */
+    public static final JdbcDialect GENERIC = new JdbcDialect("Generic");
+
+    /**
+     * PostgreSQL: {@code LIMIT}, {@code UPDATE ... FROM (VALUES ...) ... RETURNING}, {@code SKIP LOCKED},
+     * bytea binding and array parameters.
+     */
+    public static final JdbcDialect POSTGRESQL = new JdbcDialect("PostgreSQL") {
+        public String limit() {
+            return "LIMIT ?";
+        }
+
+        public boolean supportsUpdateReturning() {
+            return true;
+        }
+
+        public boolean supportsSkipLocked() {
+            return true;
+        }
+
+        public void setBytes(PreparedStatement ps, int parameterIndex, byte[] bytes) throws SQLException {
+            ps.setBytes(parameterIndex, bytes);
+        }
+
+        public String in(String column, int valueCount) {
+            return column + " = ANY(?)";
+        }
+
+        public int setIn(PreparedStatement ps, int parameterIndex, Collection<String> values) throws SQLException {
+            Array array = ps.getConnection().createArrayOf("varchar", values.toArray());
+            ps.setArray(parameterIndex, array);
+            return parameterIndex + 1;
+        }
+    };
+
+    /**
+     * H2: {@code LIMIT} and binary binding.
+     */
+    public static final JdbcDialect H2 = new JdbcDialect("H2") {
+        public String limit() {
+            return "LIMIT ?";
+        }
+
+        public void setBytes(PreparedStatement ps, int parameterIndex, byte[] bytes) throws SQLException {
+            ps.setBytes(parameterIndex, bytes);
+        }
+    };
+
+    /**
+     * MySQL 8 and later: {@code LIMIT}, {@code SKIP LOCKED} and binary binding.
+     */
+    public static final JdbcDialect MYSQL = new JdbcDialect("MySQL") {
+        public String limit() {
+            return "LIMIT ?";
+        }
+
+        public boolean supportsSkipLocked() {
+            return true;
+        }
+
+        public void setBytes(PreparedStatement ps, int parameterIndex, byte[] bytes) throws SQLException {
+            ps.setBytes(parameterIndex, bytes);
+        }
+    };
+
+    /**
+     * Oracle 12c and later: {@code FETCH FIRST}.
+     */
+    public static final JdbcDialect ORACLE = new JdbcDialect("Oracle") {
+        public String limit() {
+            return "FETCH FIRST ? ROWS ONLY";
+        }
+    };
+
+    private final String name;
+
+    /**
+     * Creates a dialect.
+     *
+     * @param name the name of the dialect, used in {@link #toString()}. Must be specified.
+     */
+    protected JdbcDialect(String name) {
+        Is.hasText(name, "name must be specified");
+        this.name = name;
+    }
+
+    /**
+     * Detects the dialect from database meta-data.
+     *
+     * @param metaData the meta-data of a connection to the database. Must not be null.
+     * @return the dialect of the database, or {@link #GENERIC} if the database has no specific dialect
+     * @throws SQLException if the meta-data couldn't be read
+     */
+    public static JdbcDialect detect(DatabaseMetaData metaData) throws SQLException {
+        Is.notNull(metaData, "metaData must not be null");
+        String productName = metaData.getDatabaseProductName();
+        if ("PostgreSQL".equals(productName))
+            return POSTGRESQL;
+        if ("H2".equals(productName))
+            return H2;
+        if ("MySQL".equals(productName))
+            return MYSQL;
+        if ("Oracle".equals(productName))
+            return ORACLE;
+        return GENERIC;
+    }
+
+    /**
+     * The clause to append to a query, limiting the number of rows to the value of a single parameter.
+     *
+     * @return the clause, or null if the database has no such clause
+     */
+    public String limit() {
+        return null;
+    }
+
+    /**
+     * Determines if the database supports {@code UPDATE ... FROM (VALUES ...) ... RETURNING}, used for claiming taken
+     * messages in a single statement.
+     *
+     * @return true if supported
+     */
+    public boolean supportsUpdateReturning() {
+        return false;
+    }
+
+    /**
+     * Determines if the database supports {@code FOR UPDATE OF ... SKIP LOCKED}, combined with {@link #limit()}.
+     *
+     * @return true if supported
+     */
+    public boolean supportsSkipLocked() {
+        return false;
+    }
+
+    /**
+     * Binds a byte[] parameter, stored in a binary column.
+     *
+     * @param ps             the statement to bind the parameter to
+     * @param parameterIndex the index of the parameter
+     * @param bytes          the value to bind
+     * @throws SQLException if binding failed
+     */
+    public void setBytes(PreparedStatement ps, int parameterIndex, byte[] bytes) throws SQLException {
+        ps.setBlob(parameterIndex, new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * A condition matching a column against any of a number of string values.
+     *
+     * @param column     the column to match
+     * @param valueCount the number of values to match against
+     * @return the condition
+     */
+    public String in(String column, int valueCount) {
+        StringBuilder s = new StringBuilder(column).append(" in (");
+        for (int i = 0; i < valueCount; i++)
+            s.append(i == 0 ? "?" : ", ?");
+        return s.append(')').toString();
+    }
+
+    /**
+     * Binds the values of a condition created by {@link #in(String, int)}.
+     *
+     * @param ps             the statement to bind the parameters to
+     * @param parameterIndex the index of the first parameter
+     * @param values         the values to bind
+     * @return the index of the parameter following the bound ones
+     * @throws SQLException if binding failed
+     */
+    public int setIn(PreparedStatement ps, int parameterIndex, Collection<String> values) throws SQLException {
+        for (String value : values)
+            ps.setString(parameterIndex++, value);
+        return parameterIndex;
+    }
+
+    public String toString() {
+        return "JdbcDialect{" + name + '}';
+    }
+}
@@ -9,6 +9,8 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 // @formatter:off
 /**
@@ -23,11 +25,24 @@ import java.util.Map;
  * returning the JDBC connections from the current transaction.
  * </p>
  * <p>
+ * Vendor-specific SQL is provided by a {@link JdbcDialect}, detected from the database unless specified.
+ * On PostgreSQL, the messages taken by a consumer are claimed with a single {@code UPDATE ... RETURNING} statement.
+ * Other databases fall back on updating and committing the messages one by one.
+ * </p>
+ * <p>
  * A table prefix needs to be specified. The prefix will be prepended to all table names.
  * </p>
  * <p>
+ * Instances of this class are created either through the constructor, or through a builder:
+ * {@link #builder(JdbcConnectionManager, String)}, which allows the repository to be further configured.
+ * </p>
+ * <p>
  * This class is immutable.
  * </p>
+ * <p>
+ * The schema for PostgreSQL, H2, MySQL and Oracle can be generated by {@link JdbcSchema}. When the message broker is
+ * started, the repository verifies that the tables, columns and indexes exist.
+ * </p>
  * <strong>Schema for PostgreSQL, with 'example_' as table prefix:</strong>
  * <pre>
  * {@code
@@ -54,19 +69,65 @@ import java.util.Map;
           PRIMARY KEY (message_id, consumer_id),
           FOREIGN KEY (message_id) REFERENCES example_message (id)
         );
+
+        CREATE INDEX example_message_idx ON example_message (sequence_no);
+
+        CREATE INDEX example_message_processing_idx ON example_message_processing (consumer_id, state, times_out);
  * }
  * </pre>
  *
  */
 // @formatter:on
-public final class JdbcMessageRepository implements MessageRepository {
+public final class JdbcMessageRepository
+        implements VerifiableMessageRepository, StreamingMessageRepository,
+        BatchAddingMessageRepository, BatchUpdatingMessageRepository {
     private final JdbcConnectionManager connectionManager;
     private final String tablePrefix;
+    private final boolean singleStatementTake;
+    private final boolean skipLockedTake;
+    private final long orphanedMessageSweepPeriodMillis;
+    private final long timedOutMessageScanPeriodMillis;
+    private final MessageIdGenerator messageIdGenerator;
+    private final boolean counterVersionIds;
+    private final boolean consumerPartitions;
+    private final boolean streamedMessages;
+    private final AtomicLong lastOrphanedMessageSweep = new AtomicLong();
+    private final AtomicLong lastTimedOutMessageScan = new AtomicLong();
     private Clock clock = new Clock.SystemClock();
+    private volatile JdbcDialect dialect;
+    private volatile SqlStatements sql;
 
     public JdbcMessageRepository(JdbcConnectionManager connectionManager, String tablePrefix) {
-        this.connectionManager = connectionManager;
-        this.tablePrefix = tablePrefix;
+        this(builder(connectionManager, tablePrefix));
+    }
+
+    private JdbcMessageRepository(Builder builder) {
+        this.connectionManager = builder.connectionManager;
+        this.tablePrefix = builder.tablePrefix;
+        this.singleStatementTake = builder.singleStatementTake;
+        this.skipLockedTake = builder.skipLockedTake;
+        this.orphanedMessageSweepPeriodMillis = builder.orphanedMessageSweepPeriodMillis;
+        this.timedOutMessageScanPeriodMillis = builder.timedOutMessageScanPeriodMillis;
+        this.messageIdGenerator = builder.timeOrderedMessageIds
+                ? MessageIdGenerator.timeOrdered()
+                : MessageIdGenerator.RANDOM_UUID;
+        this.counterVersionIds = builder.counterVersionIds;
+        this.consumerPartitions = builder.consumerPartitions;
+        this.streamedMessages = builder.streamedMessages;
+        this.dialect = builder.dialect;
+    }
+
+    /**
+     * Provides a builder for creating {@link JdbcMessageRepository}s.
+     *
+     * @param connectionManager the connection manager providing JDBC connections. Must not be null.
+     * @param tablePrefix       the prefix to prepend to all table names. Must not be null.
+     * @return the builder
+     */
+    public static Builder builder(JdbcConnectionManager connectionManager, String tablePrefix) {
+        Is.notNull(connectionManager, "connectionManager must not be null");
+        Is.notNull(tablePrefix, "tablePrefix must not be null");
+        return new Builder(connectionManager, tablePrefix);
     }
 
     void setClock(Clock clock) {
@@ -82,42 +143,98 @@ public final class JdbcMessageRepository implements MessageRepository {
         Is.hasText(queueId, "queueId must be specified");
         Is.notEmpty(consumers, "consumers must not be empty");
         Is.notNull(serializedMessage, "serializedMessage must not be null");
-        withConnection(new ConnectionCallback() {
-            public Void execute(Connection connection) throws SQLException {
-                new MessageAdder(connection, tablePrefix, clock)
+        withConnection(new ConnectionCallback<Void>() {
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new MessageAdder(statements, sql, clock, messageIdGenerator, counterVersionIds)
                         .add(queueId, consumers, serializedMessage);
                 return null;
             }
         });
     }
 
+    public void addAll(
+            final String queueId,
+            final List<MessageConsumer<?>> consumers,
+            final List<Object> serializedMessages
+    ) {
+        Is.hasText(queueId, "queueId must be specified");
+        Is.notEmpty(consumers, "consumers must not be empty");
+        Is.notNull(serializedMessages, "serializedMessages must not be null");
+        if (serializedMessages.isEmpty())
+            return;
+        withConnection(new ConnectionCallback<Void>() {
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new MessageAdder(statements, sql, clock, messageIdGenerator, counterVersionIds)
+                        .addAll(queueId, consumers, serializedMessages);
+                return null;
+            }
+        });
+    }
+
     public void take(
             final Map<MessageConsumer<?>, Integer> maxCountByConsumer,
             final MessageTakenCallback callback
     ) {
         Is.notEmpty(maxCountByConsumer, "maxCountByConsumer must not be empty");
         Is.notNull(callback, "callback must not be null");
-        withConnection(new ConnectionCallback() {
-            public Void execute(Connection connection) throws SQLException {
-                new MessageTaker(connection, tablePrefix, clock)
+        final boolean timedOutMessageScan = due(lastTimedOutMessageScan, timedOutMessageScanPeriodMillis);
+        inTransaction(new ConnectionCallback<Void>() {
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new MessageTaker(statements, sql, clock,
+                        singleStatementTake, skipLockedTake, streamedMessages, timedOutMessageScan)
                         .take(maxCountByConsumer, callback);
                 return null;
             }
         });
+        sweepOrphanedMessagesIfDue();
+    }
+
+    // Piggybacks on take, since it is regularly invoked by the message broker from a background thread
+    private void sweepOrphanedMessagesIfDue() {
+        if (!due(lastOrphanedMessageSweep, orphanedMessageSweepPeriodMillis))
+            return;
+        inTransaction(new ConnectionCallback<Void>() {
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new OrphanedMessageSweeper(statements, sql, clock)
+                        .sweep();
+                return null;
+            }
+        });
+    }
+
+    // At most once per period, even when taking concurrently. Never, if no period is specified.
+    private boolean due(AtomicLong lastRun, long periodMillis) {
+        if (periodMillis <= 0)
+            return false;
+        long now = clock.millis();
+        long last = lastRun.get();
+        return now - last >= periodMillis && lastRun.compareAndSet(last, now);
     }
 
     public boolean update(
             final MessageProcessingUpdate update
     ) {
         Is.notNull(update, "update must not be null");
-        return withConnection(new ConnectionCallback<Boolean>() {
-            public Boolean execute(Connection connection) throws SQLException {
-                return new MessageProcessingUpdater(connection, tablePrefix, clock)
+        return inTransaction(new ConnectionCallback<Boolean>() {
+            public Boolean execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                return new MessageProcessingUpdater(statements, sql, clock)
                         .update(update);
             }
         });
     }
 
+    public List<Boolean> updateAll(
+            final List<MessageProcessingUpdate> updates
+    ) {
+        Is.notEmpty(updates, "updates must not be empty");
+        return inTransaction(new ConnectionCallback<List<Boolean>>() {
+            public List<Boolean> execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                return new MessageProcessingUpdater(statements, sql, clock)
+                        .update(updates);
+            }
+        });
+    }
+
     public void findMessageProcessing(
             final Collection<MessageConsumer<?>> consumers,
             final MessageProcessingFilter filter,
@@ -127,8 +244,8 @@ public final class JdbcMessageRepository implements MessageRepository {
         Is.notNull(filter, "filter must not be null");
         Is.notNull(callback, "callback must not be null");
         withConnection(new ConnectionCallback<Void>() {
-            public Void execute(Connection connection) throws SQLException {
-                new MessageProcessingFinder(connection, tablePrefix, clock)
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new MessageProcessingFinder(statements, sql, clock)
                         .find(consumers, filter, callback);
                 return null;
             }
@@ -142,8 +259,9 @@ public final class JdbcMessageRepository implements MessageRepository {
         Is.notEmpty(consumers, "consumers must not be empty");
         Is.notNull(filter, "filter must not be null");
         return withConnection(new ConnectionCallback<Map<MessageConsumer<?>, Integer>>() {
-            public Map<MessageConsumer<?>, Integer> execute(Connection connection) throws SQLException {
-                return new MessageCounter(connection, tablePrefix, clock)
+            public Map<MessageConsumer<?>, Integer> execute(StatementCache statements, SqlStatements sql)
+                    throws SQLException {
+                return new MessageCounter(statements, sql, clock)
                         .countByConsumer(consumers, filter);
             }
         });
@@ -155,29 +273,321 @@ public final class JdbcMessageRepository implements MessageRepository {
     ) {
         Is.notEmpty(consumers, "consumers must not be empty");
         Is.notNull(filter, "filter must not be null");
-        withConnection(new ConnectionCallback<Void>() {
-            public Void execute(Connection connection) throws SQLException {
-                new MessageDeleter(connection, tablePrefix, clock)
+        inTransaction(new ConnectionCallback<Void>() {
+            public Void execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                new MessageDeleter(statements, sql, clock, consumerPartitions)
                         .delete(consumers, filter);
                 return null;
             }
         });
     }
 
+    /**
+     * Verifies that the tables, columns and indexes of {@link JdbcSchema} exist.
+     *
+     * @return descriptions of what's missing, or an empty list if nothing is missing
+     */
+    public List<String> verify() {
+        return withConnection(new ConnectionCallback<List<String>>() {
+            public List<String> execute(StatementCache statements, SqlStatements sql) throws SQLException {
+                return new SchemaVerifier(statements, sql, clock)
+                        .verify();
+            }
+        });
+    }
+
+    // Built once, since the SQL only depends on the table prefix and the dialect
+    private SqlStatements sql(Connection connection) throws SQLException {
+        if (sql == null)
+            sql = new SqlStatements(tablePrefix, dialect(connection));
+        return sql;
+    }
+
+    // Unless specified, detected once from the first connection, since all connections are to the same database
+    private JdbcDialect dialect(Connection connection) throws SQLException {
+        if (dialect == null)
+            dialect = JdbcDialect.detect(connection.getMetaData());
+        return dialect;
+    }
+
+    // For operations joining the transaction of the caller, which is left to the caller to roll back
     private <T> T withConnection(ConnectionCallback<T> callback) {
+        return withConnection(callback, false);
+    }
+
+    // For operations committing their own transaction, which is rolled back if they fail
+    private <T> T inTransaction(ConnectionCallback<T> callback) {
+        return withConnection(callback, true);
+    }
+
+    private <T> T withConnection(ConnectionCallback<T> callback, boolean rollbackOnFailure) {
         Connection connection = null;
+        StatementCache statements = null;
         try {
             connection = connectionManager.getConnection();
             connection.setAutoCommit(false);
-            return callback.execute(connection);
+            statements = new StatementCache(connection);
+            return callback.execute(statements, sql(connection));
         } catch (SQLException e) {
+            if (rollbackOnFailure)
+                rollback(connection);
             throw new MessageRepositoryException(e);
+        } catch (RuntimeException e) {
+            if (rollbackOnFailure)
+                rollback(connection);
+            throw e;
         } finally {
+            closeStatements(statements);
             connectionManager.releaseConnection(connection);
         }
     }
 
+    private void rollback(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.rollback();
+        } catch (SQLException ignore) {
+            // Rolling back is best effort, and must not hide the exception that caused it
+        }
+    }
+
+    private void closeStatements(StatementCache statements) {
+        if (statements == null)
+            return;
+        try {
+            statements.close();
+        } catch (SQLException ignore) {
+            // Closing statements is best effort, and must not hide an exception from the callback
+        }
+    }
+
     private interface ConnectionCallback<T> {
-        T execute(Connection connection) throws SQLException;
+        T execute(StatementCache statements, SqlStatements sql) throws SQLException;
+    }
+
+    /**
+     * Builds {@link JdbcMessageRepository} instances. Configure the {@link JdbcMessageRepository} to build through
+     * the chainable builder methods, then finally call {@link #build()}.
+     * <p>
+     * If building the repository without configuring the builder, it behaves just like a repository created through
+     * {@link JdbcMessageRepository#JdbcMessageRepository(JdbcConnectionManager, String)}.
+     * </p>
+     * <p>
+     * Instances of this class are created through {@link JdbcMessageRepository#builder(JdbcConnectionManager, String)}.
+     * </p>
+     */
+    public static final class Builder {
+        private final JdbcConnectionManager connectionManager;
+        private final String tablePrefix;
+        private boolean singleStatementTake;
+        private boolean skipLockedTake;
+        private long orphanedMessageSweepPeriodMillis;
+        private long timedOutMessageScanPeriodMillis;
+        private boolean timeOrderedMessageIds;
+        private boolean counterVersionIds;
+        private boolean consumerPartitions;
+        private boolean streamedMessages;
+        private JdbcDialect dialect;
+
+        private Builder(JdbcConnectionManager connectionManager, String tablePrefix) {
+            this.connectionManager = connectionManager;
+            this.tablePrefix = tablePrefix;
+        }
+
+        /**
+         * Specify that messages for all consumers should be taken with a single query, instead of one query per
+         * consumer. The candidate messages of each consumer are selected by a {@code LIMIT}ed sub-query, and the
+         * sub-queries are combined with {@code UNION ALL}.
+         * <p>
+         * This reduces the number of round-trips when polling for messages for many consumers. It requires the
+         * {@link JdbcDialect} to provide a row limit clause, usable in sub-queries. Otherwise messages are taken with
+         * one query per consumer.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder singleStatementTake() {
+            this.singleStatementTake = true;
+            return this;
+        }
+
+        /**
+         * Specify that messages should be claimed using {@code SELECT ... FOR UPDATE SKIP LOCKED}. Rows being claimed
+         * by another node are skipped instead of read, and the messages taken by one take are all claimed in a
+         * single transaction. This prevents nodes in a cluster from racing for the same messages.
+         * <p>
+         * Only messages among the first {@link MessageConsumer#getMessagesHandledInParallel()} plus
+         * {@link MessageConsumer#getPrefetchCount()} pending or processing messages of a consumer are claimed, so the
+         * number of messages handled or prefetched is bounded in a cluster. With prefetch, up to messages handled in
+         * parallel plus prefetch count messages can therefore be handled at the same time across the cluster, rather
+         * than messages handled in parallel.
+         * </p>
+         * <p>
+         * This requires the {@link JdbcDialect} to support {@code FOR UPDATE OF ... SKIP LOCKED}, such as PostgreSQL
+         * 9.5+ and MySQL 8.0+, and is ignored otherwise. Takes are made with one query per consumer, even if
+         * {@link #singleStatementTake()} is specified.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder skipLockedTake() {
+            this.skipLockedTake = true;
+            return this;
+        }
+
+        /**
+         * Specify that messages no longer having any message processing should be swept from the message table
+         * periodically.
+         * <p>
+         * When a message is completed, the message is deleted together with its message processing if no other
+         * consumer still has it. Completions of the same message by multiple consumers are serialized by locking the
+         * message row, so the last one deletes the message. Messages might still be left behind, for instance by
+         * earlier versions of this library. The sweep deletes such messages. It's made as part of taking messages, at
+         * most once per period, so it's run in the background by the message broker.
+         * </p>
+         * <p>
+         * If not specified, no sweep is made.
+         * </p>
+         *
+         * @param period   how often to sweep. Must be greater than zero.
+         * @param timeUnit the time unit of the period. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder orphanedMessageSweepPeriod(long period, TimeUnit timeUnit) {
+            Is.greaterThenZero(period, "period must be greater than zero");
+            Is.notNull(timeUnit, "timeUnit must not be null");
+            this.orphanedMessageSweepPeriodMillis = timeUnit.toMillis(period);
+            return this;
+        }
+
+        /**
+         * Specify that messages whose processing has timed out should be scanned for periodically, and taken
+         * before any new messages.
+         * <p>
+         * Messages are otherwise only taken among the first pending or processing messages of a consumer. Messages
+         * left processing by a crashed node are then only found once they reach the head of the queue, and the rows
+         * still being processed by other nodes are read on every take. The scan instead selects just the rows with
+         * an expired lease, through the {@code (consumer_id, state, times_out)} index, and claims them in bulk.
+         * It's made as part of taking messages, at most once per period, limited to the number of messages to take.
+         * </p>
+         * <p>
+         * If not specified, no scan is made.
+         * </p>
+         *
+         * @param period   how often to scan. Must be greater than zero.
+         * @param timeUnit the time unit of the period. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder timedOutMessageScanPeriod(long period, TimeUnit timeUnit) {
+            Is.greaterThenZero(period, "period must be greater than zero");
+            Is.notNull(timeUnit, "timeUnit must not be null");
+            this.timedOutMessageScanPeriodMillis = timeUnit.toMillis(period);
+            return this;
+        }
+
+        /**
+         * Specify that messages should get compact, time-ordered ids, instead of random UUIDs.
+         * <p>
+         * The ids are 26 characters long, instead of 36, and made up of the time the message was added followed by
+         * random bits. Since they sort in the order they were generated, new rows are appended to the primary key
+         * indexes of both tables, which are also smaller. Random UUIDs are instead inserted all over the indexes.
+         * The ids fit the columns of the existing schema, and can be mixed with random UUIDs already in the tables.
+         * </p>
+         * <p>
+         * If not specified, messages get random UUIDs as ids.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder timeOrderedMessageIds() {
+            this.timeOrderedMessageIds = true;
+            return this;
+        }
+
+        /**
+         * Specify that the processing of messages should be versioned by a counter, instead of random UUIDs.
+         * <p>
+         * Each update, made only if the version is unchanged, then increments the counter instead of generating a new
+         * random UUID. Random UUIDs come from a shared {@link java.security.SecureRandom}, whose lock is contended
+         * when many workers update messages at the same time.
+         * The counter is stored in the existing version_id column. Processing already in the table keep being
+         * versioned by random UUIDs.
+         * </p>
+         * <p>
+         * If not specified, the processing of messages is versioned by random UUIDs.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder counterVersionIds() {
+            this.counterVersionIds = true;
+            return this;
+        }
+
+        /**
+         * Specify that message_processing is partitioned by consumer, as created by
+         * {@link JdbcSchema#partitionedByConsumer(String...)}. Only supported on PostgreSQL.
+         * <p>
+         * When all messages of a consumer with its own partition are deleted, the partition is truncated instead of
+         * deleting its rows one by one. This avoids the bloat and vacuuming of deleting a large backlog. The truncate
+         * is committed on its own, before the messages of the truncated rows are deleted, unless other consumers still
+         * have them. Consumers without a partition of their own get their rows deleted as usual.
+         * </p>
+         * <p>
+         * If not specified, rows are always deleted.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder consumerPartitions() {
+            this.consumerPartitions = true;
+            return this;
+        }
+
+        /**
+         * Specify that byte[] messages should be handed over as streams when taken, read straight from the
+         * database, instead of first being copied into a byte[].
+         * <p>
+         * Since the stream is only valid while the result set is open, the message broker copies such messages into
+         * chunks of bounded size on the thread taking messages, and deserializes them on the worker threads.
+         * Combined with a {@link org.openforis.rmb.spi.StreamingMessageSerializer}, large messages are never copied
+         * into a single large byte[], on drivers streaming binary columns.
+         * </p>
+         * <p>
+         * If not specified, messages are read into a byte[] or String.
+         * </p>
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder streamedMessages() {
+            this.streamedMessages = true;
+            return this;
+        }
+
+        /**
+         * Specify the {@link JdbcDialect} providing vendor-specific SQL.
+         * <p>
+         * If not specified, the dialect is detected from the database, through
+         * {@link JdbcDialect#detect(java.sql.DatabaseMetaData)}.
+         * </p>
+         *
+         * @param dialect the dialect to use. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder dialect(JdbcDialect dialect) {
+            Is.notNull(dialect, "dialect must not be null");
+            this.dialect = dialect;
+            return this;
+        }
+
+        /**
+         * Builds the {@link JdbcMessageRepository}, based on how the builder's been configured.
+         *
+         * @return the repository instance
+         */
+        public JdbcMessageRepository build() {
+            return new JdbcMessageRepository(this);
+        }
     }
 }
\ No newline at end of file
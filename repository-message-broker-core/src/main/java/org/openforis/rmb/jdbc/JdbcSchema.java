@@ -0,0 +1,307 @@
+package org.openforis.rmb.jdbc;
+
+import org.openforis.rmb.util.Is;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// @formatter:off
+/**
+ * Generates the schema needed by {@link JdbcMessageRepository}, for a specific database.
+ * <p>
+ * In addition to the tables, the schema includes the indexes needed to take, count and time out messages without
+ * scanning the tables:
+ * </p>
+ * <ul>
+ * <li>{@code message_processing(consumer_id, state, times_out)}, used when taking messages, counting messages by
+ * consumer and state, and when finding timed out messages.
+ * <li>{@code message(sequence_no)}, used when taking messages in publication order.
+ * </ul>
+ * <p>
+ * On PostgreSQL, {@code message_processing} can be partitioned by consumer, through
+ * {@link #partitionedByConsumer(String...)}.
+ * </p>
+ * <strong>Usage example:</strong>
+ * <pre>
+ * {@code
+
+    String script = new JdbcSchema(JdbcSchema.Database.POSTGRESQL, "example_").script();
+ * }
+ * </pre>
+ * <p>
+ * This class is immutable.
+ * </p>
+ */
+// @formatter:on
+public final class JdbcSchema {
+    static final Map<String, List<String>> COLUMNS_BY_TABLE;
+    static final Map<String, List<String>> INDEX_BY_TABLE;
+
+    private static final List<String> SEQUENCE_NO = Collections.singletonList("sequence_no");
+    private static final int MAX_POSTGRESQL_IDENTIFIER_LENGTH = 63;
+
+    static {
+        Map<String, List<String>> columnsByTable = new LinkedHashMap<String, List<String>>();
+        columnsByTable.put("message", Arrays.asList(
+                "id", "sequence_no", "publication_time", "queue_id", "message_string", "message_bytes"));
+        columnsByTable.put("message_processing", Arrays.asList(
+                "message_id", "consumer_id", "version_id", "state", "last_updated", "times_out", "retries",
+                "error_message"));
+        COLUMNS_BY_TABLE = Collections.unmodifiableMap(columnsByTable);
+
+        Map<String, List<String>> indexByTable = new LinkedHashMap<String, List<String>>();
+        indexByTable.put("message", SEQUENCE_NO);
+        indexByTable.put("message_processing", Arrays.asList("consumer_id", "state", "times_out"));
+        INDEX_BY_TABLE = Collections.unmodifiableMap(indexByTable);
+    }
+
+    private final Database database;
+    private final String tablePrefix;
+    private final List<String> partitionedConsumerIds;
+
+    /**
+     * Creates a schema for a database.
+     *
+     * @param database    the database to create the schema for. Must not be null.
+     * @param tablePrefix the prefix to prepend to all table and index names. Must not be null.
+     */
+    public JdbcSchema(Database database, String tablePrefix) {
+        this(database, tablePrefix, Collections.<String>emptyList());
+    }
+
+    private JdbcSchema(Database database, String tablePrefix, List<String> partitionedConsumerIds) {
+        Is.notNull(database, "database must not be null");
+        Is.notNull(tablePrefix, "tablePrefix must not be null");
+        this.database = database;
+        this.tablePrefix = tablePrefix;
+        this.partitionedConsumerIds = partitionedConsumerIds;
+    }
+
+    /**
+     * Creates a schema where {@code message_processing} is partitioned by consumer. Only supported on PostgreSQL 11
+     * or later.
+     * <p>
+     * Each of the specified consumers get a partition, named {@code message_processing_} followed by the consumer
+     * id, in lower case and with characters other than letters, digits and underscore replaced by underscore.
+     * Other consumers end up in the {@code message_processing_default} partition. Since the consumer id is part of
+     * all queries, taking and counting messages only touch the partitions of the consumers involved. Together with
+     * {@link JdbcMessageRepository.Builder#consumerPartitions()}, purging all messages of a consumer truncates its
+     * partition, instead of deleting row by row.
+     * </p>
+     * <p>
+     * Partitions for consumers added later can be created through {@link #consumerPartitionStatement(String)}.
+     * </p>
+     *
+     * @param consumerIds the ids of the consumers to create partitions for. Must not be empty.
+     * @return the partitioned schema
+     * @throws IllegalArgumentException if the database is not PostgreSQL, or the partition names of the consumers
+     *                                  are too long or not unique
+     */
+    public JdbcSchema partitionedByConsumer(String... consumerIds) {
+        Is.notEmpty(Arrays.asList(consumerIds), "consumerIds must not be empty");
+        if (database != Database.POSTGRESQL)
+            throw new IllegalArgumentException("Only PostgreSQL supports partitioning by consumer");
+        Set<String> partitionNames = new HashSet<String>();
+        partitionNames.add(defaultPartitionName(tablePrefix));
+        for (String consumerId : consumerIds) {
+            Is.hasText(consumerId, "consumerIds must be specified");
+            String partitionName = consumerPartitionName(tablePrefix, consumerId);
+            if (partitionName.length() > MAX_POSTGRESQL_IDENTIFIER_LENGTH)
+                throw new IllegalArgumentException("Partition name " + partitionName + " is too long");
+            if (!partitionNames.add(partitionName))
+                throw new IllegalArgumentException("Partition name " + partitionName + " is not unique");
+        }
+        return new JdbcSchema(database, tablePrefix,
+                Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(consumerIds))));
+    }
+
+    /**
+     * The statements creating the tables and indexes, in the order to execute them.
+     *
+     * @return the statements, without trailing semicolons
+     */
+    public List<String> statements() {
+        List<String> statements = new ArrayList<String>();
+        statements.add(database.createMessageTable(tablePrefix));
+        if (partitionedConsumerIds.isEmpty())
+            statements.add(database.createMessageProcessingTable(tablePrefix));
+        else
+            addPartitionedMessageProcessingTable(statements);
+        for (Map.Entry<String, List<String>> entry : INDEX_BY_TABLE.entrySet())
+            if (!database.indexedInTable(entry.getKey()))
+                statements.add("CREATE INDEX " + indexName(tablePrefix, entry.getKey()) +
+                        " ON " + tablePrefix + entry.getKey() + " (" + columnList(entry.getValue()) + ")");
+        return statements;
+    }
+
+    /**
+     * The statement creating the partition of a consumer, in a schema partitioned by consumer. Rows of the consumer
+     * in the default partition must be deleted before creating its partition.
+     *
+     * @param consumerId the id of the consumer. Must not be null.
+     * @return the statement, without trailing semicolon
+     * @throws IllegalStateException if the schema is not partitioned by consumer
+     */
+    public String consumerPartitionStatement(String consumerId) {
+        Is.hasText(consumerId, "consumerId must be specified");
+        if (partitionedConsumerIds.isEmpty())
+            throw new IllegalStateException("Schema is not partitioned by consumer");
+        return "CREATE TABLE " + consumerPartitionName(tablePrefix, consumerId) +
+                " PARTITION OF " + tablePrefix + "message_processing" +
+                " FOR VALUES IN ('" + consumerId.replace("'", "''") + "')";
+    }
+
+    /**
+     * The statements creating the tables and indexes, as a script.
+     *
+     * @return the script, with statements separated by semicolons
+     */
+    public String script() {
+        StringBuilder script = new StringBuilder();
+        for (String statement : statements())
+            script.append(statement).append(";\n\n");
+        return script.toString();
+    }
+
+    /**
+     * Creates the tables and indexes, using the provided connection. The connection is not committed.
+     *
+     * @param connection the connection to use. Must not be null.
+     * @throws SQLException if creating the schema failed
+     */
+    public void create(Connection connection) throws SQLException {
+        Is.notNull(connection, "connection must not be null");
+        Statement statement = connection.createStatement();
+        try {
+            for (String sql : statements())
+                statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void addPartitionedMessageProcessingTable(List<String> statements) {
+        statements.add(database.createMessageProcessingTable(tablePrefix) + " PARTITION BY LIST (consumer_id)");
+        for (String consumerId : partitionedConsumerIds)
+            statements.add(consumerPartitionStatement(consumerId));
+        statements.add("CREATE TABLE " + defaultPartitionName(tablePrefix) +
+                " PARTITION OF " + tablePrefix + "message_processing DEFAULT");
+    }
+
+    static String consumerPartitionName(String tablePrefix, String consumerId) {
+        return tablePrefix + "message_processing_" +
+                consumerId.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9_]", "_");
+    }
+
+    private static String defaultPartitionName(String tablePrefix) {
+        return tablePrefix + "message_processing_default";
+    }
+
+    // Kept short, since index names are limited to 30 characters in older Oracle versions
+    private static String indexName(String tablePrefix, String table) {
+        return tablePrefix + table + "_idx";
+    }
+
+    private static String columnList(List<String> columns) {
+        StringBuilder columnList = new StringBuilder();
+        for (String column : columns) {
+            if (columnList.length() > 0)
+                columnList.append(", ");
+            columnList.append(column);
+        }
+        return columnList.toString();
+    }
+
+    public String toString() {
+        return "JdbcSchema{" +
+                "database=" + database +
+                ", tablePrefix='" + tablePrefix + '\'' +
+                ", partitionedConsumerIds=" + partitionedConsumerIds +
+                '}';
+    }
+
+    /**
+     * The databases a schema can be generated for.
+     */
+    public enum Database {
+        POSTGRESQL(
+                "VARCHAR", "SERIAL", "TIMESTAMP", "TEXT", "BYTEA", "INTEGER", false),
+        H2(
+                "VARCHAR", "BIGINT AUTO_INCREMENT NOT NULL", "TIMESTAMP", "CLOB", "BLOB", "INTEGER", false),
+        // MySQL requires an AUTO_INCREMENT column to be indexed as part of the table definition
+        MYSQL(
+                "VARCHAR", "BIGINT AUTO_INCREMENT NOT NULL", "DATETIME(3)", "LONGTEXT", "LONGBLOB", "INTEGER",
+                true),
+        ORACLE(
+                "VARCHAR2", "NUMBER(19) GENERATED ALWAYS AS IDENTITY", "TIMESTAMP", "CLOB", "BLOB",
+                "NUMBER(10)", false);
+
+        private final String varchar;
+        private final String sequence;
+        private final String timestamp;
+        private final String text;
+        private final String bytes;
+        private final String integer;
+        private final boolean sequenceNoIndexedInTable;
+
+        Database(String varchar, String sequence, String timestamp, String text, String bytes, String integer,
+                 boolean sequenceNoIndexedInTable) {
+            this.varchar = varchar;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.bytes = bytes;
+            this.integer = integer;
+            this.sequenceNoIndexedInTable = sequenceNoIndexedInTable;
+        }
+
+        private String createMessageTable(String tablePrefix) {
+            return "" +
+                    "CREATE TABLE " + tablePrefix + "message (\n" +
+                    "  id               " + varchar + "(127) NOT NULL,\n" +
+                    "  sequence_no      " + sequence + ",\n" +
+                    "  publication_time " + timestamp + " NOT NULL,\n" +
+                    "  queue_id         " + varchar + "(127) NOT NULL,\n" +
+                    "  message_string   " + text + ",\n" +
+                    "  message_bytes    " + bytes + ",\n" +
+                    "  PRIMARY KEY (id)" + sequenceNoIndex(tablePrefix) + "\n" +
+                    ")";
+        }
+
+        private String sequenceNoIndex(String tablePrefix) {
+            if (!sequenceNoIndexedInTable)
+                return "";
+            return ",\n  KEY " + indexName(tablePrefix, "message") + " (sequence_no)";
+        }
+
+        private boolean indexedInTable(String table) {
+            return sequenceNoIndexedInTable && table.equals("message");
+        }
+
+        private String createMessageProcessingTable(String tablePrefix) {
+            return "" +
+                    "CREATE TABLE " + tablePrefix + "message_processing (\n" +
+                    "  message_id    " + varchar + "(127) NOT NULL,\n" +
+                    "  consumer_id   " + varchar + "(127) NOT NULL,\n" +
+                    "  version_id    " + varchar + "(127) NOT NULL,\n" +
+                    "  state         " + varchar + "(32)  NOT NULL,\n" +
+                    "  last_updated  " + timestamp + " NOT NULL,\n" +
+                    "  times_out     " + timestamp + " NOT NULL,\n" +
+                    "  retries       " + integer + " NOT NULL,\n" +
+                    "  error_message " + text + ",\n" +
+                    "  PRIMARY KEY (message_id, consumer_id),\n" +
+                    "  FOREIGN KEY (message_id) REFERENCES " + tablePrefix + "message (id)\n" +
+                    ")";
+        }
+    }
+}
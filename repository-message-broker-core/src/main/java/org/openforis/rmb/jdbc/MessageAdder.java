@@ -4,15 +4,26 @@ import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.spi.Clock;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import static org.openforis.rmb.spi.MessageProcessingStatus.INITIAL_VERSION_ID;
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.PENDING;
 
 final class MessageAdder extends Operation {
-    MessageAdder(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    private static final int MAX_BATCH_SIZE = 1000; // Bounds the memory used by JDBC drivers for a batch
+
+    private final MessageIdGenerator messageIdGenerator;
+    private final boolean counterVersionIds;
+
+    MessageAdder(StatementCache statements, SqlStatements sql, Clock clock, MessageIdGenerator messageIdGenerator,
+                 boolean counterVersionIds) {
+        super(statements, sql, clock);
+        this.messageIdGenerator = messageIdGenerator;
+        this.counterVersionIds = counterVersionIds;
     }
 
     void add(String queueId, List<MessageConsumer<?>> consumers, Object serializedMessage) throws SQLException {
@@ -20,32 +31,92 @@ final class MessageAdder extends Operation {
         insertMessageConsumers(messageId, consumers);
     }
 
+    // Inserts all messages as JDBC batches, then all their message processing as JDBC batches
+    void addAll(String queueId, List<MessageConsumer<?>> consumers, List<Object> serializedMessages)
+            throws SQLException {
+        List<String> messageIds = insertMessages(queueId, serializedMessages);
+        insertMessageConsumers(messageIds, consumers);
+    }
+
     private void insertMessageConsumers(String messageId, List<MessageConsumer<?>> consumers)
             throws SQLException {
-        PreparedStatement ps = connection.prepareStatement("" +
-                "INSERT INTO " + tablePrefix + "message_processing(message_id, consumer_id, version_id, state, last_updated, times_out, retries)\n" +
-                "VALUES(?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement ps = prepare(sql.insertMessageProcessing);
         for (MessageConsumer<?> consumer : consumers) {
-            long creationTime = clock.millis();
-            ps.setString(1, messageId);
-            ps.setString(2, consumer.getId());
-            ps.setString(3, UUID.randomUUID().toString());
-            ps.setString(4, PENDING.name());
-            ps.setTimestamp(5, new Timestamp(creationTime));
-            ps.setTimestamp(6, new Timestamp(timesOut(consumer, creationTime)));
-            ps.setInt(7, 0);
+            setInsertMessageConsumerParameters(ps, messageId, consumer);
             ps.addBatch();
         }
         ps.executeBatch();
-        ps.close();
+    }
+
+    private void insertMessageConsumers(List<String> messageIds, List<MessageConsumer<?>> consumers)
+            throws SQLException {
+        PreparedStatement ps = prepare(sql.insertMessageProcessing);
+        int batchSize = 0;
+        for (String messageId : messageIds) {
+            for (MessageConsumer<?> consumer : consumers) {
+                setInsertMessageConsumerParameters(ps, messageId, consumer);
+                ps.addBatch();
+                if (++batchSize == MAX_BATCH_SIZE) {
+                    ps.executeBatch();
+                    batchSize = 0;
+                }
+            }
+        }
+        if (batchSize > 0)
+            ps.executeBatch();
+    }
+
+    private void setInsertMessageConsumerParameters(PreparedStatement ps, String messageId,
+                                                    MessageConsumer<?> consumer) throws SQLException {
+        long creationTime = clock.millis();
+        ps.setString(1, messageId);
+        ps.setString(2, consumer.getId());
+        ps.setString(3, counterVersionIds ? INITIAL_VERSION_ID : UUID.randomUUID().toString());
+        ps.setString(4, PENDING.name());
+        ps.setTimestamp(5, new Timestamp(creationTime));
+        ps.setTimestamp(6, new Timestamp(timesOut(consumer, creationTime)));
+        ps.setInt(7, 0);
     }
 
     private String insertMessage(String queueId, Object serializedMessage)
             throws SQLException {
-        String messageId = UUID.randomUUID().toString();
-        PreparedStatement ps = connection.prepareStatement("" +
-                "INSERT INTO " + tablePrefix + "message(id, publication_time, queue_id, message_string, message_bytes)\n" +
-                "VALUES(?, ?, ?, ?, ?)");
+        String messageId = messageIdGenerator.next(clock.millis());
+        PreparedStatement ps = prepare(sql.insertMessage);
+        setInsertMessageParameters(ps, messageId, queueId, serializedMessage);
+        ps.executeUpdate();
+        return messageId;
+    }
+
+    // Batches are executed in order, so the messages get sequence numbers in the order provided
+    private List<String> insertMessages(String queueId, List<Object> serializedMessages) throws SQLException {
+        List<String> messageIds = new ArrayList<String>();
+        PreparedStatement ps = prepare(sql.insertMessage);
+        int batchSize = 0;
+        for (Object serializedMessage : serializedMessages) {
+            String messageId = messageIdGenerator.next(clock.millis());
+            setInsertMessageParameters(ps, messageId, queueId, serializedMessage);
+            ps.addBatch();
+            messageIds.add(messageId);
+            if (++batchSize == MAX_BATCH_SIZE) {
+                ps.executeBatch();
+                batchSize = 0;
+            }
+        }
+        if (batchSize > 0)
+            ps.executeBatch();
+        return messageIds;
+    }
+
+    // With the length known, drivers can send the stream as is, instead of first reading it into memory
+    private void setBinaryStream(PreparedStatement ps, int parameterIndex, InputStream in) throws SQLException {
+        if (in instanceof ByteArrayInputStream)
+            ps.setBinaryStream(parameterIndex, in, ((ByteArrayInputStream) in).available());
+        else
+            ps.setBinaryStream(parameterIndex, in);
+    }
+
+    private void setInsertMessageParameters(PreparedStatement ps, String messageId, String queueId,
+                                            Object serializedMessage) throws SQLException {
         ps.setString(1, messageId);
         ps.setTimestamp(2, new Timestamp(clock.millis()));
         ps.setString(3, queueId);
@@ -54,11 +125,12 @@ final class MessageAdder extends Operation {
             ps.setNull(5, Types.BINARY);
         } else if (serializedMessage instanceof byte[]) {
             ps.setNull(4, Types.VARCHAR);
-            ps.setBlob(5, new ByteArrayInputStream((byte[]) serializedMessage));
+            dialect.setBytes(ps, 5, (byte[]) serializedMessage);
+        } else if (serializedMessage instanceof InputStream) {
+            ps.setNull(4, Types.VARCHAR);
+            setBinaryStream(ps, 5, (InputStream) serializedMessage);
         } else
-            throw new IllegalArgumentException("Support only message serialized to either String or byte[]");
-        ps.executeUpdate();
-        ps.close();
-        return messageId;
+            throw new IllegalArgumentException(
+                    "Support only message serialized to either String, byte[] or InputStream");
     }
 }
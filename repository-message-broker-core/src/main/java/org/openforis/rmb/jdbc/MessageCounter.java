@@ -4,7 +4,6 @@ import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.spi.Clock;
 import org.openforis.rmb.spi.MessageProcessingFilter;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -13,8 +12,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 final class MessageCounter extends Operation {
-    public MessageCounter(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    public MessageCounter(StatementCache statements, SqlStatements sql, Clock clock) {
+        super(statements, sql, clock);
     }
 
     Map<MessageConsumer<?>, Integer> countByConsumer(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter) throws SQLException {
@@ -22,8 +21,8 @@ final class MessageCounter extends Operation {
         for (MessageConsumer<?> consumer : consumers)
             countByConsumer.put(consumer, 0);
         Map<String, MessageConsumer<?>> consumerById = consumersById(consumers);
-        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, clock);
-        PreparedStatement ps = connection.prepareStatement("" +
+        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, dialect, clock);
+        PreparedStatement ps = prepare("" +
                 "SELECT consumer_id, count(*) message_count\n" +
                 "FROM " + tablePrefix + "message_processing mc\n" +
                 "JOIN " + tablePrefix + "message m ON mc.message_id = m.id\n" +
@@ -34,7 +33,6 @@ final class MessageCounter extends Operation {
         while (rs.next())
             countByConsumer.put(consumerById.get(rs.getString("consumer_id")), rs.getInt("message_count"));
         rs.close();
-        ps.close();
         return countByConsumer;
     }
 }
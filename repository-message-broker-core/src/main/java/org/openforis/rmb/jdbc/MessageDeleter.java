@@ -4,25 +4,119 @@ import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.spi.Clock;
 import org.openforis.rmb.spi.MessageProcessingFilter;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 final class MessageDeleter extends Operation {
-    public MessageDeleter(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    private static final int MAX_DELETE_SIZE = 500; // Keeps IN lists within the limits of all databases
+
+    private final boolean consumerPartitions;
+
+    public MessageDeleter(StatementCache statements, SqlStatements sql, Clock clock, boolean consumerPartitions) {
+        super(statements, sql, clock);
+        this.consumerPartitions = consumerPartitions;
     }
 
     void delete(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter) throws SQLException {
-        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, clock);
-        PreparedStatement ps = connection.prepareStatement("" +
-                "DELETE FROM " + tablePrefix + "message_processing WHERE " + constraintBuilder.whereClause());
-        constraintBuilder.bind(ps);
-        int rowsDeleted = ps.executeUpdate();
+        Collection<MessageConsumer<?>> consumersToDeleteFrom = consumers;
+        if (consumerPartitions && filter.selectsAll())
+            consumersToDeleteFrom = truncatePartitions(consumers);
+        if (consumersToDeleteFrom.isEmpty())
+            return;
+        int rowsDeleted = deleteMessageProcessing(consumersToDeleteFrom, filter);
         if (rowsDeleted > 0) {
             deleteOrphanedMessages();
             connection.commit();
         }
     }
+
+    private int deleteMessageProcessing(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter)
+            throws SQLException {
+        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, dialect, clock);
+        PreparedStatement ps = prepare("" +
+                "DELETE FROM " + tablePrefix + "message_processing WHERE " + constraintBuilder.whereClause());
+        constraintBuilder.bind(ps);
+        return ps.executeUpdate();
+    }
+
+    // Truncates the partitions of the consumers having one, returning the consumers without.
+    // The truncate is committed right away, so the partitions aren't locked while looking for orphaned messages.
+    // Only messages of the truncated rows are looked at. Messages added between reading the message ids and
+    // truncating are left to the orphaned message sweep.
+    private List<MessageConsumer<?>> truncatePartitions(Collection<MessageConsumer<?>> consumers)
+            throws SQLException {
+        List<MessageConsumer<?>> consumersWithoutPartition = new ArrayList<MessageConsumer<?>>();
+        Set<String> messageIds = new TreeSet<String>();
+        boolean truncated = false;
+        for (MessageConsumer<?> consumer : consumers) {
+            String partition = JdbcSchema.consumerPartitionName(tablePrefix, consumer.getId());
+            if (isPartitionOf(partition, consumer)) {
+                messageIds.addAll(messageIds(partition));
+                truncate(partition);
+                truncated = true;
+            } else
+                consumersWithoutPartition.add(consumer);
+        }
+        if (truncated) {
+            connection.commit();
+            deleteMessagesIfOrphaned(new ArrayList<String>(messageIds));
+        }
+        return consumersWithoutPartition;
+    }
+
+    private List<String> messageIds(String partition) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery("SELECT message_id FROM " + partition);
+            List<String> messageIds = new ArrayList<String>();
+            while (rs.next())
+                messageIds.add(rs.getString("message_id"));
+            rs.close();
+            return messageIds;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void deleteMessagesIfOrphaned(List<String> messageIds) throws SQLException {
+        List<String> remainingIds = messageIds;
+        while (!remainingIds.isEmpty()) {
+            List<String> ids = remainingIds.subList(0, Math.min(MAX_DELETE_SIZE, remainingIds.size()));
+            PreparedStatement ps = prepare(sql.deleteMessagesIfOrphaned(ids.size()));
+            dialect.setIn(ps, 1, ids);
+            ps.executeUpdate();
+            connection.commit();
+            ids.clear();
+        }
+    }
+
+    // Checks the partition bound too, since different consumer ids can give the same partition name
+    private boolean isPartitionOf(String partition, MessageConsumer<?> consumer) throws SQLException {
+        PreparedStatement ps = prepare("" +
+                "SELECT pg_get_expr(relpartbound, oid) partition_bound FROM pg_class WHERE oid = to_regclass(?)");
+        ps.setString(1, partition);
+        ResultSet rs = ps.executeQuery();
+        try {
+            String expectedBound = "FOR VALUES IN ('" + consumer.getId().replace("'", "''") + "')";
+            return rs.next() && expectedBound.equals(rs.getString("partition_bound"));
+        } finally {
+            rs.close();
+        }
+    }
+
+    private void truncate(String partition) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("TRUNCATE TABLE " + partition);
+        } finally {
+            statement.close();
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package org.openforis.rmb.jdbc;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates the ids of messages added by {@link JdbcMessageRepository}.
+ */
+abstract class MessageIdGenerator {
+    /**
+     * Random UUIDs, 36 characters long.
+     */
+    static final MessageIdGenerator RANDOM_UUID = new MessageIdGenerator() {
+        String next(long timestamp) {
+            return UUID.randomUUID().toString();
+        }
+    };
+
+    abstract String next(long timestamp);
+
+    /**
+     * Creates a generator of compact, time-ordered ids: a 48 bit millisecond timestamp followed by 80 random bits,
+     * encoded as 26 characters of Crockford's base 32, in the spirit of ULIDs. Since the encoding preserves ordering,
+     * ids sort in the order they were generated, making inserts into the id indexes append-mostly.
+     * <p>
+     * Within the same millisecond, the random part of the previous id is incremented, so ids generated by one
+     * generator are strictly increasing.
+     * </p>
+     *
+     * @return the generator
+     */
+    static MessageIdGenerator timeOrdered() {
+        return new TimeOrdered(new Random());
+    }
+
+    static final class TimeOrdered extends MessageIdGenerator {
+        private static final char[] ENCODING = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+        private static final long RANDOM_LOW_MASK = (1L << 40) - 1;
+
+        private final Random random;
+        private long lastTimestamp = -1;
+        private long randomHigh; // 40 bits
+        private long randomLow; // 40 bits
+
+        TimeOrdered(Random random) {
+            this.random = random;
+        }
+
+        synchronized String next(long timestamp) {
+            if (timestamp > lastTimestamp) {
+                lastTimestamp = timestamp;
+                randomHigh = random.nextLong() & RANDOM_LOW_MASK;
+                randomLow = random.nextLong() & RANDOM_LOW_MASK;
+            } else
+                increment(); // Same millisecond, or the clock went backwards
+            char[] id = new char[26];
+            encode(lastTimestamp, id, 0, 10);
+            encode(randomHigh, id, 10, 8);
+            encode(randomLow, id, 18, 8);
+            return new String(id);
+        }
+
+        private void increment() {
+            randomLow = (randomLow + 1) & RANDOM_LOW_MASK;
+            if (randomLow == 0)
+                randomHigh = (randomHigh + 1) & RANDOM_LOW_MASK;
+        }
+
+        // Encodes the value, 5 bits per character, most significant first
+        private static void encode(long value, char[] chars, int offset, int length) {
+            for (int i = offset + length - 1; i >= offset; i--) {
+                chars[i] = ENCODING[(int) (value & 31)];
+                value >>>= 5;
+            }
+        }
+    }
+}
@@ -3,7 +3,6 @@ package org.openforis.rmb.jdbc;
 import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.spi.*;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -15,13 +14,13 @@ import static org.openforis.rmb.spi.MessageProcessingStatus.State.TIMED_OUT;
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.valueOf;
 
 final class MessageProcessingFinder extends Operation {
-    MessageProcessingFinder(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    MessageProcessingFinder(StatementCache statements, SqlStatements sql, Clock clock) {
+        super(statements, sql, clock);
     }
 
     void find(Collection<MessageConsumer<?>> consumers, MessageProcessingFilter filter, MessageRepository.MessageProcessingFoundCallback callback) throws SQLException {
-        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, clock);
-        PreparedStatement ps = connection.prepareStatement("" +
+        ConstraintBuilder constraintBuilder = new ConstraintBuilder(consumers, filter, dialect, clock);
+        PreparedStatement ps = prepare("" +
                 "SELECT consumer_id, queue_id, message_id, publication_time, times_out, state, retries, " +
                 "       error_message, version_id, message_string, message_bytes\n" +
                 "FROM " + tablePrefix + "message_processing mc\n" +
@@ -37,7 +36,6 @@ final class MessageProcessingFinder extends Operation {
         while (rs.next())
             callback.found(messageProcessing(rs, consumerById), serializedMessage(rs));
         rs.close();
-        ps.close();
     }
 
     private MessageProcessing<?> messageProcessing(ResultSet rs, Map<String, MessageConsumer<?>> consumerById)
@@ -3,15 +3,22 @@ package org.openforis.rmb.jdbc;
 import org.openforis.rmb.spi.Clock;
 import org.openforis.rmb.spi.MessageProcessingUpdate;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.COMPLETED;
 
 final class MessageProcessingUpdater extends Operation {
-    MessageProcessingUpdater(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    private static final int MAX_LOCK_SIZE = 500; // Keeps IN lists within the limits of all databases
+
+    MessageProcessingUpdater(StatementCache statements, SqlStatements sql, Clock clock) {
+        super(statements, sql, clock);
     }
 
     Boolean update(MessageProcessingUpdate update) throws SQLException {
@@ -20,24 +27,158 @@ final class MessageProcessingUpdater extends Operation {
                 : updateMessageProcessing(update);
     }
 
+    // Makes all updates as JDBC batches, committed in a single transaction.
+    // Drivers rewriting batches into multi-row statements might not report the row count of each update. The
+    // batches are then rolled back, and the updates made again one by one, still in a single transaction.
+    List<Boolean> update(List<MessageProcessingUpdate> updates) throws SQLException {
+        List<Integer> completedIndexes = new ArrayList<Integer>();
+        List<Integer> otherIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < updates.size(); i++)
+            (updates.get(i).getToState() == COMPLETED ? completedIndexes : otherIndexes).add(i);
+
+        Boolean[] results = new Boolean[updates.size()];
+        boolean rowCountsReported = deleteCompleted(updates, completedIndexes, results) // First, to lock messages first
+                && updateMessageProcessing(updates, otherIndexes, results);
+        if (!rowCountsReported) {
+            connection.rollback();
+            updateOneByOne(updates, completedIndexes, results);
+        }
+        connection.commit();
+        return Arrays.asList(results);
+    }
+
+    private void updateOneByOne(List<MessageProcessingUpdate> updates, List<Integer> completedIndexes,
+                                Boolean[] results) throws SQLException {
+        if (!completedIndexes.isEmpty())
+            lockMessages(updates, completedIndexes);
+        for (int i = 0; i < updates.size(); i++) {
+            MessageProcessingUpdate update = updates.get(i);
+            if (update.getToState() == COMPLETED) {
+                results[i] = deleteFromMessageConsumer(update);
+                if (results[i])
+                    deleteMessageIfOrphaned(update.getMessageId());
+            } else
+                results[i] = updateMessageProcessingWithoutCommit(update);
+        }
+    }
+
+    // Returns false if the driver didn't report the row counts
+    private boolean updateMessageProcessing(List<MessageProcessingUpdate> updates, List<Integer> indexes,
+                                            Boolean[] results) throws SQLException {
+        if (indexes.isEmpty())
+            return true;
+        long now = clock.millis();
+        PreparedStatement ps = prepare(sql.updateMessageProcessing);
+        for (int index : indexes) {
+            setUpdateMessageProcessingParameters(ps, updates.get(index), now);
+            ps.addBatch();
+        }
+        int[] rowsUpdated = ps.executeBatch();
+        return collectResults(updates, indexes, rowsUpdated, results);
+    }
+
+    // Returns false if the driver didn't report the row counts
+    private boolean deleteCompleted(List<MessageProcessingUpdate> updates, List<Integer> indexes,
+                                    Boolean[] results) throws SQLException {
+        if (indexes.isEmpty())
+            return true;
+        lockMessages(updates, indexes);
+        PreparedStatement ps = prepare(sql.deleteMessageProcessing);
+        for (int index : indexes) {
+            setDeleteFromMessageConsumerParameters(ps, updates.get(index));
+            ps.addBatch();
+        }
+        int[] rowsDeleted = ps.executeBatch();
+        if (!collectResults(updates, indexes, rowsDeleted, results))
+            return false;
+
+        PreparedStatement orphanedPs = null;
+        for (int index : indexes) {
+            if (results[index]) {
+                if (orphanedPs == null)
+                    orphanedPs = prepare(sql.deleteMessageIfOrphaned);
+                setDeleteMessageIfOrphanedParameters(orphanedPs, updates.get(index).getMessageId());
+                orphanedPs.addBatch();
+            }
+        }
+        if (orphanedPs != null)
+            orphanedPs.executeBatch();
+        return true;
+    }
+
+    // Returns false if the driver didn't report the row counts
+    private boolean collectResults(List<MessageProcessingUpdate> updates, List<Integer> indexes, int[] rowCounts,
+                                   Boolean[] results) {
+        for (int rowCount : rowCounts)
+            if (rowCount == Statement.SUCCESS_NO_INFO)
+                return false;
+        for (int i = 0; i < indexes.size(); i++) {
+            MessageProcessingUpdate update = updates.get(indexes.get(i));
+            int rowCount = rowCounts[i];
+            if (rowCount > 1)
+                throw new IllegalStateException("More than one row with message_id " + update.getMessageId());
+            results[indexes.get(i)] = rowCount != 0;
+        }
+        return true;
+    }
+
     private boolean deleteCompleted(MessageProcessingUpdate update) throws SQLException {
+        lockMessage(update.getMessageId());
         boolean success = deleteFromMessageConsumer(update);
         if (success)
-            deleteOrphanedMessages();
+            deleteMessageIfOrphaned(update.getMessageId());
         connection.commit();
         return success;
     }
 
     private boolean deleteFromMessageConsumer(MessageProcessingUpdate update) throws SQLException {
-        PreparedStatement ps = connection.prepareStatement("" +
-                "DELETE FROM " + tablePrefix + "message_processing\n" +
-                "WHERE message_id = ? AND consumer_id = ? AND version_id = ?");
-        ps.setString(1, update.getMessageId());
-        ps.setString(2, update.getConsumer().getId());
-        ps.setString(3, update.getFromVersionId());
+        PreparedStatement ps = prepare(sql.deleteMessageProcessing);
+        setDeleteFromMessageConsumerParameters(ps, update);
         int rowsDeleted = ps.executeUpdate();
         if (rowsDeleted > 1)
             throw new IllegalStateException("More than one row with message_id " + update.getMessageId());
         return rowsDeleted != 0;
     }
+
+    private void setDeleteFromMessageConsumerParameters(PreparedStatement ps, MessageProcessingUpdate update)
+            throws SQLException {
+        ps.setString(1, update.getMessageId());
+        ps.setString(2, update.getConsumer().getId());
+        ps.setString(3, update.getFromVersionId());
+    }
+
+    // Completions of the same message by different consumers are serialized by locking the message row before
+    // deleting the message processing. The last completion then sees the message processing deleted by the others,
+    // and deletes the message. Without the lock, concurrent completions might all leave the message row behind.
+    private void lockMessage(String messageId) throws SQLException {
+        PreparedStatement ps = prepare(sql.lockMessage);
+        ps.setString(1, messageId);
+        ps.executeQuery().close();
+    }
+
+    // Locked in id order, so concurrent batches can't deadlock on each other
+    private void lockMessages(List<MessageProcessingUpdate> updates, List<Integer> indexes) throws SQLException {
+        Set<String> messageIds = new TreeSet<String>();
+        for (int index : indexes)
+            messageIds.add(updates.get(index).getMessageId());
+        List<String> remainingIds = new ArrayList<String>(messageIds);
+        while (!remainingIds.isEmpty()) {
+            List<String> ids = remainingIds.subList(0, Math.min(MAX_LOCK_SIZE, remainingIds.size()));
+            PreparedStatement ps = prepare(sql.lockMessages(ids.size()));
+            dialect.setIn(ps, 1, ids);
+            ps.executeQuery().close();
+            ids.clear();
+        }
+    }
+
+    private void deleteMessageIfOrphaned(String messageId) throws SQLException {
+        PreparedStatement ps = prepare(sql.deleteMessageIfOrphaned);
+        setDeleteMessageIfOrphanedParameters(ps, messageId);
+        ps.executeUpdate();
+    }
+
+    private void setDeleteMessageIfOrphanedParameters(PreparedStatement ps, String messageId) throws SQLException {
+        ps.setString(1, messageId);
+        ps.setString(2, messageId);
+    }
 }
@@ -4,17 +4,43 @@ import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.spi.*;
 
 import java.sql.*;
-import java.util.Map;
+import java.util.*;
 
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.PENDING;
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.TIMED_OUT;
 
 final class MessageTaker extends Operation {
-    MessageTaker(Connection connection, String tablePrefix, Clock clock) {
-        super(connection, tablePrefix, clock);
+    private static final int MAX_PAYLOAD_FETCH_SIZE = 500; // Keeps IN lists within the limits of all databases
+    private final boolean singleStatementTake;
+    private final boolean skipLockedTake;
+    private final boolean streamedMessages;
+    private final boolean timedOutMessageScan;
+
+    MessageTaker(StatementCache statements, SqlStatements sql, Clock clock,
+                 boolean singleStatementTake, boolean skipLockedTake, boolean streamedMessages,
+                 boolean timedOutMessageScan) {
+        super(statements, sql, clock);
+        this.singleStatementTake = singleStatementTake && dialect.limit() != null;
+        this.skipLockedTake = skipLockedTake && dialect.supportsSkipLocked();
+        this.streamedMessages = streamedMessages;
+        this.timedOutMessageScan = timedOutMessageScan;
     }
 
     void take(Map<MessageConsumer<?>, Integer> maxCountByConsumer, MessageRepository.MessageTakenCallback callback) throws SQLException {
+        if (timedOutMessageScan) {
+            maxCountByConsumer = takeTimedOutMessages(maxCountByConsumer, callback);
+            if (maxCountByConsumer.isEmpty())
+                return;
+        }
+        if (skipLockedTake) {
+            for (Map.Entry<MessageConsumer<?>, Integer> entry : maxCountByConsumer.entrySet())
+                takeMessagesSkippingLocked(entry.getKey(), entry.getValue(), callback);
+            return;
+        }
+        if (singleStatementTake && maxCountByConsumer.size() > 1) {
+            takeMessages(maxCountByConsumer, callback);
+            return;
+        }
         for (Map.Entry<MessageConsumer<?>, Integer> entry : maxCountByConsumer.entrySet()) {
             MessageConsumer<?> consumer = entry.getKey();
             Integer maxCount = entry.getValue();
@@ -24,25 +50,249 @@ final class MessageTaker extends Operation {
 
     private void takeMessages(MessageConsumer<?> consumer, int maxCount, MessageRepository.MessageTakenCallback callback)
             throws SQLException {
-        PreparedStatement ps = connection.prepareStatement("" +
-                "SELECT queue_id, message_id, publication_time, version_id, state, message_string, message_bytes, " +
-                "       times_out, retries, error_message \n" +
-                "FROM " + tablePrefix + "message_processing mc\n" +
-                "JOIN " + tablePrefix + "message m ON mc.message_id = m.id\n" +
-                "WHERE consumer_id = ?\n" +
-                "AND state IN ('PENDING', 'PROCESSING')\n" +
-                "ORDER BY sequence_no");
+        PreparedStatement ps = prepare(sql.limitedCandidates == null ? sql.candidates : sql.limitedCandidates);
         ps.setString(1, consumer.getId());
-        ps.setMaxRows(maxCount);
+        if (sql.limitedCandidates == null)
+            ps.setMaxRows(maxCount);
+        else
+            ps.setInt(2, maxCount);
         ResultSet rs = ps.executeQuery();
+        List<MessageProcessingUpdate> candidates = new ArrayList<MessageProcessingUpdate>();
         int rowNo = 0; // Keep manual track of the number of rows, in case JDBC driver doesn't honor setMaxRows().
         while (rs.next() && rowNo < maxCount) {
             if (canTakeMessage(rs))
-                takeMessage(rs, consumer, callback);
+                candidates.add(candidate(rs, consumer));
             rowNo++;
         }
         rs.close();
-        ps.close();
+        claim(candidates, callback);
+    }
+
+    // Selects the candidates of all consumers in one round-trip, combining a limited query per consumer with UNION ALL
+    private void takeMessages(Map<MessageConsumer<?>, Integer> maxCountByConsumer,
+                              MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        List<MessageConsumer<?>> consumers = new ArrayList<MessageConsumer<?>>(maxCountByConsumer.keySet());
+        PreparedStatement ps = prepare(sql.multiConsumerCandidates(consumers.size()));
+        int i = 0;
+        for (MessageConsumer<?> consumer : consumers) {
+            ps.setString(++i, consumer.getId());
+            ps.setInt(++i, maxCountByConsumer.get(consumer));
+        }
+        ResultSet rs = ps.executeQuery();
+        Map<String, MessageConsumer<?>> consumerById = consumersById(consumers);
+        List<MessageProcessingUpdate> candidates = new ArrayList<MessageProcessingUpdate>();
+        while (rs.next()) {
+            if (canTakeMessage(rs))
+                candidates.add(candidate(rs, consumerById.get(rs.getString("consumer_id"))));
+        }
+        rs.close();
+        claim(candidates, callback);
+    }
+
+    // Locks the claimable rows within the first messagesHandledInParallel + prefetchCount PENDING/PROCESSING rows
+    // of the consumer, skipping rows locked by other nodes. All rows are claimed in the same transaction, keeping
+    // them locked until they are PROCESSING. With prefetch, the cluster-wide bound is loosened to that same sum.
+    private void takeMessagesSkippingLocked(MessageConsumer<?> consumer, int maxCount,
+                                            MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        PreparedStatement ps = prepare(sql.skipLockedCandidates);
+        ps.setString(1, consumer.getId());
+        ps.setInt(2, consumer.getMessagesHandledInParallel() + consumer.getPrefetchCount());
+        ps.setTimestamp(3, new Timestamp(clock.millis()));
+        ps.setInt(4, maxCount);
+        ResultSet rs = ps.executeQuery();
+        List<MessageProcessingUpdate> candidates = new ArrayList<MessageProcessingUpdate>();
+        while (rs.next() && candidates.size() < maxCount)
+            candidates.add(candidate(rs, consumer));
+        rs.close();
+        if (candidates.isEmpty())
+            connection.commit(); // Nothing to claim, but the transaction must still end
+        else
+            claim(candidates, callback);
+    }
+
+    // Takes the expired leases of each consumer, wherever they are in the queue, before taking new messages.
+    // Returns the max count left for each consumer, leaving out consumers with nothing left to take.
+    private Map<MessageConsumer<?>, Integer> takeTimedOutMessages(Map<MessageConsumer<?>, Integer> maxCountByConsumer,
+                                                                  MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        Map<MessageConsumer<?>, Integer> remainingCountByConsumer = new LinkedHashMap<MessageConsumer<?>, Integer>();
+        for (Map.Entry<MessageConsumer<?>, Integer> entry : maxCountByConsumer.entrySet()) {
+            int remainingCount = entry.getValue() - takeTimedOutMessages(entry.getKey(), entry.getValue(), callback);
+            if (remainingCount > 0)
+                remainingCountByConsumer.put(entry.getKey(), remainingCount);
+        }
+        return remainingCountByConsumer;
+    }
+
+    // Only rows with an expired lease are read, through the (consumer_id, state, times_out) index. Rows still leased
+    // are never read, however many there are, so messages left behind by a crashed node are recovered cheaply.
+    private int takeTimedOutMessages(MessageConsumer<?> consumer, int maxCount,
+                                     MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        String timedOutCandidates = skipLockedTake ? sql.skipLockedTimedOutCandidates : sql.limitedTimedOutCandidates;
+        PreparedStatement ps = prepare(timedOutCandidates == null ? sql.timedOutCandidates : timedOutCandidates);
+        ps.setString(1, consumer.getId());
+        ps.setTimestamp(2, new Timestamp(clock.millis()));
+        if (timedOutCandidates == null)
+            ps.setMaxRows(maxCount);
+        else
+            ps.setInt(3, maxCount);
+        ResultSet rs = ps.executeQuery();
+        List<MessageProcessingUpdate> candidates = new ArrayList<MessageProcessingUpdate>();
+        while (rs.next() && candidates.size() < maxCount)
+            candidates.add(candidate(rs, consumer));
+        rs.close();
+        if (candidates.isEmpty() && skipLockedTake)
+            connection.commit(); // Nothing to claim, but the transaction must still end
+        return claim(candidates, callback);
+    }
+
+    // Candidates are selected without their payload. It's only fetched for the messages actually claimed.
+    // Returns the number of messages claimed.
+    private int claim(List<MessageProcessingUpdate> candidates, MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        if (candidates.isEmpty())
+            return 0;
+        List<MessageProcessingUpdate> claimed;
+        if (dialect.supportsUpdateReturning())
+            claimed = claimInOneStatement(candidates);
+        else if (skipLockedTake)
+            claimed = claimInOneTransaction(candidates);
+        else
+            claimed = claimOneByOne(candidates);
+        if (claimed.isEmpty())
+            return 0;
+        if (streamedMessages) {
+            streamClaimed(claimed, callback);
+            return claimed.size();
+        }
+        Map<String, Object> serializedMessageById = serializedMessagesById(claimed);
+        for (MessageProcessingUpdate update : claimed) {
+            Object serializedMessage = serializedMessageById.get(update.getMessageId());
+            if (serializedMessage != null) // Message might have been deleted since claimed
+                callback.taken(update, serializedMessage);
+        }
+        return claimed.size();
+    }
+
+    private List<MessageProcessingUpdate> claimOneByOne(List<MessageProcessingUpdate> candidates)
+            throws SQLException {
+        List<MessageProcessingUpdate> claimed = new ArrayList<MessageProcessingUpdate>();
+        for (MessageProcessingUpdate candidate : candidates)
+            if (updateMessageProcessing(candidate))
+                claimed.add(candidate);
+        return claimed;
+    }
+
+    private List<MessageProcessingUpdate> claimInOneTransaction(List<MessageProcessingUpdate> candidates)
+            throws SQLException {
+        List<MessageProcessingUpdate> claimed = new ArrayList<MessageProcessingUpdate>();
+        for (MessageProcessingUpdate candidate : candidates)
+            if (updateMessageProcessingWithoutCommit(candidate))
+                claimed.add(candidate);
+        connection.commit();
+        return claimed;
+    }
+
+    // Hands messages over as streams read straight from the result set, while it's still open. A message claimed by
+    // multiple consumers is read into a byte[] instead, since a stream can only be read once.
+    private void streamClaimed(List<MessageProcessingUpdate> claimed, MessageRepository.MessageTakenCallback callback)
+            throws SQLException {
+        Map<String, List<MessageProcessingUpdate>> claimedByMessageId =
+                new LinkedHashMap<String, List<MessageProcessingUpdate>>();
+        for (MessageProcessingUpdate update : claimed) {
+            if (!claimedByMessageId.containsKey(update.getMessageId()))
+                claimedByMessageId.put(update.getMessageId(), new ArrayList<MessageProcessingUpdate>());
+            claimedByMessageId.get(update.getMessageId()).add(update);
+        }
+        List<String> remainingIds = new ArrayList<String>(claimedByMessageId.keySet());
+        while (!remainingIds.isEmpty()) {
+            List<String> ids = remainingIds.subList(0, Math.min(MAX_PAYLOAD_FETCH_SIZE, remainingIds.size()));
+            PreparedStatement ps = prepare(sql.serializedMessages(ids.size()));
+            dialect.setIn(ps, 1, ids);
+            ResultSet rs = ps.executeQuery();
+            try {
+                while (rs.next()) {
+                    List<MessageProcessingUpdate> updates = claimedByMessageId.get(rs.getString("id"));
+                    Object serializedMessage = updates.size() == 1 ? streamedMessage(rs) : serializedMessage(rs);
+                    for (MessageProcessingUpdate update : updates)
+                        callback.taken(update, serializedMessage);
+                }
+            } finally {
+                rs.close();
+            }
+            ids.clear();
+        }
+    }
+
+    private Map<String, Object> serializedMessagesById(List<MessageProcessingUpdate> claimed) throws SQLException {
+        Set<String> messageIds = new LinkedHashSet<String>();
+        for (MessageProcessingUpdate update : claimed)
+            messageIds.add(update.getMessageId());
+        Map<String, Object> serializedMessageById = new HashMap<String, Object>();
+        List<String> remainingIds = new ArrayList<String>(messageIds);
+        while (!remainingIds.isEmpty()) {
+            List<String> ids = remainingIds.subList(0, Math.min(MAX_PAYLOAD_FETCH_SIZE, remainingIds.size()));
+            PreparedStatement ps = prepare(sql.serializedMessages(ids.size()));
+            dialect.setIn(ps, 1, ids);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next())
+                serializedMessageById.put(rs.getString("id"), serializedMessage(rs));
+            rs.close();
+            ids.clear();
+        }
+        return serializedMessageById;
+    }
+
+    // Moves all candidates to PROCESSING with a single UPDATE ... RETURNING per MAX_CLAIM_SIZE candidates, in one
+    // transaction. Candidates not returned had their version changed by someone else since they were selected.
+    private List<MessageProcessingUpdate> claimInOneStatement(List<MessageProcessingUpdate> candidates)
+            throws SQLException {
+        long now = clock.millis();
+        Set<String> claimedKeys = new HashSet<String>();
+        for (int from = 0; from < candidates.size(); from += SqlStatements.MAX_CLAIM_SIZE) {
+            int to = Math.min(from + SqlStatements.MAX_CLAIM_SIZE, candidates.size());
+            claimInOneStatement(candidates.subList(from, to), now, claimedKeys);
+        }
+        connection.commit();
+
+        List<MessageProcessingUpdate> claimed = new ArrayList<MessageProcessingUpdate>();
+        for (MessageProcessingUpdate candidate : candidates)
+            if (claimedKeys.contains(key(candidate.getMessageId(), candidate.getConsumer().getId())))
+                claimed.add(candidate);
+        return claimed;
+    }
+
+    private void claimInOneStatement(List<MessageProcessingUpdate> candidates, long now, Set<String> claimedKeys)
+            throws SQLException {
+        int claimSize = SqlStatements.claimSize(candidates.size());
+        PreparedStatement ps = prepare(sql.claim(claimSize));
+        int i = 0;
+        ps.setTimestamp(++i, new Timestamp(now));
+        for (MessageProcessingUpdate update : candidates) {
+            ps.setString(++i, update.getMessageId());
+            ps.setString(++i, update.getConsumer().getId());
+            ps.setString(++i, update.getFromVersionId());
+            ps.setString(++i, update.getToVersionId());
+            ps.setTimestamp(++i, new Timestamp(timesOut(update.getConsumer(), now)));
+        }
+        for (int row = candidates.size(); row < claimSize; row++) { // Padding never matches, having no message_id
+            ps.setNull(++i, Types.VARCHAR);
+            ps.setNull(++i, Types.VARCHAR);
+            ps.setNull(++i, Types.VARCHAR);
+            ps.setNull(++i, Types.VARCHAR);
+            ps.setNull(++i, Types.TIMESTAMP);
+        }
+        ResultSet rs = ps.executeQuery();
+        while (rs.next())
+            claimedKeys.add(key(rs.getString("message_id"), rs.getString("consumer_id")));
+        rs.close();
+    }
+
+    private String key(String messageId, String consumerId) {
+        return messageId + '\n' + consumerId;
     }
 
     private boolean canTakeMessage(ResultSet rs) throws SQLException {
@@ -53,22 +303,18 @@ final class MessageTaker extends Operation {
         return state.equals("PENDING") || timesOut.before(now);
     }
 
-    private void takeMessage(ResultSet rs, MessageConsumer<?> consumer, MessageRepository.MessageTakenCallback callback)
-            throws SQLException {
+    private MessageProcessingUpdate candidate(ResultSet rs, MessageConsumer<?> consumer) throws SQLException {
         String queueId = rs.getString("queue_id");
         Timestamp publicationTime = rs.getTimestamp("publication_time");
         MessageProcessingStatus.State fromState = rs.getString("state").equals("PROCESSING") ? TIMED_OUT : PENDING;
         String messageId = rs.getString("message_id");
-        Object serializedMessage = serializedMessage(rs);
         String versionId = rs.getString("version_id");
         int retries = rs.getInt("retries");
         String errorMessage = rs.getString("error_message");
-        MessageProcessingUpdate update = MessageProcessing.create(
+        return MessageProcessing.create(
                 new MessageDetails(queueId, messageId, toDate(publicationTime)),
                 consumer,
                 new MessageProcessingStatus(fromState, retries, errorMessage, now(), versionId)
         ).take(clock);
-        if (updateMessageProcessing(update))
-            callback.taken(update, serializedMessage);
     }
 }
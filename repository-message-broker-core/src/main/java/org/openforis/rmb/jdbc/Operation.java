@@ -13,14 +13,25 @@ import java.util.Map;
 abstract class Operation {
     final Connection connection;
     final String tablePrefix;
+    final JdbcDialect dialect;
+    final SqlStatements sql;
     final Clock clock;
+    private final StatementCache statements;
 
-    Operation(Connection connection, String tablePrefix, Clock clock) {
-        this.connection = connection;
-        this.tablePrefix = tablePrefix;
+    Operation(StatementCache statements, SqlStatements sql, Clock clock) {
+        this.statements = statements;
+        this.connection = statements.connection;
+        this.tablePrefix = sql.tablePrefix;
+        this.dialect = sql.dialect;
+        this.sql = sql;
         this.clock = clock;
     }
 
+    // Statements are closed when the connection is released, not by the operations
+    final PreparedStatement prepare(String sql) throws SQLException {
+        return statements.prepare(sql);
+    }
+
     final long timesOut(MessageConsumer<?> consumer, long now) {
         return now + consumer.getTimeUnit().toMillis(consumer.getTimeout());
     }
@@ -31,6 +42,12 @@ abstract class Operation {
         return stringMessage == null ? bytesMessage : stringMessage;
     }
 
+    // Byte messages are returned as a stream, only valid until the result set moves on
+    final Object streamedMessage(ResultSet rs) throws SQLException {
+        String stringMessage = rs.getString("message_string");
+        return stringMessage == null ? rs.getBinaryStream("message_bytes") : stringMessage;
+    }
+
     final Date toDate(Timestamp timestamp) {
         return new Date(timestamp.getTime());
     }
@@ -42,11 +59,23 @@ abstract class Operation {
 
     final boolean updateMessageProcessing(MessageProcessingUpdate update)
             throws SQLException {
-        long now = clock.millis();
-        PreparedStatement ps = connection.prepareStatement("" +
-                "UPDATE " + tablePrefix + "message_processing\n" +
-                "SET state = ?, last_updated = ?, times_out = ?, version_id = ?, retries = ?, error_message = ? \n" +
-                "WHERE message_id = ? AND consumer_id = ? AND version_id = ?");
+        boolean updated = updateMessageProcessingWithoutCommit(update);
+        connection.commit();
+        return updated;
+    }
+
+    final boolean updateMessageProcessingWithoutCommit(MessageProcessingUpdate update)
+            throws SQLException {
+        PreparedStatement ps = prepare(sql.updateMessageProcessing);
+        setUpdateMessageProcessingParameters(ps, update, clock.millis());
+        int rowsUpdated = ps.executeUpdate();
+        if (rowsUpdated > 1)
+            throw new IllegalStateException("More than one row with message_id " + update.getMessageId());
+        return rowsUpdated != 0;
+    }
+
+    final void setUpdateMessageProcessingParameters(PreparedStatement ps, MessageProcessingUpdate update, long now)
+            throws SQLException {
         ps.setString(1, update.getToState().name());
         ps.setTimestamp(2, new Timestamp(now));
         ps.setTimestamp(3, new Timestamp(timesOut(update.getConsumer(), now)));
@@ -56,20 +85,11 @@ abstract class Operation {
         ps.setString(7, update.getMessageId());
         ps.setString(8, update.getConsumer().getId());
         ps.setString(9, update.getFromVersionId());
-
-        int rowsUpdated = ps.executeUpdate();
-        if (rowsUpdated > 1)
-            throw new IllegalStateException("More than one row with message_id " + update.getMessageId());
-        connection.commit();
-        return rowsUpdated != 0;
     }
 
 
     final void deleteOrphanedMessages() throws SQLException {
-        PreparedStatement ps = connection.prepareStatement("" +
-                "DELETE FROM " + tablePrefix + "message\n" +
-                "WHERE id NOT IN (SELECT message_id FROM " + tablePrefix + "message_processing)");
-        ps.executeUpdate();
+        prepare(sql.deleteOrphanedMessages).executeUpdate();
     }
 
     final Map<String, MessageConsumer<?>> consumersById(Collection<MessageConsumer<?>> consumers) {
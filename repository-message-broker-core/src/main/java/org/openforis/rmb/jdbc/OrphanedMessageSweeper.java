@@ -0,0 +1,16 @@
+package org.openforis.rmb.jdbc;
+
+import org.openforis.rmb.spi.Clock;
+
+import java.sql.SQLException;
+
+final class OrphanedMessageSweeper extends Operation {
+    OrphanedMessageSweeper(StatementCache statements, SqlStatements sql, Clock clock) {
+        super(statements, sql, clock);
+    }
+
+    void sweep() throws SQLException {
+        deleteOrphanedMessages();
+        connection.commit();
+    }
+}
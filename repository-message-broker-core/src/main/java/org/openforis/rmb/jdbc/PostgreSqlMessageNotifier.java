@@ -0,0 +1,234 @@
+package org.openforis.rmb.jdbc;
+
+import org.openforis.rmb.spi.MessageNotifier;
+import org.openforis.rmb.spi.MessageRepositoryException;
+import org.openforis.rmb.util.Is;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+// @formatter:off
+/**
+ * A {@link MessageNotifier} using PostgreSQL {@code LISTEN}/{@code NOTIFY}.
+ * <p>
+ * When publishing messages, a {@code NOTIFY} is sent within the publishing transaction, so PostgreSQL only delivers it
+ * if the transaction commits. With a {@link org.openforis.rmb.spi.BufferingTransactionSynchronizer}, it is sent once
+ * per transaction, right before the transaction commits. Each message broker keeps a connection listening on the channel, and polls for
+ * messages when another node published messages. Notifications sent by a node are ignored by the same node, since
+ * it already polls when the publishing transaction commits.
+ * </p>
+ * <p>
+ * The connection to send notifications with is provided by a {@link JdbcConnectionManager}. Just like for
+ * {@link JdbcMessageRepository}, it must be the connection of the current transaction. The listening connection is
+ * held until the message broker is stopped, and is obtained outside of any transaction. Since it is taken out of use
+ * for the lifetime of the message broker, it preferably comes from a separate connection manager, not sharing a pool
+ * with the application. It must be a connection of the PostgreSQL JDBC driver, or unwrap to one, since notifications
+ * are read through {@code org.postgresql.PGConnection}. The listening connection is put in auto-commit mode while
+ * listening, and stops listening and gets its original auto-commit mode back before it is released.
+ * If the listening connection fails, a new one is obtained after a delay, and the message broker polls for messages,
+ * since notifications might have been missed.
+ * </p>
+ * <strong>Usage example:</strong>
+ * <pre>
+ * {@code
+
+    MessageBroker messageBroker = RepositoryMessageBroker.builder(
+        new JdbcMessageRepository(connectionManager, "example_"),
+        transactionSynchronizer)
+        .messageNotifier(new PostgreSqlMessageNotifier(
+            connectionManager, listeningConnectionManager, "example_message_published"))
+        .build();
+ * }
+ * </pre>
+ */
+// @formatter:on
+public final class PostgreSqlMessageNotifier implements MessageNotifier {
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+    private static final int LISTENING_TIMEOUT_MILLIS = 500; // How long a stop might have to wait
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final JdbcConnectionManager connectionManager;
+    private final JdbcConnectionManager listeningConnectionManager;
+    private final String channel;
+    private final String nodeId = UUID.randomUUID().toString();
+    private volatile boolean stopped;
+    private Thread listeningThread;
+
+    /**
+     * Creates a notifier, listening with a connection from the same connection manager as notifications are sent
+     * with.
+     *
+     * @param connectionManager the connection manager providing JDBC connections. Must not be null.
+     * @param channel           the channel to notify and listen on. Must be a valid unquoted PostgreSQL identifier.
+     *                          Message brokers sharing a repository must use the same channel.
+     */
+    public PostgreSqlMessageNotifier(JdbcConnectionManager connectionManager, String channel) {
+        this(connectionManager, connectionManager, channel);
+    }
+
+    /**
+     * Creates a notifier, listening with a connection from a separate connection manager.
+     *
+     * @param connectionManager          the connection manager providing the JDBC connections to send notifications
+     *                                   with. Must not be null.
+     * @param listeningConnectionManager the connection manager providing the JDBC connection to listen with.
+     *                                   Must not be null.
+     * @param channel                    the channel to notify and listen on. Must be a valid unquoted PostgreSQL
+     *                                   identifier. Message brokers sharing a repository must use the same channel.
+     */
+    public PostgreSqlMessageNotifier(JdbcConnectionManager connectionManager,
+                                     JdbcConnectionManager listeningConnectionManager,
+                                     String channel) {
+        Is.notNull(connectionManager, "connectionManager must not be null");
+        Is.notNull(listeningConnectionManager, "listeningConnectionManager must not be null");
+        Is.hasText(channel, "channel must be specified");
+        if (!CHANNEL_PATTERN.matcher(channel).matches())
+            throw new IllegalArgumentException("channel must be a valid identifier: " + channel);
+        this.connectionManager = connectionManager;
+        this.listeningConnectionManager = listeningConnectionManager;
+        this.channel = channel;
+    }
+
+    public void notifyMessagesPublished() {
+        Connection connection = null;
+        try {
+            connection = connectionManager.getConnection();
+            // PostgreSQL folds identical notifications within a transaction, so other nodes are notified once
+            PreparedStatement ps = connection.prepareStatement("SELECT pg_notify(?, ?)");
+            try {
+                ps.setString(1, channel);
+                ps.setString(2, nodeId);
+                ps.executeQuery().close();
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new MessageRepositoryException(e);
+        } finally {
+            connectionManager.releaseConnection(connection);
+        }
+    }
+
+    public synchronized void start(final Listener listener) {
+        Is.notNull(listener, "listener must not be null");
+        if (listeningThread != null)
+            throw new IllegalStateException("Notifier has already been started");
+        listeningThread = new Thread(new Runnable() {
+            public void run() {
+                listen(listener);
+            }
+        }, "rmb.PostgreSqlMessageNotifier");
+        listeningThread.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (listeningThread == null)
+            return;
+        listeningThread.interrupt();
+        try {
+            listeningThread.join();
+        } catch (InterruptedException ignore) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void listen(Listener listener) {
+        while (!stopped) {
+            Connection connection = null;
+            try {
+                connection = listeningConnectionManager.getConnection();
+                listen(connection, listener);
+            } catch (Exception e) {
+                if (stopped)
+                    return;
+                listener.listeningFailed(unwrap(e));
+                sleepBeforeRetrying();
+            } finally {
+                listeningConnectionManager.releaseConnection(connection);
+            }
+        }
+    }
+
+    private void listen(Connection connection, Listener listener) throws Exception {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(true);
+        try {
+            execute(connection, "LISTEN " + channel);
+            listener.messagesPublished(); // Messages might have been published while not listening
+            receiveNotifications(connection, listener);
+        } finally {
+            stopListening(connection, autoCommit);
+        }
+    }
+
+    // Best effort, so the connection is released as it was obtained. Fails if the connection is broken.
+    private void stopListening(Connection connection, boolean autoCommit) {
+        try {
+            execute(connection, "UNLISTEN " + channel);
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException ignore) {
+            // Must not hide an exception from listening
+        }
+    }
+
+    private void execute(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void receiveNotifications(Connection connection, Listener listener) throws Exception {
+        ClassLoader classLoader = connection.getClass().getClassLoader();
+        Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection", true, classLoader);
+        Class<?> pgNotificationClass = Class.forName("org.postgresql.PGNotification", true, classLoader);
+        Method getNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+        Method getParameter = pgNotificationClass.getMethod("getParameter");
+        Object pgConnection = connection.unwrap(pgConnectionClass);
+        while (!stopped) {
+            Object[] notifications = (Object[]) getNotifications.invoke(pgConnection, LISTENING_TIMEOUT_MILLIS);
+            if (publishedByOtherNode(notifications, getParameter))
+                listener.messagesPublished();
+        }
+    }
+
+    private boolean publishedByOtherNode(Object[] notifications, Method getParameter) throws Exception {
+        if (notifications == null)
+            return false;
+        for (Object notification : notifications)
+            if (!nodeId.equals(getParameter.invoke(notification)))
+                return true;
+        return false;
+    }
+
+    // Exceptions thrown by the PostgreSQL JDBC driver are wrapped, since its methods are invoked through reflection
+    private Exception unwrap(Exception e) {
+        if (e instanceof InvocationTargetException && e.getCause() instanceof Exception)
+            return (Exception) e.getCause();
+        return e;
+    }
+
+    private void sleepBeforeRetrying() {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS);
+        } catch (InterruptedException ignore) {
+            // Stopped
+        }
+    }
+
+    public String toString() {
+        return "PostgreSqlMessageNotifier{" +
+                "channel='" + channel + '\'' +
+                ", nodeId='" + nodeId + '\'' +
+                '}';
+    }
+}
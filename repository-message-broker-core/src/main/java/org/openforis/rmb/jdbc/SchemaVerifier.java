@@ -0,0 +1,80 @@
+package org.openforis.rmb.jdbc;
+
+import org.openforis.rmb.spi.Clock;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+final class SchemaVerifier extends Operation {
+    SchemaVerifier(StatementCache statements, SqlStatements sql, Clock clock) {
+        super(statements, sql, clock);
+    }
+
+    List<String> verify() throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        List<String> problems = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> entry : JdbcSchema.COLUMNS_BY_TABLE.entrySet()) {
+            String table = tablePrefix + entry.getKey();
+            Set<String> columns = columns(metaData, table);
+            if (columns.isEmpty()) {
+                problems.add("Missing table " + table);
+                continue;
+            }
+            for (String column : entry.getValue())
+                if (!columns.contains(column))
+                    problems.add("Missing column " + table + "." + column);
+            List<String> indexColumns = JdbcSchema.INDEX_BY_TABLE.get(entry.getKey());
+            if (!indexed(metaData, table, indexColumns))
+                problems.add("Missing index on " + table + indexColumns.toString()
+                        .replace('[', '(').replace(']', ')'));
+        }
+        return problems;
+    }
+
+    private Set<String> columns(DatabaseMetaData metaData, String table) throws SQLException {
+        Set<String> columns = new HashSet<String>();
+        String escape = metaData.getSearchStringEscape();
+        String tablePattern = identifier(metaData, table).replace("_", escape + "_");
+        ResultSet rs = metaData.getColumns(null, null, tablePattern, null);
+        while (rs.next())
+            columns.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ENGLISH));
+        rs.close();
+        return columns;
+    }
+
+    // An index covers the expected columns if they are its leading columns
+    private boolean indexed(DatabaseMetaData metaData, String table, List<String> expectedColumns)
+            throws SQLException {
+        Map<String, SortedMap<Integer, String>> columnsByIndex = new HashMap<String, SortedMap<Integer, String>>();
+        ResultSet rs = metaData.getIndexInfo(null, null, identifier(metaData, table), false, true);
+        while (rs.next()) {
+            String indexName = rs.getString("INDEX_NAME");
+            if (indexName == null)
+                continue;
+            SortedMap<Integer, String> columns = columnsByIndex.get(indexName);
+            if (columns == null) {
+                columns = new TreeMap<Integer, String>();
+                columnsByIndex.put(indexName, columns);
+            }
+            columns.put(rs.getInt("ORDINAL_POSITION"), rs.getString("COLUMN_NAME").toLowerCase(Locale.ENGLISH));
+        }
+        rs.close();
+        for (SortedMap<Integer, String> columns : columnsByIndex.values()) {
+            List<String> indexColumns = new ArrayList<String>(columns.values());
+            if (indexColumns.size() >= expectedColumns.size()
+                    && indexColumns.subList(0, expectedColumns.size()).equals(expectedColumns))
+                return true;
+        }
+        return false;
+    }
+
+    private String identifier(DatabaseMetaData metaData, String identifier) throws SQLException {
+        if (metaData.storesUpperCaseIdentifiers())
+            return identifier.toUpperCase(Locale.ENGLISH);
+        if (metaData.storesLowerCaseIdentifiers())
+            return identifier.toLowerCase(Locale.ENGLISH);
+        return identifier;
+    }
+}
@@ -0,0 +1,197 @@
+package org.openforis.rmb.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The SQL of a {@link JdbcMessageRepository}, built once for its table prefix and dialect. SQL depending on a number
+ * of parameters is built once per number. Reusing the same SQL strings also lets drivers and connection pools
+ * caching prepared statements find them.
+ */
+final class SqlStatements {
+    // With 5 parameters per row, a claim stays well within PostgreSQL's limit of 32767 parameters
+    static final int MAX_CLAIM_SIZE = 512;
+
+    final String tablePrefix;
+    final JdbcDialect dialect;
+
+    final String insertMessage;
+    final String insertMessageProcessing;
+    final String updateMessageProcessing;
+    final String deleteMessageProcessing;
+    final String lockMessage;
+    final String deleteMessageIfOrphaned;
+    final String deleteOrphanedMessages;
+    final String candidates;
+    final String limitedCandidates;
+    final String skipLockedCandidates;
+    final String timedOutCandidates;
+    final String limitedTimedOutCandidates;
+    final String skipLockedTimedOutCandidates;
+
+    private final ConcurrentMap<Integer, String> multiConsumerCandidatesByConsumerCount =
+            new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<Integer, String> claimByCandidateCount = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<Integer, String> serializedMessagesByIdCount = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<Integer, String> lockMessagesByIdCount = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<Integer, String> deleteMessagesIfOrphanedByIdCount =
+            new ConcurrentHashMap<Integer, String>();
+
+    SqlStatements(String tablePrefix, JdbcDialect dialect) {
+        this.tablePrefix = tablePrefix;
+        this.dialect = dialect;
+        insertMessage = "" +
+                "INSERT INTO " + tablePrefix + "message(id, publication_time, queue_id, message_string, message_bytes)\n" +
+                "VALUES(?, ?, ?, ?, ?)";
+        insertMessageProcessing = "" +
+                "INSERT INTO " + tablePrefix + "message_processing(message_id, consumer_id, version_id, state, last_updated, times_out, retries)\n" +
+                "VALUES(?, ?, ?, ?, ?, ?, ?)";
+        updateMessageProcessing = "" +
+                "UPDATE " + tablePrefix + "message_processing\n" +
+                "SET state = ?, last_updated = ?, times_out = ?, version_id = ?, retries = ?, error_message = ? \n" +
+                "WHERE message_id = ? AND consumer_id = ? AND version_id = ?";
+        deleteMessageProcessing = "" +
+                "DELETE FROM " + tablePrefix + "message_processing\n" +
+                "WHERE message_id = ? AND consumer_id = ? AND version_id = ?";
+        lockMessage = "" +
+                "SELECT id FROM " + tablePrefix + "message\n" +
+                "WHERE id = ?\n" +
+                "FOR UPDATE";
+        deleteMessageIfOrphaned = "" +
+                "DELETE FROM " + tablePrefix + "message\n" +
+                "WHERE id = ?\n" +
+                "AND NOT EXISTS (SELECT 1 FROM " + tablePrefix + "message_processing WHERE message_id = ?)";
+        deleteOrphanedMessages = "" +
+                "DELETE FROM " + tablePrefix + "message\n" +
+                "WHERE NOT EXISTS (SELECT 1 FROM " + tablePrefix + "message_processing mc\n" +
+                "                  WHERE mc.message_id = " + tablePrefix + "message.id)";
+        candidates = "" +
+                "SELECT consumer_id, queue_id, message_id, sequence_no, publication_time, version_id, state, " +
+                "       times_out, retries, error_message \n" +
+                "FROM " + tablePrefix + "message_processing mc\n" +
+                "JOIN " + tablePrefix + "message m ON mc.message_id = m.id\n" +
+                "WHERE consumer_id = ?\n" +
+                "AND state IN ('PENDING', 'PROCESSING')\n" +
+                "ORDER BY sequence_no";
+        limitedCandidates = dialect.limit() == null ? null : candidates + "\n" + dialect.limit();
+        skipLockedCandidates = !dialect.supportsSkipLocked() ? null : "" +
+                "SELECT consumer_id, queue_id, mc.message_id, sequence_no, publication_time, version_id, state, " +
+                "       times_out, retries, error_message \n" +
+                "FROM " + tablePrefix + "message_processing mc\n" +
+                "JOIN " + tablePrefix + "message m ON mc.message_id = m.id\n" +
+                "JOIN (SELECT wc.message_id window_message_id, wc.consumer_id window_consumer_id\n" +
+                "      FROM " + tablePrefix + "message_processing wc\n" +
+                "      JOIN " + tablePrefix + "message wm ON wc.message_id = wm.id\n" +
+                "      WHERE wc.consumer_id = ?\n" +
+                "      AND wc.state IN ('PENDING', 'PROCESSING')\n" +
+                "      ORDER BY wm.sequence_no\n" +
+                "      " + dialect.limit() + ") w ON mc.message_id = w.window_message_id AND mc.consumer_id = w.window_consumer_id\n" +
+                "WHERE state = 'PENDING' OR times_out < ?\n" +
+                "ORDER BY sequence_no\n" +
+                dialect.limit() + "\n" +
+                "FOR UPDATE OF mc SKIP LOCKED";
+        // Served by the (consumer_id, state, times_out) index, in index order, so only expired leases are read
+        timedOutCandidates = "" +
+                "SELECT consumer_id, queue_id, message_id, sequence_no, publication_time, version_id, state, " +
+                "       times_out, retries, error_message \n" +
+                "FROM " + tablePrefix + "message_processing mc\n" +
+                "JOIN " + tablePrefix + "message m ON mc.message_id = m.id\n" +
+                "WHERE consumer_id = ?\n" +
+                "AND state = 'PROCESSING'\n" +
+                "AND times_out < ?\n" +
+                "ORDER BY times_out";
+        limitedTimedOutCandidates = dialect.limit() == null ? null : timedOutCandidates + "\n" + dialect.limit();
+        skipLockedTimedOutCandidates = !dialect.supportsSkipLocked() ? null :
+                limitedTimedOutCandidates + "\nFOR UPDATE OF mc SKIP LOCKED";
+    }
+
+    String multiConsumerCandidates(int consumerCount) {
+        String sql = multiConsumerCandidatesByConsumerCount.get(consumerCount);
+        if (sql == null) {
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < consumerCount; i++) {
+                if (i > 0)
+                    s.append("\nUNION ALL\n");
+                s.append("SELECT * FROM (")
+                        .append(limitedCandidates)
+                        .append(") c").append(i);
+            }
+            sql = s.append("\nORDER BY sequence_no").toString();
+            multiConsumerCandidatesByConsumerCount.putIfAbsent(consumerCount, sql);
+        }
+        return sql;
+    }
+
+    // Claims are padded to a power of two rows, so at most log2(MAX_CLAIM_SIZE) + 1 statements are built
+    static int claimSize(int candidateCount) {
+        if (candidateCount > MAX_CLAIM_SIZE)
+            throw new IllegalArgumentException("At most " + MAX_CLAIM_SIZE + " candidates can be claimed at a time");
+        int size = 1;
+        while (size < candidateCount)
+            size <<= 1;
+        return size;
+    }
+
+    String claim(int candidateCount) {
+        if (candidateCount != claimSize(candidateCount))
+            throw new IllegalArgumentException("Claims must be padded to a claim size. Got " + candidateCount);
+        String sql = claimByCandidateCount.get(candidateCount);
+        if (sql == null) {
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < candidateCount; i++) {
+                if (i > 0)
+                    values.append(",\n        ");
+                values.append("(?, ?, ?, ?, CAST(? AS TIMESTAMP))");
+            }
+            sql = "" +
+                    "UPDATE " + tablePrefix + "message_processing mc\n" +
+                    "SET state = 'PROCESSING', last_updated = ?, times_out = c.times_out, version_id = c.to_version_id\n" +
+                    "FROM (VALUES " + values + ") c(message_id, consumer_id, from_version_id, to_version_id, times_out)\n" +
+                    "WHERE mc.message_id = c.message_id\n" +
+                    "AND mc.consumer_id = c.consumer_id\n" +
+                    "AND mc.version_id = c.from_version_id\n" +
+                    "RETURNING mc.message_id, mc.consumer_id";
+            claimByCandidateCount.putIfAbsent(candidateCount, sql);
+        }
+        return sql;
+    }
+
+    String lockMessages(int idCount) {
+        String sql = lockMessagesByIdCount.get(idCount);
+        if (sql == null) {
+            sql = "" +
+                    "SELECT id FROM " + tablePrefix + "message\n" +
+                    "WHERE " + dialect.in("id", idCount) + "\n" +
+                    "ORDER BY id\n" +
+                    "FOR UPDATE";
+            lockMessagesByIdCount.putIfAbsent(idCount, sql);
+        }
+        return sql;
+    }
+
+    String serializedMessages(int idCount) {
+        String sql = serializedMessagesByIdCount.get(idCount);
+        if (sql == null) {
+            sql = "" +
+                    "SELECT id, message_string, message_bytes\n" +
+                    "FROM " + tablePrefix + "message\n" +
+                    "WHERE " + dialect.in("id", idCount) + "\n" +
+                    "ORDER BY sequence_no";
+            serializedMessagesByIdCount.putIfAbsent(idCount, sql);
+        }
+        return sql;
+    }
+
+    String deleteMessagesIfOrphaned(int idCount) {
+        String sql = deleteMessagesIfOrphanedByIdCount.get(idCount);
+        if (sql == null) {
+            sql = "" +
+                    "DELETE FROM " + tablePrefix + "message\n" +
+                    "WHERE " + dialect.in("id", idCount) + "\n" +
+                    "AND NOT EXISTS (SELECT 1 FROM " + tablePrefix + "message_processing mc\n" +
+                    "                WHERE mc.message_id = " + tablePrefix + "message.id)";
+            deleteMessagesIfOrphanedByIdCount.putIfAbsent(idCount, sql);
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,44 @@
+package org.openforis.rmb.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of a connection, reused for as long as the connection is used by the repository.
+ * This way, statements executed multiple times, such as once per consumer or once per row, are only prepared once.
+ */
+final class StatementCache {
+    final Connection connection;
+    private final Map<String, PreparedStatement> statementBySql = new HashMap<String, PreparedStatement>();
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statementBySql.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statementBySql.put(sql, ps);
+        } else
+            ps.clearParameters();
+        return ps;
+    }
+
+    void close() throws SQLException {
+        SQLException exception = null;
+        for (PreparedStatement ps : statementBySql.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                exception = e;
+            }
+        }
+        statementBySql.clear();
+        if (exception != null)
+            throw exception;
+    }
+}
@@ -0,0 +1,23 @@
+package org.openforis.rmb.monitor;
+
+import org.openforis.rmb.spi.MessageNotifier;
+import org.openforis.rmb.util.Is;
+
+public final class ListeningForPublishedMessagesFailedEvent implements Event {
+    public final MessageNotifier messageNotifier;
+    public final Exception exception;
+
+    public ListeningForPublishedMessagesFailedEvent(MessageNotifier messageNotifier, Exception exception) {
+        Is.notNull(messageNotifier, "messageNotifier must not be null");
+        Is.notNull(exception, "exception must not be null");
+        this.messageNotifier = messageNotifier;
+        this.exception = exception;
+    }
+
+    public String toString() {
+        return "ListeningForPublishedMessagesFailedEvent{" +
+                "messageNotifier=" + messageNotifier +
+                ", exception=" + exception +
+                '}';
+    }
+}
@@ -0,0 +1,25 @@
+package org.openforis.rmb.monitor;
+
+import org.openforis.rmb.spi.MessageRepository;
+import org.openforis.rmb.util.Is;
+
+import java.util.List;
+
+public final class MessageRepositoryProblemsFoundEvent implements Event {
+    public final MessageRepository repository;
+    public final List<String> problems;
+
+    public MessageRepositoryProblemsFoundEvent(MessageRepository repository, List<String> problems) {
+        Is.notNull(repository, "repository must not be null");
+        Is.notEmpty(problems, "problems must not be empty");
+        this.repository = repository;
+        this.problems = problems;
+    }
+
+    public String toString() {
+        return "MessageRepositoryProblemsFoundEvent{" +
+                "repository=" + repository +
+                ", problems=" + problems +
+                '}';
+    }
+}
@@ -7,15 +7,25 @@ import java.util.Map;
 
 public final class PollingForMessagesEvent implements Event {
     public final Map<MessageConsumer<?>, Integer> maxCountByConsumer;
+    /**
+     * The number of additional requests to poll, made while this poll was pending, and handled by it.
+     */
+    public final int coalescedPollCount;
 
     public PollingForMessagesEvent(Map<MessageConsumer<?>, Integer> maxCountByConsumer) {
+        this(maxCountByConsumer, 0);
+    }
+
+    public PollingForMessagesEvent(Map<MessageConsumer<?>, Integer> maxCountByConsumer, int coalescedPollCount) {
         Is.notNull(maxCountByConsumer, "maxCountByConsumer must not be null");
         this.maxCountByConsumer = maxCountByConsumer;
+        this.coalescedPollCount = coalescedPollCount;
     }
 
     public String toString() {
         return "PollingForMessagesEvent{" +
                 "maxCountByConsumer=" + maxCountByConsumer +
+                ", coalescedPollCount=" + coalescedPollCount +
                 '}';
     }
 }
@@ -1,27 +1,29 @@
 package org.openforis.rmb.objectserialization;
 
-import org.openforis.rmb.spi.MessageSerializer;
+import org.openforis.rmb.spi.StreamingMessageSerializer;
 import org.openforis.rmb.util.Is;
 
 import java.io.*;
 
-public final class ObjectSerializationMessageSerializer implements MessageSerializer {
+public final class ObjectSerializationMessageSerializer implements StreamingMessageSerializer {
     public Object serialize(Object message) throws SerializationFailed {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        serialize(message, bo);
+        return bo.toByteArray();
+    }
+
+    public void serialize(Object message, OutputStream out) throws SerializationFailed {
         Is.notNull(message, "message must not be null");
+        Is.notNull(out, "out must not be null");
         if (!(message instanceof Serializable))
             throw new IllegalArgumentException("message must be Serializable. Message type: " + message.getClass());
 
-        ObjectOutputStream objectOutputStream = null;
         try {
-            ByteArrayOutputStream bo = new ByteArrayOutputStream();
-            objectOutputStream = new ObjectOutputStream(bo);
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
             objectOutputStream.writeObject(message);
-            objectOutputStream.flush();
-            return bo.toByteArray();
+            objectOutputStream.flush(); // Not closed, since that would close the provided stream
         } catch (IOException e) {
             throw new SerializationFailed("Failed to serialize " + message, e);
-        } finally {
-            close(objectOutputStream);
         }
     }
 
@@ -30,25 +32,15 @@ public final class ObjectSerializationMessageSerializer implements MessageSerial
             throw new IllegalArgumentException("serializedMessage is null");
         if (!(serializedMessage instanceof byte[]))
             throw new IllegalArgumentException("Expected serializedMessage to be a byte[]. Was a " + serializedMessage.getClass());
-        byte[] bytes = (byte[]) serializedMessage;
+        return deserialize(new ByteArrayInputStream((byte[]) serializedMessage));
+    }
 
-        ObjectInputStream objectInputStream = null;
+    public Object deserialize(InputStream in) throws DeserilizationFailed {
+        Is.notNull(in, "in must not be null");
         try {
-            objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-            return objectInputStream.readObject();
+            return new ObjectInputStream(in).readObject();
         } catch (Exception e) {
             throw new DeserilizationFailed(e);
-        } finally {
-            close(objectInputStream);
-        }
-    }
-
-    private void close(Closeable closeable) {
-        try {
-            if (closeable != null)
-                closeable.close();
-        } catch (IOException ignore) {
-
         }
     }
 }
@@ -0,0 +1,26 @@
+package org.openforis.rmb.spi;
+
+import org.openforis.rmb.MessageConsumer;
+
+import java.util.List;
+
+/**
+ * A {@link MessageRepository} able to add multiple messages to a queue at once.
+ * <p>
+ * Messages published to repositories not implementing this interface are added one by one.
+ * </p>
+ */
+public interface BatchAddingMessageRepository extends MessageRepository {
+    /**
+     * Add messages to a queue. The messages are added in the order provided. Implementations are encouraged to add
+     * the messages in a single round-trip to the repository.
+     *
+     * @param queueId            the queue to add the messages to
+     * @param consumers          the consumers to handle the messages
+     * @param serializedMessages the messages, in serialized form. They should either be Strings or byte[]s, or, for
+     *                           a {@link StreamingMessageRepository}, {@link java.io.InputStream}s
+     */
+    void addAll(
+            String queueId, List<MessageConsumer<?>> consumers, List<Object> serializedMessages
+    ) throws MessageRepositoryException;
+}
@@ -0,0 +1,23 @@
+package org.openforis.rmb.spi;
+
+import java.util.List;
+
+/**
+ * A {@link MessageRepository} able to update the status of multiple message processing at once.
+ * <p>
+ * Repositories not implementing this interface get their updates one by one.
+ * </p>
+ */
+public interface BatchUpdatingMessageRepository extends MessageRepository {
+    /**
+     * Update the status of multiple message processing. Implementations are encouraged to make the updates
+     * in a single round-trip to the repository.
+     *
+     * @param updates the updates to make
+     * @return for each update, in the order of the provided updates, false if there was a conflict when updating
+     * the status
+     */
+    List<Boolean> updateAll(
+            List<MessageProcessingUpdate> updates
+    ) throws MessageRepositoryException;
+}
@@ -0,0 +1,44 @@
+package org.openforis.rmb.spi;
+
+/**
+ * A {@link TransactionSynchronizer} which can also keep buffers in transactions, flushed right before the transactions
+ * commit. This allows message queues to buffer messages published in a transaction, and add them to the repository
+ * in one go.
+ */
+public interface BufferingTransactionSynchronizer extends TransactionSynchronizer {
+    /**
+     * Gets the buffer of the current transaction for a key. The first time in a transaction, the buffer is created by
+     * the factory. The buffer is flushed right before the transaction commits, within the transaction,
+     * and discarded when the transaction completes, whether it committed or not.
+     *
+     * @param key     the key of the buffer
+     * @param factory the factory to create the buffer with, if the current transaction has no buffer for the key
+     * @param <B>     the type of buffer
+     * @return the buffer
+     */
+    <B extends Buffer> B buffer(Object key, BufferFactory<B> factory);
+
+    /**
+     * Work buffered in a transaction.
+     */
+    interface Buffer {
+        /**
+         * Invoked right before the transaction commits, within the transaction.
+         */
+        void flush();
+    }
+
+    /**
+     * Creates buffers.
+     *
+     * @param <B> the type of buffer
+     */
+    interface BufferFactory<B extends Buffer> {
+        /**
+         * Creates a buffer. Invoked within the transaction the buffer is created for.
+         *
+         * @return the buffer
+         */
+        B create();
+    }
+}
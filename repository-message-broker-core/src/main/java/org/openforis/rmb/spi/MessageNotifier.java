@@ -0,0 +1,57 @@
+package org.openforis.rmb.spi;
+
+/**
+ * Notifies message brokers on other nodes when messages are published, so they can take them right away, instead of
+ * at the next repository poll.
+ */
+public interface MessageNotifier {
+    /**
+     * A fake implementation which never notifies anyone.
+     */
+    MessageNotifier NULL_MESSAGE_NOTIFIER = new MessageNotifier() {
+        public void notifyMessagesPublished() {
+        }
+
+        public void start(Listener listener) {
+        }
+
+        public void stop() {
+        }
+    };
+
+    /**
+     * Invoked within the transaction publishing messages. Other nodes must only be notified if the transaction
+     * commits. If the {@link TransactionSynchronizer} is a {@link BufferingTransactionSynchronizer}, this is invoked
+     * once per transaction, right before it commits. Otherwise, it is invoked each time messages are published.
+     */
+    void notifyMessagesPublished();
+
+    /**
+     * Starts listening for messages published by other nodes. Invoked when the message broker is started.
+     *
+     * @param listener the listener to invoke when other nodes published messages
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops listening for messages published by other nodes. Invoked when the message broker is stopped.
+     */
+    void stop();
+
+    /**
+     * Callback for messages published by other nodes.
+     */
+    interface Listener {
+        /**
+         * Invoked when messages published by other nodes have been committed.
+         */
+        void messagesPublished();
+
+        /**
+         * Invoked when listening failed. The notifier is expected to keep on trying.
+         *
+         * @param exception the reason of the failure
+         */
+        void listeningFailed(Exception exception);
+    }
+}
@@ -4,7 +4,6 @@ import org.openforis.rmb.MessageConsumer;
 import org.openforis.rmb.util.Is;
 
 import java.util.Date;
-import java.util.UUID;
 
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.PROCESSING;
 
@@ -56,15 +55,15 @@ public final class MessageProcessing<M> {
      */
     public MessageProcessingUpdate<M> take(Clock clock) {
         return MessageProcessingUpdate.create(messageDetails(), consumer, status(),
-                new MessageProcessingStatus(PROCESSING, retries, errorMessage, now(clock), randomUuid()));
+                new MessageProcessingStatus(PROCESSING, retries, errorMessage, now(clock), nextVersionId()));
     }
 
     private Date now(Clock clock) {
         return new Date(clock.millis());
     }
 
-    private String randomUuid() {
-        return UUID.randomUUID().toString();
+    private String nextVersionId() {
+        return MessageProcessingStatus.nextVersionId(versionId);
     }
 
     private MessageProcessingStatus status() {
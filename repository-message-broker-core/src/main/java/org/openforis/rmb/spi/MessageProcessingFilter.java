@@ -97,6 +97,16 @@ public final class MessageProcessingFilter {
         return messageIds;
     }
 
+    /**
+     * Checks if the filter applies no constraint, selecting all message processing.
+     *
+     * @return true if no constraint is applied
+     */
+    public boolean selectsAll() {
+        return states.isEmpty() && publishedBefore == null && publishedAfter == null
+                && lastUpdatedBefore == null && lastUpdatedAfter == null && messageIds.isEmpty();
+    }
+
     /**
      * Buildes {@link MessageProcessingFilter} instances. Configure the {@link MessageProcessingFilter} through
      * the chainable builder methods, and finally build using {@link #build()}.
@@ -3,11 +3,22 @@ package org.openforis.rmb.spi;
 import org.openforis.rmb.util.Is;
 
 import java.util.Date;
+import java.util.UUID;
 
 /**
  * Represents the current status of a message to be/being processed by a consumer.
  */
 public final class MessageProcessingStatus {
+    /**
+     * The version id to give a new processing, to have it versioned by a counter instead of random UUIDs.
+     * <p>
+     * Each update of a processing with a counter version id increments the counter, instead of generating a
+     * random UUID. Processing with other version ids keep getting random UUIDs.
+     * </p>
+     */
+    public static final String INITIAL_VERSION_ID = "0";
+
+    private static final int MAX_COUNTER_VERSION_ID_LENGTH = 18; // Always fits a long
     final State state;
     final int retries;
     final String errorMessage;
@@ -46,6 +57,25 @@ public final class MessageProcessingStatus {
                 '}';
     }
 
+    // The version id following the provided one. No random UUID is generated for counter versions,
+    // sparing the lock on the shared SecureRandom
+    static String nextVersionId(String versionId) {
+        if (!isCounter(versionId))
+            return UUID.randomUUID().toString();
+        return String.valueOf(Long.parseLong(versionId) + 1);
+    }
+
+    private static boolean isCounter(String versionId) {
+        if (versionId.length() > MAX_COUNTER_VERSION_ID_LENGTH)
+            return false;
+        for (int i = 0; i < versionId.length(); i++) {
+            char c = versionId.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
     private void validate() {
         Is.notNull(state, "state must not be null");
         Is.zeroOrGreater(retries, "retries cannot be negative");
@@ -5,7 +5,6 @@ import org.openforis.rmb.spi.MessageProcessingStatus.State;
 import org.openforis.rmb.util.Is;
 
 import java.util.Date;
-import java.util.UUID;
 
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.*;
 
@@ -84,7 +83,7 @@ public final class MessageProcessingUpdate<M> {
                 messageDetails(),
                 consumer,
                 toStatus(),
-                new MessageProcessingStatus(PROCESSING, retries, errorMessage, now(clock), randomUuid())
+                new MessageProcessingStatus(PROCESSING, retries, errorMessage, now(clock), nextVersionId())
         );
     }
 
@@ -101,7 +100,7 @@ public final class MessageProcessingUpdate<M> {
                 messageDetails(),
                 consumer,
                 toStatus(),
-                new MessageProcessingStatus(COMPLETED, retries, errorMessage, now(clock), randomUuid())
+                new MessageProcessingStatus(COMPLETED, retries, errorMessage, now(clock), nextVersionId())
         );
     }
 
@@ -119,7 +118,7 @@ public final class MessageProcessingUpdate<M> {
                 messageDetails(),
                 consumer,
                 toStatus(),
-                new MessageProcessingStatus(PROCESSING, retries + 1, errorMessage, now(clock), randomUuid())
+                new MessageProcessingStatus(PROCESSING, retries + 1, errorMessage, now(clock), nextVersionId())
         );
     }
 
@@ -136,7 +135,23 @@ public final class MessageProcessingUpdate<M> {
                 messageDetails(),
                 consumer,
                 toStatus(),
-                new MessageProcessingStatus(FAILED, retries, errorMessage, now(clock), randomUuid())
+                new MessageProcessingStatus(FAILED, retries, errorMessage, now(clock), nextVersionId())
+        );
+    }
+
+    /**
+     * Releases the message, changing the state back to {@link State#PENDING}, so it can be taken again.
+     *
+     * @param clock the clock used to calculate current time
+     * @return an instance representing the update
+     */
+    public MessageProcessingUpdate<M> released(Clock clock) {
+        Is.notNull(clock, "clock must not be null");
+        return new MessageProcessingUpdate<M>(
+                messageDetails(),
+                consumer,
+                toStatus(),
+                new MessageProcessingStatus(PENDING, retries, errorMessage, now(clock), nextVersionId())
         );
     }
 
@@ -259,8 +274,8 @@ public final class MessageProcessingUpdate<M> {
         return new Date(clock.millis());
     }
 
-    private String randomUuid() {
-        return UUID.randomUUID().toString();
+    private String nextVersionId() {
+        return MessageProcessingStatus.nextVersionId(toVersionId);
     }
 
     private MessageDetails messageDetails() {
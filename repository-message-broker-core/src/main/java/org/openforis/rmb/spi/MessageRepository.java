@@ -15,7 +15,8 @@ public interface MessageRepository {
      *
      * @param queueId           the queue to add the message to
      * @param consumers         the consumers to handle the message
-     * @param serializedMessage the message, in serialized form. It should either be a String or a byte[]
+     * @param serializedMessage the message, in serialized form. It should either be a String or a byte[], or, for a
+     *                          {@link StreamingMessageRepository}, an {@link java.io.InputStream}
      */
     void add(
             String queueId, List<MessageConsumer<?>> consumers, Object serializedMessage
@@ -83,7 +84,9 @@ public interface MessageRepository {
          * Invoked when message processing has been taken.
          *
          * @param update            the update made when taking the message
-         * @param serializedMessage the serialized message, which will either be a String or a byte[]
+         * @param serializedMessage the serialized message, which will either be a String or a byte[], or, for a
+         *                          {@link StreamingMessageRepository}, an {@link java.io.InputStream} only valid
+         *                          until this method returns
          */
         void taken(MessageProcessingUpdate update, Object serializedMessage);
     }
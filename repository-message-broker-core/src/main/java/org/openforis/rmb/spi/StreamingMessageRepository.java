@@ -0,0 +1,13 @@
+package org.openforis.rmb.spi;
+
+/**
+ * A {@link MessageRepository} supporting serialized messages in the form of {@link java.io.InputStream}s, in
+ * addition to Strings and byte[]s.
+ * <p>
+ * Messages added as InputStreams are read straight into the repository, instead of first being copied into a
+ * byte[]. A repository may also hand serialized messages to {@link MessageRepository.MessageTakenCallback}s as
+ * InputStreams. Such a stream is only valid until the callback returns.
+ * </p>
+ */
+public interface StreamingMessageRepository extends MessageRepository {
+}
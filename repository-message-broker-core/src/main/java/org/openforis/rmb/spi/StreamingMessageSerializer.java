@@ -0,0 +1,32 @@
+package org.openforis.rmb.spi;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link MessageSerializer} that can also serialize messages to a stream, and deserialize them from a stream.
+ * <p>
+ * When the {@link MessageRepository} is a {@link StreamingMessageRepository}, messages are serialized through
+ * {@link #serialize(Object, OutputStream)}, and serialized messages handed over as {@link InputStream}s are
+ * deserialized through {@link #deserialize(InputStream)}. This avoids copying large messages between byte[]s.
+ * The stream must hold the same bytes as the byte[] returned by {@link #serialize(Object)}, so messages can be
+ * deserialized either way.
+ * </p>
+ */
+public interface StreamingMessageSerializer extends MessageSerializer {
+    /**
+     * Serialize message to a stream. The stream is not closed.
+     *
+     * @param message the message to serialize
+     * @param out     the stream to write the serialized message to
+     */
+    void serialize(Object message, OutputStream out) throws SerializationFailed;
+
+    /**
+     * Deserialize message from a stream. The stream is not closed.
+     *
+     * @param in the stream to read the serialized message from
+     * @return the deserialized message
+     */
+    Object deserialize(InputStream in) throws DeserilizationFailed;
+}
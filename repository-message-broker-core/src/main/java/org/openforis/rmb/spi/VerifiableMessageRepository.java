@@ -0,0 +1,16 @@
+package org.openforis.rmb.spi;
+
+import java.util.List;
+
+/**
+ * A {@link MessageRepository} which can verify that it's properly set up.
+ * The message broker verifies such repositories when started, and reports any problems found to its monitors.
+ */
+public interface VerifiableMessageRepository extends MessageRepository {
+    /**
+     * Verify that the repository is properly set up.
+     *
+     * @return descriptions of the problems found, or an empty list if none were found
+     */
+    List<String> verify() throws MessageRepositoryException;
+}
@@ -104,6 +104,22 @@ abstract class AbstractMessageRepositoryIntegrationTest extends Specification {
             takenCallback.notInvoked()
     }
 
+    def 'Given a released message, when taking messages, callback is invoked with an update from PENDING to PROCESSING'() {
+        def consumer = consumer('consumer id')
+        addMessage('A message', consumer)
+        MessageProcessingUpdate taken = null
+        repository.take((consumer): 1, { update, message -> taken = update } as MessageRepository.MessageTakenCallback)
+        withTransaction { repository.update(taken.released(clock)) }
+
+        when:
+            take((consumer): 1)
+
+        then:
+            def callbackInvocation = takenCallback.gotOneMessage('A message', consumer)
+            callbackInvocation.update.fromState == PENDING
+            callbackInvocation.update.toState == PROCESSING
+    }
+
     def 'Given a timed out message, when taking messages, callback is invoked with the message and an update from PROCESSING to PROCESSING'() {
         def consumer = consumer('consumer id')
 
@@ -318,15 +334,14 @@ abstract class AbstractMessageRepositoryIntegrationTest extends Specification {
         def clock = new DefaultThrottlerTest.StaticClock()
         repository.clock = clock
 
-        addMessage('Message updated before', consumer)
-        addMessage('Message updated on', consumer)
-        addMessage('Message updated after', consumer)
-
         clock.time = 99
+        addMessage('Message updated before', consumer)
         take((consumer): 1)
         clock.time = 100
+        addMessage('Message updated on', consumer)
         take((consumer): 2)
         clock.time = 101
+        addMessage('Message updated after', consumer)
         take((consumer): 3)
 
         when: 'updated before'
@@ -0,0 +1,36 @@
+package org.openforis.rmb
+
+import spock.lang.Specification
+
+import static org.openforis.rmb.MessagePoller.TakeOutcome.*
+
+class AdaptivePollingScheduleTest extends Specification {
+    def schedule = new AdaptivePollingSchedule(100, 1000)
+
+    def 'While nothing is taken, delay is doubled up to max'() {
+        expect:
+            (1..6).collect { schedule.nextDelayMillis(NOTHING_TAKEN) } == [200, 400, 800, 1000, 1000, 1000]
+    }
+
+    def 'When a full batch is taken, delay is reset to min'() {
+        3.times { schedule.nextDelayMillis(NOTHING_TAKEN) }
+
+        expect:
+            schedule.nextDelayMillis(FULL_BATCH_TAKEN) == 100
+    }
+
+    def 'When some messages are taken, or outcome is unknown, delay is kept'() {
+        2.times { schedule.nextDelayMillis(NOTHING_TAKEN) }
+
+        expect:
+            schedule.nextDelayMillis(MESSAGES_TAKEN) == 400
+            schedule.nextDelayMillis(null) == 400
+    }
+
+    def 'Given a huge max, delay does not overflow'() {
+        schedule = new AdaptivePollingSchedule(1, Long.MAX_VALUE)
+
+        expect:
+            (1..100).collect { schedule.nextDelayMillis(NOTHING_TAKEN) }.every { it > 0 }
+    }
+}
@@ -0,0 +1,33 @@
+package org.openforis.rmb
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class ChunkedBytesTest extends Specification {
+    @Unroll
+    def 'Given #size bytes, they are read back as they were'() {
+        def bytes = (0..<size).collect { it as byte } as byte[]
+
+        when:
+            def chunkedBytes = ChunkedBytes.read(new ByteArrayInputStream(bytes))
+
+        then:
+            chunkedBytes.toByteArray() == bytes
+            chunkedBytes.toInputStream().bytes == bytes
+
+        where:
+            size << [0, 1, 4 * 1024, 4 * 1024 + 1, 300 * 1024]
+    }
+
+    def 'Given a stream returning fewer bytes than asked for, all bytes are read'() {
+        def bytes = (0..<10000).collect { it as byte } as byte[]
+        def stream = new ByteArrayInputStream(bytes) {
+            synchronized int read(byte[] b, int off, int len) {
+                super.read(b, off, Math.min(len, 100))
+            }
+        }
+
+        expect:
+            ChunkedBytes.read(stream).toByteArray() == bytes
+    }
+}
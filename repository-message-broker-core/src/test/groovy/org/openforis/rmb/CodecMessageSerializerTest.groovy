@@ -0,0 +1,139 @@
+package org.openforis.rmb
+
+import groovy.transform.EqualsAndHashCode
+import org.openforis.rmb.codec.CodecMessageSerializer
+import org.openforis.rmb.codec.MessageCodec
+import org.openforis.rmb.objectserialization.ObjectSerializationMessageSerializer
+import org.openforis.rmb.spi.MessageSerializer
+import spock.lang.Specification
+
+class CodecMessageSerializerTest extends Specification {
+    def message = new OrderPlaced(orderId: 'order-123', quantity: 5, placedTime: 1234567890L)
+    def objectSerializer = new ObjectSerializationMessageSerializer()
+    def serializer = CodecMessageSerializer.builder()
+            .register(1, OrderPlaced, new OrderPlacedCodec())
+            .fallback(objectSerializer)
+            .build()
+
+    def 'Registered message can be serialized and deserialized back to original'() {
+        when:
+            def result = serializer.deserialize(serializer.serialize(message))
+
+        then:
+            result == message
+    }
+
+    def 'Registered message can be streamed and deserialized back to original'() {
+        def out = new ByteArrayOutputStream()
+
+        when:
+            serializer.serialize(message, out)
+            def result = serializer.deserialize(new ByteArrayInputStream(out.toByteArray()))
+
+        then:
+            result == message
+    }
+
+    def 'Serialized message is a fraction of the size of object serialization'() {
+        when:
+            byte[] serialized = serializer.serialize(message) as byte[]
+
+        then:
+            serialized.length * 5 < (objectSerializer.serialize(message) as byte[]).length
+    }
+
+    def 'Messages of types not registered are serialized by the fallback'() {
+        expect:
+            serializer.deserialize(serializer.serialize('a string')) == 'a string'
+    }
+
+    def 'Messages serialized by the fallback before the codec was registered can be deserialized'() {
+        expect:
+            serializer.deserialize(objectSerializer.serialize(message)) == message
+            serializer.deserialize(new ByteArrayInputStream(objectSerializer.serialize(message) as byte[])) == message
+    }
+
+    def 'Messages serialized to String by the fallback can be streamed'() {
+        def serializer = CodecMessageSerializer.builder()
+                .register(1, OrderPlaced, new OrderPlacedCodec())
+                .fallback(new StringMessageSerializer())
+                .build()
+        def out = new ByteArrayOutputStream()
+
+        when:
+            serializer.serialize('a string', out)
+
+        then:
+            serializer.deserialize(new ByteArrayInputStream(out.toByteArray())) == 'a string'
+            serializer.deserialize(out.toByteArray()) == 'a string'
+            serializer.serialize('a string') == 'a string'
+    }
+
+    def 'Tags above 127 can be used'() {
+        def serializer = CodecMessageSerializer.builder()
+                .register(100000, OrderPlaced, new OrderPlacedCodec())
+                .build()
+
+        expect:
+            serializer.deserialize(serializer.serialize(message)) == message
+    }
+
+    def 'Without fallback, serializing a message of a type not registered throws IllegalArgumentException'() {
+        def serializer = CodecMessageSerializer.builder()
+                .register(1, OrderPlaced, new OrderPlacedCodec())
+                .build()
+
+        when:
+            serializer.serialize('a string')
+
+        then:
+            thrown IllegalArgumentException
+    }
+
+    def 'When deserializing a message with an unknown tag, DeserilizationFailed is thrown'() {
+        def otherSerializer = CodecMessageSerializer.builder()
+                .register(2, OrderPlaced, new OrderPlacedCodec())
+                .build()
+
+        when:
+            serializer.deserialize(otherSerializer.serialize(message))
+
+        then:
+            thrown MessageSerializer.DeserilizationFailed
+    }
+
+    def 'Registering the same tag twice throws IllegalArgumentException'() {
+        when:
+            CodecMessageSerializer.builder()
+                    .register(1, OrderPlaced, new OrderPlacedCodec())
+                    .register(1, String, Mock(MessageCodec))
+
+        then:
+            thrown IllegalArgumentException
+    }
+
+    @EqualsAndHashCode
+    static class OrderPlaced implements Serializable {
+        String orderId
+        int quantity
+        long placedTime
+    }
+
+    static class OrderPlacedCodec implements MessageCodec<OrderPlaced> {
+        void write(OrderPlaced message, DataOutput out) throws IOException {
+            out.writeUTF(message.orderId)
+            out.writeInt(message.quantity)
+            out.writeLong(message.placedTime)
+        }
+
+        OrderPlaced read(DataInput input) throws IOException {
+            new OrderPlaced(orderId: input.readUTF(), quantity: input.readInt(), placedTime: input.readLong())
+        }
+    }
+
+    static class StringMessageSerializer implements MessageSerializer {
+        Object serialize(Object message) { message as String }
+
+        Object deserialize(Object serializedMessage) { serializedMessage as String }
+    }
+}
@@ -0,0 +1,101 @@
+package org.openforis.rmb
+
+import org.openforis.rmb.compression.CompressingMessageSerializer
+import org.openforis.rmb.objectserialization.ObjectSerializationMessageSerializer
+import org.openforis.rmb.spi.MessageSerializer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CompressingMessageSerializerTest extends Specification {
+    def stringSerializer = new StringMessageSerializer()
+
+    @Unroll
+    def '"#object" serialized to #type can be serialized and deserialized back to original'() {
+        def serializer = new CompressingMessageSerializer(delegate, 10)
+
+        when:
+            def serialized = serializer.serialize(object)
+            def result = serializer.deserialize(serialized)
+
+        then:
+            result == object
+
+        where:
+            delegate                                  | object
+            new StringMessageSerializer()              | 'short'
+            new StringMessageSerializer()              | 'a long message ' * 100
+            new StringMessageSerializer()              | 'ünïcödé ' * 100
+            new ObjectSerializationMessageSerializer() | 'a long message ' * 100
+            new ObjectSerializationMessageSerializer() | [1, 2, 3]
+
+            type = delegate instanceof StringMessageSerializer ? 'String' : 'byte[]'
+    }
+
+    def 'Messages above threshold are compressed'() {
+        def message = 'a long message ' * 100
+
+        when:
+            def serialized = new CompressingMessageSerializer(stringSerializer, 10).serialize(message)
+
+        then:
+            serialized instanceof byte[]
+            (serialized as byte[]).length < message.length()
+    }
+
+    def 'Messages below threshold are left as serialized by decorated serializer'() {
+        expect:
+            new CompressingMessageSerializer(stringSerializer, 100).serialize('short message') == 'short message'
+    }
+
+    def 'Messages not getting smaller are left as serialized by decorated serializer'() {
+        def random = new byte[1000]
+        new Random(1).nextBytes(random)
+        def serializer = new CompressingMessageSerializer(new PassThroughMessageSerializer(), 10)
+
+        expect:
+            serializer.serialize(random) == random
+    }
+
+    @Unroll
+    def 'Uncompressed #type messages, serialized without the decorator, can be deserialized'() {
+        def serialized = delegate.serialize('a long message ' * 100)
+
+        expect:
+            new CompressingMessageSerializer(delegate, 10).deserialize(serialized) == 'a long message ' * 100
+
+        where:
+            delegate << [new StringMessageSerializer(), new ObjectSerializationMessageSerializer()]
+            type << ['String', 'byte[]']
+    }
+
+    def 'When deserializing a truncated compressed message, DeserilizationFailed is thrown'() {
+        def serializer = new CompressingMessageSerializer(stringSerializer, 10)
+        byte[] serialized = serializer.serialize('a long message ' * 100) as byte[]
+
+        when:
+            serializer.deserialize(Arrays.copyOf(serialized, serialized.length - 10))
+
+        then:
+            thrown MessageSerializer.DeserilizationFailed
+    }
+
+    def 'When decorating null, IllegalArgumentException is thrown'() {
+        when:
+            new CompressingMessageSerializer(null)
+
+        then:
+            thrown IllegalArgumentException
+    }
+
+    static class StringMessageSerializer implements MessageSerializer {
+        Object serialize(Object message) { message as String }
+
+        Object deserialize(Object serializedMessage) { serializedMessage as String }
+    }
+
+    static class PassThroughMessageSerializer implements MessageSerializer {
+        Object serialize(Object message) { message }
+
+        Object deserialize(Object serializedMessage) { serializedMessage }
+    }
+}
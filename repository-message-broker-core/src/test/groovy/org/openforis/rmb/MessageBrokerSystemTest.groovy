@@ -1,12 +1,23 @@
 package org.openforis.rmb
 
 import org.openforis.rmb.inmemory.InMemoryMessageRepository
+import org.openforis.rmb.monitor.ListeningForPublishedMessagesFailedEvent
 import org.openforis.rmb.monitor.MessageConsumptionFailedEvent
+import org.openforis.rmb.monitor.MessageRepositoryProblemsFoundEvent
+import org.openforis.rmb.monitor.PollingForMessagesEvent
 import org.openforis.rmb.monitor.RetryingMessageConsumptionEvent
+import org.openforis.rmb.objectserialization.ObjectSerializationMessageSerializer
+import org.openforis.rmb.spi.BatchAddingMessageRepository
+import org.openforis.rmb.spi.MessageNotifier
+import org.openforis.rmb.spi.MessageRepository
 import org.openforis.rmb.spi.TransactionSynchronizer
+import org.openforis.rmb.spi.VerifiableMessageRepository
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
+import util.CollectingMonitor
+import util.TestBufferingTransactionSynchronizer
 
+import static java.util.concurrent.TimeUnit.HOURS
 import static org.openforis.rmb.spi.ThrottlingStrategy.NO_THROTTLING
 import static org.openforis.rmb.spi.TransactionSynchronizer.NULL_TRANSACTION_SYNCHRONIZER
 
@@ -30,6 +41,17 @@ class MessageBrokerSystemTest extends Specification {
             handler.handled('a message')
     }
 
+    def 'Message handler get messages published together'() {
+        def handler = createHandler()
+        def queue = queue(handler)
+
+        when:
+            queue.publishAll(['message 1', 'message 2', 'message 3'])
+
+        then:
+            handler.handled(['message 1', 'message 2', 'message 3'])
+    }
+
     def 'Given a never retrying consumer and a failing handler, consumption fails without retries'() {
         def handler = createFailingHandler(1)
         def queue = messageBroker.queueBuilder('queue', Object)
@@ -90,6 +112,256 @@ class MessageBrokerSystemTest extends Specification {
             thrown IllegalStateException
     }
 
+    def 'When starting a broker with a repository having problems, monitors receive a MessageRepositoryProblemsFoundEvent'() {
+        def repository = Mock(VerifiableMessageRepository)
+        repository.verify() >> ['Missing index']
+        def monitor = new CollectingMonitor()
+        def messageBroker = RepositoryMessageBroker
+                .builder(repository, NULL_TRANSACTION_SYNCHRONIZER)
+                .monitor(monitor)
+                .build()
+
+        when:
+            messageBroker.start()
+
+        then:
+            monitor.events.find { it instanceof MessageRepositoryProblemsFoundEvent }.problems == ['Missing index']
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'With publish buffering, messages published in a transaction are added in one go, and polled for once'() {
+        def repository = Mock(BatchAddingMessageRepository)
+        def transactionSynchronizer = new TestBufferingTransactionSynchronizer()
+        def messageBroker = RepositoryMessageBroker
+                .builder(repository, transactionSynchronizer)
+                .publishBuffering()
+                .build()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', {} as MessageHandler))
+                .build()
+        messageBroker.start()
+
+        when:
+            transactionSynchronizer.withTransaction {
+                queue.publish('message 1')
+                queue.publishAll(['message 2', 'message 3'])
+            }
+
+        then:
+            1 * repository.addAll('a queue', _, { it.size() == 3 })
+            0 * repository.add(*_)
+            transactionSynchronizer.commitListenersRegistered == 1
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'With publish buffering, given a repository not adding in batches, messages are added one by one'() {
+        def repository = Mock(MessageRepository)
+        def transactionSynchronizer = new TestBufferingTransactionSynchronizer()
+        def messageBroker = RepositoryMessageBroker
+                .builder(repository, transactionSynchronizer)
+                .publishBuffering()
+                .build()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', {} as MessageHandler))
+                .build()
+        messageBroker.start()
+
+        when:
+            transactionSynchronizer.withTransaction {
+                queue.publish('message 1')
+                queue.publishAll(['message 2', 'message 3'])
+            }
+
+        then:
+            3 * repository.add('a queue', _, _)
+            transactionSynchronizer.commitListenersRegistered == 1
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'With publish buffering, messages published in a rolled back transaction are not added'() {
+        def repository = Mock(BatchAddingMessageRepository)
+        def transactionSynchronizer = new TestBufferingTransactionSynchronizer()
+        def messageBroker = RepositoryMessageBroker
+                .builder(repository, transactionSynchronizer)
+                .publishBuffering()
+                .build()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', {} as MessageHandler))
+                .build()
+        messageBroker.start()
+
+        when:
+            transactionSynchronizer.withTransaction {
+                queue.publish('a message')
+                throw new IllegalStateException()
+            }
+
+        then:
+            thrown IllegalStateException
+            0 * repository.addAll(*_)
+            0 * repository.add(*_)
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'With publish buffering, message handler get messages published in a transaction'() {
+        def transactionSynchronizer = new TestBufferingTransactionSynchronizer()
+        def messageBroker = RepositoryMessageBroker
+                .builder(new InMemoryMessageRepository(), transactionSynchronizer)
+                .publishBuffering()
+                .build()
+        def handler = createHandler()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', handler))
+                .build()
+        messageBroker.start()
+
+        when:
+            transactionSynchronizer.withTransaction {
+                queue.publish('message 1')
+                queue.publish('message 2')
+            }
+
+        then:
+            handler.handled(['message 1', 'message 2'])
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'Publish buffering without a BufferingTransactionSynchronizer fails'() {
+        when:
+            RepositoryMessageBroker
+                    .builder(new InMemoryMessageRepository(), NULL_TRANSACTION_SYNCHRONIZER)
+                    .publishBuffering()
+
+        then:
+            thrown IllegalStateException
+    }
+
+    def 'Publishing a message notifies the message notifier'() {
+        def messageNotifier = Mock(MessageNotifier)
+        def messageBroker = RepositoryMessageBroker
+                .builder(new InMemoryMessageRepository(), NULL_TRANSACTION_SYNCHRONIZER)
+                .messageNotifier(messageNotifier)
+                .build()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', {} as MessageHandler))
+                .build()
+        messageBroker.start()
+
+        when:
+            queue.publish('a message')
+
+        then:
+            1 * messageNotifier.notifyMessagesPublished()
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'Given a buffering transaction synchronizer, the message notifier is notified once per transaction'() {
+        def messageNotifier = Mock(MessageNotifier)
+        def transactionSynchronizer = new TestBufferingTransactionSynchronizer()
+        def messageBroker = RepositoryMessageBroker
+                .builder(new InMemoryMessageRepository(), transactionSynchronizer)
+                .messageNotifier(messageNotifier)
+                .build()
+        def queue = messageBroker.queueBuilder('a queue')
+                .consumer(MessageConsumer.builder('a consumer', {} as MessageHandler))
+                .build()
+        messageBroker.start()
+
+        when:
+            transactionSynchronizer.withTransaction {
+                queue.publish('message 1')
+                queue.publish('message 2')
+                queue.publishAll(['message 3', 'message 4'])
+            }
+
+        then:
+            1 * messageNotifier.notifyMessagesPublished()
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'When notified about messages published by another node, the messages are handled'() {
+        def repository = new InMemoryMessageRepository()
+        MessageNotifier.Listener listener = null
+        def messageNotifier = Mock(MessageNotifier)
+        messageNotifier.start(_) >> { listener = it[0] }
+        def monitor = new CollectingMonitor()
+        def messageBroker = RepositoryMessageBroker
+                .builder(repository, NULL_TRANSACTION_SYNCHRONIZER)
+                .messageNotifier(messageNotifier)
+                .repositoryWatcherPollingSchedule(1, HOURS)
+                .monitor(monitor)
+                .build()
+        def handler = createHandler()
+        def consumer = MessageConsumer.builder('a consumer', handler).build()
+        messageBroker.queueBuilder('a queue').consumer(consumer).build()
+        messageBroker.start()
+        new PollingConditions().eventually {
+            assert monitor.events.count { it instanceof PollingForMessagesEvent } == 1
+        }
+        repository.add('a queue', [consumer], new ObjectSerializationMessageSerializer().serialize('a message'))
+
+        when:
+            listener.messagesPublished()
+
+        then:
+            handler.handled('a message')
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'When listening for published messages fails, monitors receive a ListeningForPublishedMessagesFailedEvent'() {
+        MessageNotifier.Listener listener = null
+        def messageNotifier = Mock(MessageNotifier)
+        messageNotifier.start(_) >> { listener = it[0] }
+        def monitor = new CollectingMonitor()
+        def messageBroker = RepositoryMessageBroker
+                .builder(new InMemoryMessageRepository(), NULL_TRANSACTION_SYNCHRONIZER)
+                .messageNotifier(messageNotifier)
+                .monitor(monitor)
+                .build()
+        messageBroker.start()
+        def exception = new IllegalStateException()
+
+        when:
+            listener.listeningFailed(exception)
+
+        then:
+            monitor.events.find { it instanceof ListeningForPublishedMessagesFailedEvent }.exception == exception
+
+        cleanup:
+            messageBroker.stop()
+    }
+
+    def 'Stopping the broker stops the message notifier'() {
+        def messageNotifier = Mock(MessageNotifier)
+        def messageBroker = RepositoryMessageBroker
+                .builder(new InMemoryMessageRepository(), NULL_TRANSACTION_SYNCHRONIZER)
+                .messageNotifier(messageNotifier)
+                .build()
+        messageBroker.start()
+
+        when:
+            messageBroker.stop()
+
+        then:
+            1 * messageNotifier.stop()
+    }
+
     def 'Registring a duplicate queue id fails'() {
         messageBroker.queueBuilder('duplicate id')
                 .consumer(MessageConsumer.builder('consumer 1', {} as MessageHandler))
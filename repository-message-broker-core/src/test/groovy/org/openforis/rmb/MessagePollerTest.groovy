@@ -1,16 +1,25 @@
 package org.openforis.rmb
 
 import org.openforis.rmb.monitor.MessageUpdateConflictEvent
+import org.openforis.rmb.monitor.PollingForMessagesEvent
 import org.openforis.rmb.monitor.TakingMessagesFailedEvent
 import org.openforis.rmb.objectserialization.ObjectSerializationMessageSerializer
+import org.openforis.rmb.spi.BatchUpdatingMessageRepository
 import org.openforis.rmb.spi.MessageDetails
 import org.openforis.rmb.spi.MessageProcessingStatus
 import org.openforis.rmb.spi.MessageProcessingUpdate
 import org.openforis.rmb.spi.MessageRepository
+import org.openforis.rmb.spi.StreamingMessageSerializer
 import spock.lang.Specification
+import spock.util.concurrent.BlockingVariable
 import spock.util.concurrent.PollingConditions
 import util.CollectingMonitor
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.PENDING
 import static org.openforis.rmb.spi.MessageProcessingStatus.State.PROCESSING
 
@@ -18,9 +27,10 @@ class MessagePollerTest extends Specification {
     def repository = Mock(MessageRepository)
     def monitor = new CollectingMonitor()
     def serializer = new ObjectSerializationMessageSerializer()
-    def consumer = MessageConsumer.builder('consumer id', {} as MessageHandler).build()
+    def handledMessages = [].asSynchronized()
+    def consumer = MessageConsumer.builder('consumer id', { handledMessages << it } as MessageHandler).build()
 
-    def poller = new MessagePoller(repository, serializer, new Monitors([monitor]))
+    def poller = new MessagePoller(repository, serializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, Integer.MAX_VALUE)
 
     def setup() {
         poller.registerConsumers([consumer])
@@ -47,7 +57,341 @@ class MessagePollerTest extends Specification {
             }
     }
 
+    def 'Given a message streamed by the repository, it is read before the callback returns'() {
+        repositoryTakesMessage(new ByteArrayInputStream(serializer.serialize('a message') as byte[]))
+        repository.update(_) >> true
+        when:
+            poller.poll()
+        then:
+            new PollingConditions().eventually {
+                assert handledMessages == ['a message']
+            }
+    }
+
+    def 'Given a message streamed by the repository, it is deserialized by a worker thread'() {
+        def deserializingThread = new BlockingVariable<String>()
+        def streamingSerializer = [
+                deserialize: { InputStream serializedMessage ->
+                    deserializingThread.set(Thread.currentThread().name)
+                    serializer.deserialize(serializedMessage)
+                }
+        ] as StreamingMessageSerializer
+        def poller = new MessagePoller(repository, streamingSerializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, Integer.MAX_VALUE)
+        poller.registerConsumers([consumer])
+        repositoryTakesMessage(new ByteArrayInputStream(serializer.serialize('a message') as byte[]))
+        repository.update(_) >> true
+
+        when:
+            poller.poll()
+
+        then:
+            deserializingThread.get() != 'rmb.MessageTaker'
+
+        cleanup:
+            poller.stop()
+    }
+
+    def 'When a streamed message fails to be read, monitors receive a TakingMessagesFailedEvent'() {
+        repositoryTakesMessage(new InputStream() {
+            int read() throws IOException {
+                throw new IOException('Failed')
+            }
+
+            long skip(long n) {
+                0
+            }
+        })
+        when:
+            poller.poll()
+        then:
+            new PollingConditions().eventually {
+                assert monitor.events.find { it.class == TakingMessagesFailedEvent }
+            }
+            handledMessages.empty
+    }
+
+    def 'Messages are handled by worker threads of the consumer'() {
+        def threadName = new BlockingVariable<String>()
+        def consumer = MessageConsumer.builder('another consumer id', { threadName.set(Thread.currentThread().name) } as MessageHandler).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessage(consumer, serializer.serialize('a message'))
+        repository.update(_) >> true
+        when:
+            poller.poll()
+        then:
+            threadName.get() == 'rmb.WorkerExecutor.another consumer id-1'
+    }
+
+    def 'Given a worker thread budget, no more messages than the budget are taken'() {
+        def poller = new MessagePoller(repository, serializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, 3)
+        poller.registerConsumers([consumer('a', 2), consumer('b', 2), consumer('c', 2)])
+        def maxCountByConsumerId = repositoryCapturesMaxCountByConsumerId()
+
+        when:
+            poller.poll()
+        then:
+            maxCountByConsumerId.get() == [a: 1, b: 1, c: 1]
+
+        cleanup:
+            poller.stop()
+    }
+
+    def 'Given a worker thread budget bigger than the messages handled in parallel, consumers are not limited'() {
+        def poller = new MessagePoller(repository, serializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, 10)
+        poller.registerConsumers([consumer('a', 2), consumer('b', 3)])
+        def maxCountByConsumerId = repositoryCapturesMaxCountByConsumerId()
+
+        when:
+            poller.poll()
+        then:
+            maxCountByConsumerId.get() == [a: 2, b: 3]
+
+        cleanup:
+            poller.stop()
+    }
+
+    def 'Polls requested while a poll is pending are coalesced'() {
+        def taking = new CountDownLatch(1)
+        def firstTakeMayComplete = new CountDownLatch(1)
+        def takeCount = new AtomicInteger()
+        repository.take(*_) >> {
+            if (takeCount.incrementAndGet() == 1) {
+                taking.countDown()
+                firstTakeMayComplete.await()
+            }
+        }
+        poller.poll()
+        taking.await()
+
+        when:
+            5.times { poller.poll() }
+            firstTakeMayComplete.countDown()
+
+        then:
+            new PollingConditions().eventually {
+                assert monitor.events.findAll { it.class == PollingForMessagesEvent }*.coalescedPollCount == [0, 4]
+            }
+            takeCount.get() == 2
+    }
+
+    def 'Given prefetch, messages beyond the ones handled in parallel are taken'() {
+        def poller = new MessagePoller(repository, serializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, 10)
+        poller.registerConsumers([consumer('a', 2, 3)])
+        def maxCountByConsumerId = repositoryCapturesMaxCountByConsumerId()
+
+        when:
+            poller.poll()
+        then:
+            maxCountByConsumerId.get() == [a: 5]
+
+        cleanup:
+            poller.stop()
+    }
+
+    def 'Prefetched messages are handled as workers are done, never more than messagesHandledInParallel at a time'() {
+        def handling = new AtomicInteger()
+        def maxHandling = new AtomicInteger()
+        def consumer = MessageConsumer.builder('prefetching consumer', {
+            maxHandling.accumulateAndGet(handling.incrementAndGet(), { a, b -> Math.max(a, b) })
+            handledMessages << it
+            Thread.sleep(10)
+            handling.decrementAndGet()
+        } as MessageHandler).prefetch(2).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessagesOnce(consumer, 'message 1', 'message 2', 'message 3')
+        repository.update(_) >> true
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert handledMessages == ['message 1', 'message 2', 'message 3']
+            }
+            maxHandling.get() == 1
+    }
+
+    def 'When stopped, prefetched messages are released'() {
+        def handling = new CountDownLatch(1)
+        def consumer = MessageConsumer.builder('prefetching consumer', {
+            handling.countDown()
+            Thread.sleep(10000)
+        } as MessageHandler).prefetch(2).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessagesOnce(consumer, 'message 1', 'message 2', 'message 3')
+        def updates = [].asSynchronized()
+        repository.update(_) >> { updates << it[0]; true }
+        poller.poll()
+        handling.await()
+
+        when:
+            poller.stop()
+
+        then:
+            updates.findAll { it.toState == PENDING }*.messageId == ['message 2', 'message 3']
+    }
+
+    def 'While prefetched messages wait to be handled, their leases are renewed'() {
+        def handled = new CountDownLatch(1)
+        def consumer = MessageConsumer.builder('prefetching consumer', {
+            handled.await()
+        } as MessageHandler).timeout(100, MILLISECONDS).prefetch(2).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessagesOnce(consumer, 'message 1', 'message 2', 'message 3')
+        def renewedMessageIds = [].asSynchronized()
+        repository.update(_) >> { MessageProcessingUpdate update ->
+            if (update.toState == PROCESSING)
+                renewedMessageIds << update.messageId
+            true
+        }
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert renewedMessageIds.count('message 2') >= 2
+                assert renewedMessageIds.count('message 3') >= 2
+            }
+            !renewedMessageIds.contains('message 1')
+
+        cleanup:
+            handled.countDown()
+    }
+
+    def 'When renewing the lease of a prefetched message conflicts, the message is not handled'() {
+        def handled = new CountDownLatch(1)
+        def consumer = MessageConsumer.builder('prefetching consumer', {
+            handledMessages << it
+            handled.await()
+        } as MessageHandler).timeout(100, MILLISECONDS).prefetch(1).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessagesOnce(consumer, 'message 1', 'message 2')
+        repository.update(_) >> { MessageProcessingUpdate update -> update.messageId != 'message 2' }
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert monitor.events.find { it instanceof MessageUpdateConflictEvent }?.update?.messageId == 'message 2'
+            }
+
+        when:
+            handled.countDown()
+
+        then:
+            new PollingConditions().eventually {
+                assert handledMessages == ['message 1']
+            }
+    }
+
+    def 'Given update batching, the leases of prefetched messages are renewed in a single batch, without waiting for other updates'() {
+        def batchUpdatingRepository = Mock(BatchUpdatingMessageRepository)
+        def updateBatchingRepository = new UpdateBatchingMessageRepository(batchUpdatingRepository, 10, 500, MILLISECONDS)
+        def poller = new MessagePoller(updateBatchingRepository, serializer, new Monitors([monitor]), WorkerExecutorFactory.THREAD_POOL, 10)
+        def handled = new CountDownLatch(1)
+        def consumer = MessageConsumer.builder('prefetching consumer', {
+            handled.await()
+        } as MessageHandler).timeout(100, MILLISECONDS).prefetch(2).build()
+        poller.registerConsumers([consumer])
+        repositoryTakesMessagesOnce(batchUpdatingRepository, consumer, 'message 1', 'message 2', 'message 3')
+        def renewalBatches = [].asSynchronized()
+        batchUpdatingRepository.updateAll(_) >> {
+            List<MessageProcessingUpdate> updates = it[0]
+            renewalBatches << updates*.messageId
+            updates.collect { true }
+        }
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert renewalBatches.count(['message 2', 'message 3']) >= 2
+            }
+            0 * batchUpdatingRepository.update(_)
+
+        cleanup:
+            handled.countDown()
+            poller.stop()
+    }
+
+    def 'When a poll takes as many messages as there are free workers, take outcome is FULL_BATCH_TAKEN'() {
+        repositoryTakesMessagesOnce(consumer, 'a message')
+        repository.update(_) >> true
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert poller.collectTakeOutcome() == MessagePoller.TakeOutcome.FULL_BATCH_TAKEN
+            }
+    }
+
+    def 'When a poll takes no messages, take outcome is NOTHING_TAKEN'() {
+        repository.take(*_) >> {}
+
+        when:
+            poller.poll()
+
+        then:
+            new PollingConditions().eventually {
+                assert poller.collectTakeOutcome() == MessagePoller.TakeOutcome.NOTHING_TAKEN
+            }
+    }
+
+    private void repositoryTakesMessagesOnce(MessageConsumer consumer, String... messages) {
+        repositoryTakesMessagesOnce(repository, consumer, messages)
+    }
+
+    private void repositoryTakesMessagesOnce(MessageRepository repository, MessageConsumer consumer, String... messages) {
+        def taken = new AtomicBoolean()
+        repository.take(*_) >> {
+            if (taken.getAndSet(true))
+                return
+            messages.each { message ->
+                def update = MessageProcessingUpdate.create(
+                        new MessageDetails('queue id', message, new Date()),
+                        consumer,
+                        new MessageProcessingStatus(PENDING, 0, null, new Date(), 'from version id'),
+                        new MessageProcessingStatus(PROCESSING, 0, null, new Date(), 'to version id')
+                )
+                (it[1] as MessageRepository.MessageTakenCallback).taken(update, serializer.serialize(message))
+            }
+        }
+    }
+
+    private BlockingVariable<Map<String, Integer>> repositoryCapturesMaxCountByConsumerId() {
+        def maxCountByConsumerId = new BlockingVariable<Map<String, Integer>>()
+        repository.take(*_) >> { maxCountByConsumerId.set(it[0].collectEntries { [(it.key.id): it.value] }) }
+        return maxCountByConsumerId
+    }
+
+    private MessageConsumer consumer(String id, int messagesHandledInParallel, int prefetchCount) {
+        MessageConsumer.builder(id, {} as MessageHandler)
+                .messagesHandledInParallel(messagesHandledInParallel)
+                .prefetch(prefetchCount)
+                .build()
+    }
+
+    private MessageConsumer consumer(String id, int messagesHandledInParallel) {
+        MessageConsumer.builder(id, {} as MessageHandler)
+                .messagesHandledInParallel(messagesHandledInParallel)
+                .build()
+    }
+
     private void repositoryTakesMessage() {
+        repositoryTakesMessage(serializer.serialize('a message'))
+    }
+
+    // Streams are exhausted when the callback returns, like a stream from a closed result set
+    private void repositoryTakesMessage(serializedMessage) {
+        repositoryTakesMessage(consumer, serializedMessage)
+    }
+
+    private void repositoryTakesMessage(MessageConsumer consumer, serializedMessage) {
         def update = MessageProcessingUpdate.create(
                 new MessageDetails('queue id', 'message id', new Date()),
                 consumer,
@@ -55,7 +399,9 @@ class MessagePollerTest extends Specification {
                 new MessageProcessingStatus(PROCESSING, 0, null, new Date(), 'to version id')
         )
         repository.take(_ as Map, _ as MessageRepository.MessageTakenCallback) >> {
-            (it[1] as MessageRepository.MessageTakenCallback).taken(update, serializer.serialize('a message'));
+            (it[1] as MessageRepository.MessageTakenCallback).taken(update, serializedMessage);
+            if (serializedMessage instanceof InputStream)
+                serializedMessage.skip(Long.MAX_VALUE)
         }
     }
 }
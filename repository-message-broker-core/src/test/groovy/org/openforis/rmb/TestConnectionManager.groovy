@@ -9,6 +9,7 @@ import java.sql.SQLException
 class TestConnectionManager implements JdbcConnectionManager {
     private final DataSource dataSource
     private final ThreadLocal<Connection> connectionHolder = new ThreadLocal<Connection>()
+    private final ThreadLocal<Connection> transactionConnectionHolder = new ThreadLocal<Connection>()
     private final ThreadLocal<List<Closure>> afterCommitCallbacksHolder = new ThreadLocal<List<Closure>>() {
         protected List<Closure> initialValue() { [] }
     }
@@ -23,6 +24,8 @@ class TestConnectionManager implements JdbcConnectionManager {
         boolean newTransaction = !isTransactionRunning()
         try {
             connection = openConnection()
+            if (newTransaction)
+                transactionConnectionHolder.set(connection)
             def result = closure.call()
             if (newTransaction) {
                 connection.commit()
@@ -35,6 +38,7 @@ class TestConnectionManager implements JdbcConnectionManager {
         } finally {
             if (newTransaction) {
                 connectionHolder.remove()
+                transactionConnectionHolder.remove()
                 afterCommitCallbacksHolder.remove()
                 connection?.close()
             }
@@ -45,8 +49,11 @@ class TestConnectionManager implements JdbcConnectionManager {
         connectionHolder.get() ?: openConnection()
     }
 
+    // Connections not part of a transaction are closed, so databases with a connection limit don't run out
     void releaseConnection(Connection connection) {
         connectionHolder.remove()
+        if (connection != null && !connection.is(transactionConnectionHolder.get()))
+            connection.close()
     }
 
     private boolean isTransactionRunning() {
@@ -0,0 +1,117 @@
+package org.openforis.rmb
+
+import org.openforis.rmb.spi.BatchUpdatingMessageRepository
+import org.openforis.rmb.spi.MessageDetails
+import org.openforis.rmb.spi.MessageProcessingStatus
+import org.openforis.rmb.spi.MessageProcessingUpdate
+import org.openforis.rmb.spi.MessageRepository
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+import static groovyx.gpars.GParsPool.withPool
+import static org.openforis.rmb.spi.MessageProcessingStatus.State.COMPLETED
+import static org.openforis.rmb.spi.MessageProcessingStatus.State.PROCESSING
+
+class UpdateBatchingMessageRepositoryTest extends Specification {
+    def repository = Mock(BatchUpdatingMessageRepository)
+    def consumer = MessageConsumer.builder('consumer id', {} as MessageHandler).build()
+
+    def 'Given a single update, it is made on its own'() {
+        def batchingRepository = new UpdateBatchingMessageRepository(repository, 10, 1, TimeUnit.MILLISECONDS)
+        def update = update('message id')
+
+        when:
+            def result = batchingRepository.update(update)
+
+        then:
+            1 * repository.update(update) >> true
+            0 * repository.updateAll(_)
+            result
+    }
+
+    def 'Concurrent updates are made in one batch, and each update gets its own result'() {
+        def batchingRepository = new UpdateBatchingMessageRepository(repository, 3, 10, TimeUnit.SECONDS)
+        def updates = (1..3).collect { update("message $it") }
+        def batches = []
+        repository.updateAll(_) >> {
+            List<MessageProcessingUpdate> batch = it[0]
+            batches << batch
+            batch.collect { it.messageId != 'message 2' }
+        }
+
+        when:
+            def results = [:].asSynchronized()
+            withPool(3) {
+                updates.eachParallel { results[it.messageId] = batchingRepository.update(it) }
+            }
+
+        then:
+            batches.size() == 1
+            batches.first() as Set == updates as Set
+            results == ['message 1': true, 'message 2': false, 'message 3': true]
+    }
+
+    def 'Updates made together are made right away, in a batch of their own'() {
+        def batchingRepository = new UpdateBatchingMessageRepository(repository, 10, 10, TimeUnit.SECONDS)
+        def updates = (1..2).collect { update("message $it") }
+
+        when:
+            def results = batchingRepository.updateAll(updates)
+
+        then:
+            1 * repository.updateAll(updates) >> [true, false]
+            results == [true, false]
+    }
+
+    def 'Given a repository not updating in batches, concurrent updates are made one by one'() {
+        def unbatchedRepository = Mock(MessageRepository)
+        def batchingRepository = new UpdateBatchingMessageRepository(unbatchedRepository, 3, 10, TimeUnit.SECONDS)
+        def updates = (1..3).collect { update("message $it") }
+        unbatchedRepository.update(_) >> { MessageProcessingUpdate update -> update.messageId != 'message 2' }
+
+        when:
+            def results = [:].asSynchronized()
+            withPool(3) {
+                updates.eachParallel { results[it.messageId] = batchingRepository.update(it) }
+            }
+
+        then:
+            results == ['message 1': true, 'message 2': false, 'message 3': true]
+    }
+
+    def 'When the batch fails, the updates are made one by one, and each update gets its own result or failure'() {
+        def batchingRepository = new UpdateBatchingMessageRepository(repository, 3, 10, TimeUnit.SECONDS)
+        def updates = (1..3).collect { update("message $it") }
+        repository.updateAll(_) >> { throw new IllegalStateException('Batch failed') }
+        repository.update(_) >> { MessageProcessingUpdate update ->
+            if (update.messageId == 'message 2')
+                throw new IllegalStateException('Update failed')
+            update.messageId == 'message 1'
+        }
+
+        when:
+            def results = [:].asSynchronized()
+            withPool(3) {
+                updates.eachParallel {
+                    try {
+                        results[it.messageId] = batchingRepository.update(it)
+                    } catch (IllegalStateException e) {
+                        results[it.messageId] = e.message
+                    }
+                }
+            }
+
+        then:
+            results == ['message 1': true, 'message 2': 'Update failed', 'message 3': false]
+    }
+
+    MessageProcessingUpdate update(String messageId) {
+        MessageProcessingUpdate.create(
+                new MessageDetails('queue id', messageId, new Date()),
+                consumer,
+                new MessageProcessingStatus(PROCESSING, 0, null, new Date(), 'from version id'),
+                new MessageProcessingStatus(COMPLETED, 0, null, new Date(), 'to version id')
+        )
+    }
+}
@@ -0,0 +1,73 @@
+package org.openforis.rmb
+
+import org.openforis.rmb.spi.MessageRepository
+import org.openforis.rmb.spi.TransactionSynchronizer
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.util.concurrent.BlockingVariable
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ThreadPoolExecutor
+
+class WorkerExecutorFactoryTest extends Specification {
+    ExecutorService executor
+
+    def cleanup() {
+        executor?.shutdownNow()
+    }
+
+    def 'Thread pool is bounded by max threads'() {
+        when:
+            executor = WorkerExecutorFactory.THREAD_POOL.create('consumer id', 3)
+
+        then:
+            executor instanceof ThreadPoolExecutor
+            (executor as ThreadPoolExecutor).maximumPoolSize == 3
+            (executor as ThreadPoolExecutor).allowsCoreThreadTimeOut()
+    }
+
+    def 'Thread pool threads are named after the consumer'() {
+        executor = WorkerExecutorFactory.THREAD_POOL.create('consumer id', 1)
+
+        expect:
+            threadRunning(executor).name == 'rmb.WorkerExecutor.consumer id-1'
+    }
+
+    @Requires({ !WorkerExecutorFactory.VirtualThreads.isSupported() })
+    def 'When virtual threads are not supported, creating an executor throws IllegalStateException'() {
+        when:
+            WorkerExecutorFactory.VIRTUAL_THREADS.create('consumer id', 1)
+
+        then:
+            thrown IllegalStateException
+    }
+
+    @Requires({ !WorkerExecutorFactory.VirtualThreads.isSupported() })
+    def 'When virtual threads are not supported, broker builder rejects them'() {
+        when:
+            RepositoryMessageBroker.builder(Mock(MessageRepository),
+                    Mock(TransactionSynchronizer))
+                    .workerExecutorFactory(WorkerExecutorFactory.VIRTUAL_THREADS)
+
+        then:
+            thrown IllegalStateException
+    }
+
+    @Requires({ WorkerExecutorFactory.VirtualThreads.isSupported() })
+    def 'Virtual thread executor runs messages on named virtual threads'() {
+        executor = WorkerExecutorFactory.VIRTUAL_THREADS.create('consumer id', 1)
+
+        when:
+            def thread = threadRunning(executor)
+
+        then:
+            thread.virtual
+            thread.name == 'rmb.WorkerExecutor.consumer id-1'
+    }
+
+    private Thread threadRunning(ExecutorService executor) {
+        def thread = new BlockingVariable<Thread>()
+        executor.execute { thread.set(Thread.currentThread()) }
+        return thread.get()
+    }
+}
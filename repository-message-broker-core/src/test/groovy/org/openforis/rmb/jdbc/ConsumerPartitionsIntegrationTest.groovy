@@ -0,0 +1,114 @@
+package org.openforis.rmb.jdbc
+
+import groovy.sql.Sql
+import org.openforis.rmb.MessageConsumer
+import org.openforis.rmb.MessageHandler
+import org.openforis.rmb.TestConnectionManager
+import org.openforis.rmb.spi.MessageProcessingFilter
+import spock.lang.Requires
+import spock.lang.Specification
+import util.PostgreSqlDatabase
+
+import static org.openforis.rmb.jdbc.JdbcSchema.Database.POSTGRESQL
+
+@Requires({ PostgreSqlDatabase.available })
+class ConsumerPartitionsIntegrationTest extends Specification {
+    def database = new PostgreSqlDatabase()
+    def sql = new Sql(database.dataSource)
+    def connectionManager = new TestConnectionManager(database.dataSource)
+    def repository = JdbcMessageRepository.builder(connectionManager, 'partitioned_')
+            .consumerPartitions()
+            .build()
+
+    def partitioned1 = consumer('consumer-1')
+    def partitioned2 = consumer('consumer-2')
+    def sharingPartitionName = consumer('consumer.1') // Same partition name as consumer-1, but no partition
+    def unpartitioned = consumer('consumer-3')
+
+    def setup() {
+        def connection = database.dataSource.connection
+        try {
+            new JdbcSchema(POSTGRESQL, 'partitioned_').partitionedByConsumer('consumer-1', 'consumer-2').create(connection)
+        } finally {
+            connection.close()
+        }
+    }
+
+    def cleanup() {
+        sql.execute('DROP TABLE partitioned_message_processing, partitioned_message')
+    }
+
+    def 'When purging consumers with and without partitions, partitions are truncated, rows are deleted, and only orphaned messages are deleted'() {
+        addMessage('message 1', partitioned1)
+        addMessage('message 2', partitioned1, partitioned2)
+        addMessage('message 3', unpartitioned)
+        addMessage('message 4', partitioned1, unpartitioned)
+        addMessage('message 5', partitioned2, unpartitioned)
+        def partitionFile = relationFile('partitioned_message_processing_consumer_1')
+
+        when:
+            purge(partitioned1, unpartitioned)
+
+        then:
+            relationFile('partitioned_message_processing_consumer_1') != partitionFile
+            messageProcessing() == [['message 2', 'consumer-2'], ['message 5', 'consumer-2']]
+            messages() == ['message 2', 'message 5']
+    }
+
+    def 'When purging a consumer sharing the partition name of another, its rows are deleted, and the partition is left as is'() {
+        addMessage('message 1', partitioned1)
+        addMessage('message 2', sharingPartitionName)
+        addMessage('message 3', partitioned1, sharingPartitionName)
+        def partitionFile = relationFile('partitioned_message_processing_consumer_1')
+
+        when:
+            purge(sharingPartitionName)
+
+        then:
+            relationFile('partitioned_message_processing_consumer_1') == partitionFile
+            messageProcessing() == [['message 1', 'consumer-1'], ['message 3', 'consumer-1']]
+            messages() == ['message 1', 'message 3']
+    }
+
+    def 'When purging a consumer with an empty partition, nothing else is deleted'() {
+        addMessage('message 1', partitioned2)
+
+        when:
+            purge(partitioned1)
+
+        then:
+            messageProcessing() == [['message 1', 'consumer-2']]
+            messages() == ['message 1']
+    }
+
+    void purge(MessageConsumer... consumers) {
+        repository.deleteMessageProcessing(consumers as List, MessageProcessingFilter.builder().build())
+    }
+
+    // TRUNCATE gives the table a new file, unlike deleting rows
+    long relationFile(String table) {
+        sql.firstRow('SELECT relfilenode FROM pg_class WHERE oid = to_regclass(?)', [table]).relfilenode as long
+    }
+
+    List messageProcessing() {
+        sql.rows('''
+                SELECT m.message_string, mc.consumer_id
+                FROM partitioned_message_processing mc
+                JOIN partitioned_message m ON mc.message_id = m.id
+                ORDER BY m.message_string, mc.consumer_id''').collect { [it.message_string, it.consumer_id] }
+    }
+
+    List<String> messages() {
+        sql.rows('SELECT message_string FROM partitioned_message ORDER BY message_string').collect { it.message_string }
+    }
+
+    void addMessage(String message, MessageConsumer... consumers) {
+        connectionManager.withTransaction {
+            repository.add('queue id', consumers as List, message)
+        }
+    }
+
+    MessageConsumer consumer(String id) {
+        MessageConsumer.builder(id, {} as MessageHandler).build()
+    }
+}
@@ -0,0 +1,35 @@
+package org.openforis.rmb.jdbc
+
+import static org.openforis.rmb.spi.MessageProcessingStatus.INITIAL_VERSION_ID
+
+class CounterVersionIdsJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().counterVersionIds()
+    }
+
+    def 'Each update increments the version'() {
+        def consumer = consumer('consumer id')
+        addMessage('A message', consumer)
+        take((consumer): 1)
+        def update = takenCallback.invocations.first().update
+
+        when:
+            repository.update(update.retry(clock, 'Some error'))
+
+        then:
+            update.fromVersionId == INITIAL_VERSION_ID
+            update.toVersionId == '1'
+            sql.firstRow('SELECT version_id FROM message_processing').version_id == '2'
+    }
+
+    def 'Given a processing updated by someone else, update conflicts'() {
+        def consumer = consumer('consumer id')
+        addMessage('A message', consumer)
+        take((consumer): 1)
+        def update = takenCallback.invocations.first().update
+        repository.update(update.retry(clock, 'Some error'))
+
+        expect:
+            !repository.update(update.failed(clock, 'Another error'))
+    }
+}
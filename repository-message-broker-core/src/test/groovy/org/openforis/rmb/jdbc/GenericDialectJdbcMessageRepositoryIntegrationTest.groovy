@@ -0,0 +1,7 @@
+package org.openforis.rmb.jdbc
+
+class GenericDialectJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().dialect(JdbcDialect.GENERIC)
+    }
+}
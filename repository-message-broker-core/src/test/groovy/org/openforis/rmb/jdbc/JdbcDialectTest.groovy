@@ -0,0 +1,36 @@
+package org.openforis.rmb.jdbc
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.sql.DatabaseMetaData
+
+class JdbcDialectTest extends Specification {
+    @Unroll
+    def 'Detects #dialect from product name #productName'() {
+        def metaData = Mock(DatabaseMetaData)
+        metaData.databaseProductName >> productName
+
+        expect:
+            JdbcDialect.detect(metaData) == dialect
+
+        where:
+            productName           | dialect
+            'PostgreSQL'          | JdbcDialect.POSTGRESQL
+            'H2'                  | JdbcDialect.H2
+            'MySQL'               | JdbcDialect.MYSQL
+            'Oracle'              | JdbcDialect.ORACLE
+            'Apache Derby'        | JdbcDialect.GENERIC
+    }
+
+    def 'Generic dialect has no limit clause, and matches values with an IN list'() {
+        expect:
+            JdbcDialect.GENERIC.limit() == null
+            JdbcDialect.GENERIC.in('consumer_id', 3) == 'consumer_id in (?, ?, ?)'
+    }
+
+    def 'PostgreSQL dialect matches values with an array parameter'() {
+        expect:
+            JdbcDialect.POSTGRESQL.in('consumer_id', 3) == 'consumer_id = ANY(?)'
+    }
+}
@@ -3,17 +3,38 @@ package org.openforis.rmb.jdbc
 import groovy.sql.Sql
 import org.openforis.rmb.AbstractMessageRepositoryIntegrationTest
 import org.openforis.rmb.TestConnectionManager
+import org.openforis.rmb.spi.MessageProcessingFilter
 import util.Database
 
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.Statement
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+
+import static groovyx.gpars.GParsPool.withPool
+
 class JdbcMessageRepositoryIntegrationTest extends AbstractMessageRepositoryIntegrationTest {
-    def database = new Database()
+    def database = createDatabase()
     def connectionManager = new TestConnectionManager(database.dataSource)
-    JdbcMessageRepository repository = new JdbcMessageRepository(connectionManager, '')
+    JdbcMessageRepository repository = repositoryBuilder().build()
 
     def setup() {
         repository.clock = clock
     }
 
+    def createDatabase() {
+        new Database()
+    }
+
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        JdbcMessageRepository.builder(connectionManager, '')
+    }
+
     void withTransaction(Closure unitOfWork) {
         connectionManager.withTransaction(unitOfWork)
     }
@@ -32,6 +53,25 @@ class JdbcMessageRepositoryIntegrationTest extends AbstractMessageRepositoryInte
             takenCallback.notInvoked()
     }
 
+    def 'Given messages added together for two consumers, when taking messages, callback is invoked for all in order'() {
+        def consumer1 = consumer('consumer 1')
+        def consumer2 = consumer('consumer 2')
+        withTransaction {
+            repository.addAll('queue id', [consumer1, consumer2], ['message 1', 'message 2', 'message 3'.bytes])
+        }
+
+        when:
+            take((consumer1): 3, (consumer2): 3)
+
+        then:
+            takenCallback.invocations.size() == 6
+            [consumer1, consumer2].each { consumer ->
+                def messages = takenCallback.invocations.findAll { it.update.consumer == consumer }*.message
+                assert messages[0..1] == ['message 1', 'message 2']
+                assert messages[2] == 'message 3'.bytes
+            }
+    }
+
     def 'When a message is consumed, it is removed from message_processing and message tables'() {
         def consumer = consumer('consumer id', 1)
         addMessage('A message', consumer)
@@ -46,6 +86,48 @@ class JdbcMessageRepositoryIntegrationTest extends AbstractMessageRepositoryInte
             sql.firstRow('SELECT count(*) c FROM message').c == 0
     }
 
+    def 'When all consumers of messages complete them concurrently, the messages are removed from the message table'() {
+        def consumer1 = consumer('consumer 1')
+        def consumer2 = consumer('consumer 2')
+        withTransaction { repository.addAll('queue id', [consumer1, consumer2], (1..50).collect { "message $it" as String }) }
+        take((consumer1): 50, (consumer2): 50)
+        def completions = takenCallback.invocations*.update*.completed(clock)
+        def start = new CyclicBarrier(completions.size())
+
+        when:
+            withPool(completions.size()) {
+                completions.eachParallel {
+                    start.await()
+                    repository.update(it)
+                }
+            }
+
+        then:
+            sql.firstRow('SELECT count(*) c FROM message_processing').c == 0
+            sql.firstRow('SELECT count(*) c FROM message').c == 0
+    }
+
+    def 'When all consumers of messages complete them concurrently in batches, the messages are removed from the message table'() {
+        def consumer1 = consumer('consumer 1')
+        def consumer2 = consumer('consumer 2')
+        withTransaction { repository.addAll('queue id', [consumer1, consumer2], (1..50).collect { "message $it" as String }) }
+        take((consumer1): 50, (consumer2): 50)
+        def batches = takenCallback.invocations*.update.groupBy { it.consumer }.values().collect { it*.completed(clock) }
+        def start = new CyclicBarrier(batches.size())
+
+        when:
+            withPool(batches.size()) {
+                batches.eachParallel {
+                    start.await()
+                    repository.updateAll(it)
+                }
+            }
+
+        then:
+            sql.firstRow('SELECT count(*) c FROM message_processing').c == 0
+            sql.firstRow('SELECT count(*) c FROM message').c == 0
+    }
+
     def 'Given a message with multiple consumer, when a message is consumed by one consumer, it is removed from message_processing but not from message'() {
         def consumer1 = consumer('consumer 1', 1)
         def consumer2 = consumer('consumer 2', 1)
@@ -62,9 +144,107 @@ class JdbcMessageRepositoryIntegrationTest extends AbstractMessageRepositoryInte
             sql.firstRow('SELECT count(*) c FROM message').c == 1
     }
 
+    def 'Given a message added as an InputStream, when taking the message, its bytes are returned'() {
+        def consumer = consumer('consumer id')
+        addMessage(new ByteArrayInputStream('streamed bytes'.bytes), consumer)
+
+        when:
+            take((consumer): 1)
 
-    private Sql getSql() {
+        then:
+            takenCallback.gotOneMessage('streamed bytes'.bytes)
+    }
+
+    def 'When updating multiple message processing, each update gets its own conflict result'() {
+        def consumer = consumer('consumer id')
+        addMessage('A message', consumer)
+        addMessage('Another message', consumer)
+        take((consumer): 2)
+        def update1 = takenCallback[0].update
+        def update2 = takenCallback[1].update
+        repository.update(update2.processing(clock))
+
+        when:
+            def results = repository.updateAll([update1.completed(clock), update2.retry(clock, 'Stale update')])
+
+        then:
+            results == [true, false]
+            repository.messageCountByConsumer([consumer], MessageProcessingFilter.builder().build()) == [(consumer): 1]
+    }
+
+    def 'Given a driver not reporting the row counts of batched updates, each update still gets its own conflict result'() {
+        def noRowCountsRepository = JdbcMessageRepository.builder(withoutBatchRowCounts(connectionManager), '').build()
+        noRowCountsRepository.clock = clock
+        def consumer = consumer('consumer id')
+        addMessage('A message', consumer)
+        addMessage('Another message', consumer)
+        take((consumer): 2)
+        def update1 = takenCallback[0].update
+        def update2 = takenCallback[1].update
+        repository.update(update2.processing(clock))
+
+        when:
+            def results = noRowCountsRepository.updateAll([update1.completed(clock), update2.retry(clock, 'Stale update')])
+
+        then:
+            results == [true, false]
+            sql.rows('SELECT id FROM message').collect { it.id } == [update2.messageId]
+    }
+
+    def 'When sweeping orphaned messages, messages without message processing are deleted on take'() {
+        def sweepingRepository = repositoryBuilder()
+                .orphanedMessageSweepPeriod(1, TimeUnit.MINUTES)
+                .build()
+        sweepingRepository.clock = clock
+        sql.executeInsert("INSERT INTO message(id, publication_time, queue_id, message_string) " +
+                "VALUES('orphaned id', CURRENT_TIMESTAMP, 'queue id', 'orphaned message')")
+        def consumer = consumer('consumer id', 1)
+        addMessage('A message', consumer)
+
+        when:
+            sweepingRepository.take([(consumer): 1], takenCallback)
+
+        then:
+            sql.rows('SELECT id FROM message').collect { it.id } == [takenCallback.invocations.first().update.messageId]
+    }
+
+
+    Sql getSql() {
         new Sql(database.dataSource)
     }
+
+    // Makes batches report Statement.SUCCESS_NO_INFO, like drivers rewriting batches into multi-row statements
+    JdbcConnectionManager withoutBatchRowCounts(JdbcConnectionManager connectionManager) {
+        def statementProxy = { PreparedStatement statement ->
+            Proxy.newProxyInstance(getClass().classLoader, [PreparedStatement] as Class[], { proxy, Method method, args ->
+                def result = invoke(statement, method, args)
+                return method.name == 'executeBatch' ? (result as int[]).collect { Statement.SUCCESS_NO_INFO } as int[] : result
+            } as InvocationHandler) as PreparedStatement
+        }
+        def connectionProxy = { Connection connection ->
+            Proxy.newProxyInstance(getClass().classLoader, [Connection] as Class[], { proxy, Method method, args ->
+                def result = invoke(connection, method, args)
+                return method.name == 'prepareStatement' ? statementProxy(result as PreparedStatement) : result
+            } as InvocationHandler) as Connection
+        }
+        def connections = new IdentityHashMap()
+        return [
+                getConnection    : {
+                    def connection = connectionManager.connection
+                    def proxy = connectionProxy(connection)
+                    connections[proxy] = connection
+                    return proxy
+                },
+                releaseConnection: { Connection proxy -> connectionManager.releaseConnection(connections.remove(proxy)) }
+        ] as JdbcConnectionManager
+    }
+
+    static invoke(Object target, Method method, args) {
+        try {
+            return method.invoke(target, args as Object[])
+        } catch (InvocationTargetException e) {
+            throw e.cause
+        }
+    }
 }
 
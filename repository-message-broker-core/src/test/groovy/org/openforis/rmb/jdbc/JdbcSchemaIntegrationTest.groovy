@@ -0,0 +1,98 @@
+package org.openforis.rmb.jdbc
+
+import groovy.sql.Sql
+import org.h2.jdbcx.JdbcDataSource
+import org.openforis.rmb.TestConnectionManager
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static org.openforis.rmb.jdbc.JdbcSchema.Database.*
+
+class JdbcSchemaIntegrationTest extends Specification {
+    def dataSource = new JdbcDataSource(url: "jdbc:h2:mem:schema-${UUID.randomUUID()};DB_CLOSE_DELAY=-1", user: 'sa', password: 'sa')
+    def sql = new Sql(dataSource)
+    def repository = new JdbcMessageRepository(new TestConnectionManager(dataSource), 'example_')
+
+    def cleanup() {
+        sql.execute('DROP ALL OBJECTS')
+    }
+
+    @Unroll
+    def 'Schema for #database creates tables and indexes'() {
+        when:
+            def statements = new JdbcSchema(database, 'example_').statements()
+
+        then:
+            statements.findAll { it.startsWith('CREATE TABLE') }.size() == 2
+            statements.any { it.contains('example_message_processing (consumer_id, state, times_out)') }
+            statements.join('\n').contains('example_message_idx')
+
+        where:
+            database << JdbcSchema.Database.values()
+    }
+
+    def 'PostgreSQL schema partitioned by consumer creates a partition per consumer, and a default partition'() {
+        when:
+            def statements = new JdbcSchema(POSTGRESQL, 'example_').partitionedByConsumer('consumer-1', "O'Consumer").statements()
+
+        then:
+            statements[1].endsWith('PARTITION BY LIST (consumer_id)')
+            statements[2] == "CREATE TABLE example_message_processing_consumer_1 PARTITION OF example_message_processing FOR VALUES IN ('consumer-1')"
+            statements[3] == "CREATE TABLE example_message_processing_o_consumer PARTITION OF example_message_processing FOR VALUES IN ('O''Consumer')"
+            statements[4] == 'CREATE TABLE example_message_processing_default PARTITION OF example_message_processing DEFAULT'
+            statements.any { it.contains('example_message_processing (consumer_id, state, times_out)') }
+    }
+
+    def 'Consumers with the same partition name cannot be partitioned'() {
+        when:
+            new JdbcSchema(POSTGRESQL, 'example_').partitionedByConsumer('consumer-1', 'consumer.1')
+
+        then:
+            thrown IllegalArgumentException
+    }
+
+    def 'Only PostgreSQL schema can be partitioned by consumer'() {
+        when:
+            new JdbcSchema(H2, 'example_').partitionedByConsumer('consumer')
+
+        then:
+            thrown IllegalArgumentException
+    }
+
+    def 'Given a generated H2 schema, verifying finds no problems'() {
+        createSchema()
+
+        expect:
+            repository.verify().empty
+    }
+
+    def 'Given a missing index, verifying reports it'() {
+        createSchema()
+        sql.execute('DROP INDEX example_message_processing_idx')
+
+        expect:
+            repository.verify() == ['Missing index on example_message_processing(consumer_id, state, times_out)']
+    }
+
+    def 'Given a missing column, verifying reports it'() {
+        createSchema()
+        sql.execute('ALTER TABLE example_message DROP COLUMN message_bytes')
+
+        expect:
+            repository.verify() == ['Missing column example_message.message_bytes']
+    }
+
+    def 'Given no schema, verifying reports missing tables'() {
+        expect:
+            repository.verify() == ['Missing table example_message', 'Missing table example_message_processing']
+    }
+
+    void createSchema() {
+        def connection = dataSource.connection
+        try {
+            new JdbcSchema(H2, 'example_').create(connection)
+        } finally {
+            connection.close()
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.openforis.rmb.jdbc
+
+import spock.lang.Specification
+
+class MessageIdGeneratorTest extends Specification {
+    def generator = MessageIdGenerator.timeOrdered()
+
+    def 'Time-ordered ids are 26 characters of Crockford base 32'() {
+        when:
+            def id = generator.next(System.currentTimeMillis())
+
+        then:
+            id ==~ /[0-9A-HJKMNP-TV-Z]{26}/
+    }
+
+    def 'Time-ordered ids start with the encoded timestamp'() {
+        expect:
+            generator.next(0).startsWith('0000000000')
+            generator.next(32).startsWith('0000000010')
+    }
+
+    def 'Time-ordered ids sort in the order they were generated'() {
+        def timestamps = [1000L, 1000L, 1000L, 1001L, 1001L, 2000L, 1500L, 3000L]
+
+        when:
+            def ids = timestamps.collect { generator.next(it) }
+
+        then:
+            ids == ids.toSorted()
+            ids.toSet().size() == ids.size()
+    }
+
+    def 'Random part carries over into the higher bits when incremented within a millisecond'() {
+        def values = [0L, (1L << 40) - 1].iterator()
+        def generator = new MessageIdGenerator.TimeOrdered(new Random() {
+            long nextLong() { values.next() }
+        })
+
+        when:
+            def first = generator.next(1000)
+            def second = generator.next(1000)
+
+        then:
+            first < second
+            second.substring(10) == '0000000100000000'
+    }
+}
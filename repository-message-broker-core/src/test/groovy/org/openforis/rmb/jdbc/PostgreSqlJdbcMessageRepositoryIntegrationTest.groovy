@@ -0,0 +1,50 @@
+package org.openforis.rmb.jdbc
+
+import org.openforis.rmb.MessageConsumer
+import org.openforis.rmb.MessageHandler
+import spock.lang.Requires
+import util.PostgreSqlDatabase
+
+@Requires({ PostgreSqlDatabase.available })
+class PostgreSqlJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    def createDatabase() {
+        new PostgreSqlDatabase()
+    }
+
+    def 'Detects PostgreSQL dialect'() {
+        when:
+            take((consumer('consumer id')): 1)
+
+        then:
+            repository.sql.dialect == JdbcDialect.POSTGRESQL
+    }
+
+    def 'Given more messages than fit in one claim statement, when taking them all, all are claimed'() {
+        def consumer = consumer('consumer id')
+        def messages = (1..SqlStatements.MAX_CLAIM_SIZE + 10).collect { "message $it" as String }
+        withTransaction { repository.addAll('queue id', [consumer], messages) }
+
+        when:
+            take((consumer): messages.size())
+
+        then:
+            takenCallback.invocations*.message == messages
+    }
+
+    def 'Given skip locked take, messages within messages handled in parallel plus prefetch count are claimed'() {
+        def skipLockedRepository = repositoryBuilder().skipLockedTake().build()
+        skipLockedRepository.clock = clock
+        def consumer = MessageConsumer.builder('consumer id', {} as MessageHandler)
+                .messagesHandledInParallel(2)
+                .prefetch(3)
+                .build()
+        def messages = (1..10).collect { "message $it" as String }
+        withTransaction { repository.addAll('queue id', [consumer], messages) }
+
+        when:
+            skipLockedRepository.take([(consumer): 10], takenCallback)
+
+        then:
+            takenCallback.invocations*.message == messages.take(5)
+    }
+}
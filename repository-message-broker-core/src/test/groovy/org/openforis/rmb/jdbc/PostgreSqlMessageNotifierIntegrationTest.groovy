@@ -0,0 +1,132 @@
+package org.openforis.rmb.jdbc
+
+import groovy.sql.Sql
+import org.openforis.rmb.TestConnectionManager
+import org.openforis.rmb.spi.MessageNotifier
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import util.PostgreSqlDatabase
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.SQLException
+import java.util.concurrent.atomic.AtomicInteger
+
+@Requires({ PostgreSqlDatabase.available })
+class PostgreSqlMessageNotifierIntegrationTest extends Specification {
+    static final String CHANNEL = 'rmb_test_message_published'
+
+    def database = new PostgreSqlDatabase()
+    def connectionManager = new TestConnectionManager(database.dataSource)
+    def listeningConnectionManager = new SingleConnectionManager(database.dataSource)
+    def notifier = new PostgreSqlMessageNotifier(connectionManager, CHANNEL)
+    def otherNodeNotifier = new PostgreSqlMessageNotifier(connectionManager, listeningConnectionManager, CHANNEL)
+    def listener = new CountingListener()
+    def conditions = new PollingConditions(timeout: 5)
+
+    def cleanup() {
+        notifier.stop()
+        otherNodeNotifier.stop()
+        listeningConnectionManager.close()
+    }
+
+    def 'When a transaction notifying commits, other nodes are notified'() {
+        startListening(otherNodeNotifier)
+
+        when:
+            connectionManager.withTransaction { notifier.notifyMessagesPublished() }
+
+        then:
+            conditions.eventually {
+                assert listener.published.get() == 2
+            }
+    }
+
+    def 'When a transaction notifying rolls back, other nodes are not notified'() {
+        startListening(otherNodeNotifier)
+
+        when:
+            connectionManager.withTransaction {
+                notifier.notifyMessagesPublished()
+                throw new IllegalStateException('Rolled back')
+            }
+
+        then:
+            thrown IllegalStateException
+            notNotifiedWithinListeningTimeouts()
+    }
+
+    def 'A node is not notified about its own notifications'() {
+        startListening(notifier)
+
+        when:
+            connectionManager.withTransaction { notifier.notifyMessagesPublished() }
+
+        then:
+            notNotifiedWithinListeningTimeouts()
+    }
+
+    def 'When stopped, the listening connection stops listening, and gets its original auto-commit mode back'() {
+        startListening(otherNodeNotifier)
+
+        when:
+            otherNodeNotifier.stop()
+
+        then:
+            !listeningConnectionManager.listeningConnection.autoCommit
+            new Sql(listeningConnectionManager.listeningConnection).rows('SELECT pg_listening_channels()').empty
+            listeningConnectionManager.released
+    }
+
+    // The listener is invoked once when starting to listen, since messages might have been published before
+    private void startListening(PostgreSqlMessageNotifier notifier) {
+        notifier.start(listener)
+        conditions.eventually {
+            assert listener.published.get() == 1
+        }
+    }
+
+    private boolean notNotifiedWithinListeningTimeouts() {
+        Thread.sleep(1500)
+        listener.published.get() == 1 && !listener.failure
+    }
+
+    static class CountingListener implements MessageNotifier.Listener {
+        final AtomicInteger published = new AtomicInteger()
+        volatile Exception failure
+
+        void messagesPublished() {
+            published.incrementAndGet()
+        }
+
+        void listeningFailed(Exception exception) {
+            failure = exception
+        }
+    }
+
+    // Keeps the connection open when released, so its state can be inspected
+    static class SingleConnectionManager implements JdbcConnectionManager {
+        private final DataSource dataSource
+        volatile Connection listeningConnection
+        volatile boolean released
+
+        SingleConnectionManager(DataSource dataSource) {
+            this.dataSource = dataSource
+        }
+
+        Connection getConnection() throws SQLException {
+            listeningConnection = dataSource.connection
+            listeningConnection.autoCommit = false
+            return listeningConnection
+        }
+
+        void releaseConnection(Connection connection) {
+            released = true
+        }
+
+        void close() {
+            listeningConnection?.close()
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.openforis.rmb.jdbc
+
+class SingleStatementTakeJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().singleStatementTake()
+    }
+
+    def 'Given messages for two consumers, when taking for both, the callback is invoked for each consumer, limited to its max count'() {
+        def consumer1 = consumer('consumer 1')
+        def consumer2 = consumer('consumer 2')
+        addMessage('message 1', consumer1)
+        addMessage('message 2', consumer1)
+        addMessage('message 3', consumer2)
+        addMessage('message 4', consumer2)
+
+        when:
+            take((consumer1): 1, (consumer2): 2)
+
+        then:
+            takenCallback.invocations.size() == 3
+            takenCallback[0].message == 'message 1'
+            takenCallback[0].update.consumer == consumer1
+            takenCallback[1].message == 'message 3'
+            takenCallback[1].update.consumer == consumer2
+            takenCallback[2].message == 'message 4'
+            takenCallback[2].update.consumer == consumer2
+    }
+}
@@ -0,0 +1,67 @@
+package org.openforis.rmb.jdbc
+
+import groovy.sql.Sql
+import spock.lang.Requires
+import util.PostgreSqlDatabase
+
+@Requires({ PostgreSqlDatabase.available })
+class SkipLockedTakeJdbcMessageRepositoryIntegrationTest extends PostgreSqlJdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().skipLockedTake()
+    }
+
+    def 'Given a message processing locked by another transaction, when taking, the locked message is skipped instead of waited on'() {
+        def consumer = consumer('consumer id', 2)
+        addMessage('message 1', consumer)
+        addMessage('message 2', consumer)
+        def lockedMessageId = sql.firstRow('SELECT id FROM message ORDER BY sequence_no').id
+        def lockingConnection = database.dataSource.connection
+        lockingConnection.autoCommit = false
+        new Sql(lockingConnection).rows('SELECT message_id FROM message_processing WHERE message_id = ? FOR UPDATE',
+                [lockedMessageId])
+        // Should the take wait on the lock, it would claim the released message too, instead of hanging the build
+        def release = Thread.start {
+            sleep(2000)
+            lockingConnection.rollback()
+        }
+
+        when:
+            take((consumer): 2)
+
+        then:
+            takenCallback.invocations*.message == ['message 2']
+
+        cleanup:
+            release?.join()
+            lockingConnection?.close()
+    }
+
+    def 'Given a message processing locked by another transaction, when the lock is released, the message can be taken'() {
+        def consumer = consumer('consumer id', 2)
+        addMessage('message 1', consumer)
+        def lockingConnection = database.dataSource.connection
+        lockingConnection.autoCommit = false
+        new Sql(lockingConnection).rows('SELECT message_id FROM message_processing FOR UPDATE')
+        def release = Thread.start {
+            sleep(2000)
+            lockingConnection.rollback()
+        }
+
+        when:
+            take((consumer): 1)
+
+        then:
+            takenCallback.invocations.empty
+
+        when:
+            release.join()
+            take((consumer): 1)
+
+        then:
+            takenCallback.invocations*.message == ['message 1']
+
+        cleanup:
+            release?.join()
+            lockingConnection?.close()
+    }
+}
@@ -0,0 +1,53 @@
+package org.openforis.rmb.jdbc
+
+import org.openforis.rmb.AbstractMessageRepositoryIntegrationTest
+import org.openforis.rmb.spi.MessageProcessingUpdate
+import org.openforis.rmb.spi.MessageRepository
+
+class StreamedMessagesJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    def setup() {
+        takenCallback = new StreamReadingTakenCallback()
+    }
+
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().streamedMessages()
+    }
+
+    def 'Given a byte[] message, when taking the message, an InputStream is passed to the callback'() {
+        def consumer = consumer('consumer id')
+        addMessage('a byte array'.bytes, consumer)
+        def serializedMessages = []
+
+        when:
+            repository.take([(consumer): 1], { update, serializedMessage ->
+                serializedMessages << (serializedMessage instanceof InputStream ? serializedMessage.bytes : null)
+            } as MessageRepository.MessageTakenCallback)
+
+        then:
+            serializedMessages == ['a byte array'.bytes]
+    }
+
+    def 'Given a byte[] message claimed for two consumers together, a byte[] is passed to the callback'() {
+        def consumer1 = consumer('consumer 1')
+        def consumer2 = consumer('consumer 2')
+        addMessage('a byte array'.bytes, consumer1, consumer2)
+        def serializedMessages = []
+        def repository = repositoryBuilder().singleStatementTake().build()
+
+        when:
+            repository.take([(consumer1): 1, (consumer2): 1], { update, serializedMessage ->
+                serializedMessages << serializedMessage
+            } as MessageRepository.MessageTakenCallback)
+
+        then:
+            serializedMessages.size() == 2
+            serializedMessages.every { it instanceof byte[] && it == 'a byte array'.bytes }
+    }
+
+    // Streams are only valid during the callback
+    static class StreamReadingTakenCallback extends AbstractMessageRepositoryIntegrationTest.MockTakenCallback {
+        void taken(MessageProcessingUpdate update, Object serializedMessage) {
+            super.taken(update, serializedMessage instanceof InputStream ? serializedMessage.bytes : serializedMessage)
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package org.openforis.rmb.jdbc
+
+class TimeOrderedMessageIdsJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().timeOrderedMessageIds()
+    }
+}
@@ -0,0 +1,34 @@
+package org.openforis.rmb.jdbc
+
+import org.openforis.rmb.spi.MessageProcessingUpdate
+import org.openforis.rmb.spi.MessageRepository
+
+import java.util.concurrent.TimeUnit
+
+import static org.openforis.rmb.spi.MessageProcessingStatus.State.PROCESSING
+import static org.openforis.rmb.spi.MessageProcessingStatus.State.TIMED_OUT
+
+class TimedOutMessageScanJdbcMessageRepositoryIntegrationTest extends JdbcMessageRepositoryIntegrationTest {
+    JdbcMessageRepository.Builder repositoryBuilder() {
+        super.repositoryBuilder().timedOutMessageScanPeriod(1, TimeUnit.MILLISECONDS)
+    }
+
+    def 'Given a timed out message behind a message still processing, when taking messages, the timed out message is taken'() {
+        def consumer = consumer('consumer id', 2)
+        List<MessageProcessingUpdate> taken = []
+        clock.inThePast(consumer.timeout + 1, consumer.timeUnit) {
+            addMessage('message 1', consumer)
+            addMessage('message 2', consumer)
+            repository.take((consumer): 2, { update, message -> taken << update } as MessageRepository.MessageTakenCallback)
+        }
+        withTransaction { repository.update(taken.first().processing(clock)) }
+
+        when:
+            take((consumer): 1)
+
+        then:
+            def callbackInvocation = takenCallback.gotOneMessage('message 2')
+            callbackInvocation.update.fromState == TIMED_OUT
+            callbackInvocation.update.toState == PROCESSING
+    }
+}
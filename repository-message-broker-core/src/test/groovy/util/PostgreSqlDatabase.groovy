@@ -0,0 +1,49 @@
+package util
+
+import groovy.sql.Sql
+import org.postgresql.ds.PGSimpleDataSource
+
+import javax.sql.DataSource
+
+/**
+ * A PostgreSQL database, for tests of PostgreSQL specific SQL. The tests are only run if the RMB_POSTGRESQL_URL
+ * environment variable contains the JDBC URL of a database to run them against, such as
+ * jdbc:postgresql://localhost:5432/rmb_test?user=rmb&password=rmb. Existing tables are dropped.
+ */
+class PostgreSqlDatabase {
+    private static final String URL = System.getenv('RMB_POSTGRESQL_URL')
+    private static final String SCHEMA = '/schema-postgres.sql'
+    private static final String RESET_SCRIPT = '/reset.sql'
+
+    private static final Object LOCK = new Object()
+    private static boolean initialized
+    private static DataSource dataSource
+
+    PostgreSqlDatabase() {
+        initDatabase()
+    }
+
+    static boolean isAvailable() {
+        URL != null
+    }
+
+    DataSource getDataSource() { dataSource }
+
+    void reset() {
+        new Sql(dataSource).execute(resourceText(RESET_SCRIPT))
+    }
+
+    private void initDatabase() {
+        synchronized (LOCK) {
+            if (!initialized) {
+                initialized = true
+                dataSource = new PGSimpleDataSource(url: URL)
+                new Sql(dataSource).execute(resourceText(SCHEMA))
+            } else reset()
+        }
+    }
+
+    private String resourceText(String resource) {
+        getClass().getResourceAsStream(resource).getText('UTF-8')
+    }
+}
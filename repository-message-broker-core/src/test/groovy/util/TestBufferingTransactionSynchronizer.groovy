@@ -0,0 +1,41 @@
+package util
+
+import org.openforis.rmb.spi.BufferingTransactionSynchronizer
+
+class TestBufferingTransactionSynchronizer implements BufferingTransactionSynchronizer {
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>()
+    int commitListenersRegistered
+
+    boolean isInTransaction() {
+        currentTransaction.get() != null
+    }
+
+    void notifyOnCommit(CommitListener listener) {
+        commitListenersRegistered++
+        currentTransaction.get().commitListeners << listener
+    }
+
+    def <B extends Buffer> B buffer(Object key, BufferFactory<B> factory) {
+        def buffers = currentTransaction.get().buffers
+        if (!buffers.containsKey(key))
+            buffers[key] = factory.create()
+        return buffers[key] as B
+    }
+
+    void withTransaction(Closure unitOfWork) {
+        def transaction = new Transaction()
+        currentTransaction.set(transaction)
+        try {
+            unitOfWork()
+            transaction.buffers.values()*.flush()
+        } finally {
+            currentTransaction.remove()
+        }
+        transaction.commitListeners*.committed()
+    }
+
+    private static class Transaction {
+        final Map<Object, BufferingTransactionSynchronizer.Buffer> buffers = [:]
+        final List<BufferingTransactionSynchronizer.CommitListener> commitListeners = []
+    }
+}
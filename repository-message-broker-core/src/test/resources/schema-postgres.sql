@@ -22,4 +22,8 @@ CREATE TABLE message_processing (
   error_message TEXT,
   PRIMARY KEY (message_id, consumer_id),
   FOREIGN KEY (message_id) REFERENCES message (id)
-);
\ No newline at end of file
+);
+
+CREATE INDEX message_idx ON message (sequence_no);
+
+CREATE INDEX message_processing_idx ON message_processing (consumer_id, state, times_out);
@@ -36,6 +36,8 @@ public class MetricsMonitor implements Monitor<Event> {
             messageQueueCreated((MessageQueueCreatedEvent) event);
         else if (event instanceof MessagePublishedEvent)
             messagePublished((MessagePublishedEvent) event);
+        else if (event instanceof PollingForMessagesEvent)
+            pollingForMessages((PollingForMessagesEvent) event);
         else if (event instanceof ConsumingNewMessageEvent)
             consumingNewMessage((ConsumingNewMessageEvent) event);
         else if (event instanceof ConsumingTimedOutMessageEvent)
@@ -66,6 +68,13 @@ public class MetricsMonitor implements Monitor<Event> {
         metrics.meter(name(event.queueId, "messageMeter")).mark();
     }
 
+    private void pollingForMessages(PollingForMessagesEvent event) {
+        metrics.counter("pollCount").inc();
+        metrics.meter("pollMeter").mark();
+        metrics.counter("coalescedPollCount").inc(event.coalescedPollCount);
+        metrics.meter("coalescedPollMeter").mark(event.coalescedPollCount);
+    }
+
     private void consumingNewMessage(ConsumingNewMessageEvent event) {
         long timeFromPublicationTime = clock.millis() - event.update.getPublicationTime().getTime();
         metrics.histogram(name(event.update.getQueueId(), event.update.getConsumer().getId(), "timesFromPublicationToTaken"))
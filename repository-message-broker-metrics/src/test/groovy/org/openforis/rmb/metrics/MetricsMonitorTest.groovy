@@ -41,6 +41,16 @@ class MetricsMonitorTest extends Specification {
             metrics.meter('someQueueId.messageMeter').count == 1
     }
 
+    def 'PollingForMessagesEvent increases pollCount and coalescedPollCount, and marks pollMeter and coalescedPollMeter'() {
+        when:
+            monitor.onEvent(new PollingForMessagesEvent([:], 3))
+        then:
+            metrics.counter('pollCount').count == 1
+            metrics.meter('pollMeter').count == 1
+            metrics.counter('coalescedPollCount').count == 3
+            metrics.meter('coalescedPollMeter').count == 3
+    }
+
     def 'ConsumingNewMessageEvent updates queueId.consumerId.timesFromPublicationToTaken with time since publication time'() {
         clock.time = 300
         monitor.onEvent(new MessageQueueCreatedEvent('someQueueId', [consumer('someConsumerId')]))
@@ -25,6 +25,12 @@ public final class Slf4jLoggingMonitor implements Monitor<Event> {
                         event.messageBroker);
             }
         });
+        add(MessageRepositoryProblemsFoundEvent.class, new LoggingMonitor<MessageRepositoryProblemsFoundEvent>() {
+            public void onEvent(MessageRepositoryProblemsFoundEvent event, Logger log) {
+                log.warn("{} has problems: {}",
+                        event.repository, event.problems);
+            }
+        });
         add(MessageQueueCreatedEvent.class, new LoggingMonitor<MessageQueueCreatedEvent>() {
             public void onEvent(MessageQueueCreatedEvent event, Logger log) {
                 log.debug("MessageQueue {}: created with consumers {}",
@@ -37,6 +43,12 @@ public final class Slf4jLoggingMonitor implements Monitor<Event> {
                         event.exception);
             }
         });
+        add(ListeningForPublishedMessagesFailedEvent.class, new LoggingMonitor<ListeningForPublishedMessagesFailedEvent>() {
+            public void onEvent(ListeningForPublishedMessagesFailedEvent event, Logger log) {
+                log.error("{} failed to listen for published messages",
+                        event.messageNotifier, event.exception);
+            }
+        });
         add(TakingMessagesFailedEvent.class, new LoggingMonitor<TakingMessagesFailedEvent>() {
             public void onEvent(TakingMessagesFailedEvent event, Logger log) {
                 log.error("Failed to take messages {}",
@@ -51,8 +63,8 @@ public final class Slf4jLoggingMonitor implements Monitor<Event> {
         });
         add(PollingForMessagesEvent.class, new LoggingMonitor<PollingForMessagesEvent>() {
             public void onEvent(PollingForMessagesEvent event, Logger log) {
-                log.trace("{} polling for messages",
-                        event.maxCountByConsumer);
+                log.trace("{} polling for messages, {} coalesced polls",
+                        event.maxCountByConsumer, event.coalescedPollCount);
             }
         });
         add(ConsumingNewMessageEvent.class, new LoggingMonitor<ConsumingNewMessageEvent>() {
@@ -55,6 +55,7 @@ class Slf4jLoggingMonitorTest extends Specification {
             messageKeptAliveEvent                        | DEBUG | false
             messageConsumedEvent                         | DEBUG | false
             messageUpdateConflictEvent                   | ERROR | false
+            listeningForPublishedMessagesFailedEvent     | ERROR | true
     }
 
     Event getMessageBrokerStartedEvent() {
@@ -117,6 +118,10 @@ class Slf4jLoggingMonitorTest extends Specification {
         new MessageUpdateConflictEvent(update, 'a message')
     }
 
+    Event getListeningForPublishedMessagesFailedEvent() {
+        new ListeningForPublishedMessagesFailedEvent(MessageNotifier.NULL_MESSAGE_NOTIFIER, new RuntimeException())
+    }
+
     private static MessageProcessingUpdate getUpdate() {
         MessageProcessing.create(new MessageDetails('queue id', 'message id', new Date(0)),
                 consumer,
@@ -3,6 +3,7 @@ package org.openforis.rmb.spring;
 import org.openforis.rmb.MessageBroker;
 import org.openforis.rmb.MessageQueue;
 import org.openforis.rmb.RepositoryMessageBroker;
+import org.openforis.rmb.WorkerExecutorFactory;
 import org.openforis.rmb.jdbc.JdbcMessageRepository;
 import org.openforis.rmb.monitor.Event;
 import org.openforis.rmb.monitor.Monitor;
@@ -57,6 +58,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
             &lt;/list&gt;
         &lt;/property&gt;
         &lt;property name="repositoryWatcherPollingPeriodSeconds" value="10"/&gt;
+        &lt;property name="publishBuffering" value="true"/&gt;
+        &lt;property name="workerThreadBudget" value="50"/&gt;
     &lt;/bean&gt;
 
     &lt;bean id="fullyConfiguredQueue" class="org.openforis.rmb.spring.SpringMessageQueue"&gt;
@@ -92,6 +95,9 @@ public final class SpringJdbcMessageBroker implements MessageBroker, Initializin
     private MessageSerializer messageSerializer;
     private List<Monitor<Event>> monitors;
     private Long repositoryWatcherPollingPeriodSeconds;
+    private boolean publishBuffering;
+    private WorkerExecutorFactory workerExecutorFactory;
+    private Integer workerThreadBudget;
 
     public SpringJdbcMessageBroker(DataSource dataSource) {
         this.dataSource = dataSource;
@@ -113,6 +119,12 @@ public final class SpringJdbcMessageBroker implements MessageBroker, Initializin
                 builder.monitor(monitor);
         if (repositoryWatcherPollingPeriodSeconds != null)
             builder.repositoryWatcherPollingSchedule(repositoryWatcherPollingPeriodSeconds, SECONDS);
+        if (publishBuffering)
+            builder.publishBuffering();
+        if (workerExecutorFactory != null)
+            builder.workerExecutorFactory(workerExecutorFactory);
+        if (workerThreadBudget != null)
+            builder.workerThreadBudget(workerThreadBudget);
 
         messageBroker = builder.build();
     }
@@ -133,6 +145,18 @@ public final class SpringJdbcMessageBroker implements MessageBroker, Initializin
         this.repositoryWatcherPollingPeriodSeconds = repositoryWatcherPollingPeriodSeconds;
     }
 
+    public void setPublishBuffering(boolean publishBuffering) {
+        this.publishBuffering = publishBuffering;
+    }
+
+    public void setWorkerExecutorFactory(WorkerExecutorFactory workerExecutorFactory) {
+        this.workerExecutorFactory = workerExecutorFactory;
+    }
+
+    public void setWorkerThreadBudget(Integer workerThreadBudget) {
+        this.workerThreadBudget = workerThreadBudget;
+    }
+
     public void start() {
         running.set(true);
         messageBroker.start();
@@ -14,6 +14,7 @@ public final class SpringMessageConsumer<M> implements InitializingBean {
     private MessageConsumer<M> consumer;
 
     private Integer messagesHandledInParallel;
+    private Integer prefetchCount;
     private Integer retries;
     private ThrottlingStrategy throttlingStrategy;
     private Integer timeoutSeconds;
@@ -46,6 +47,9 @@ public final class SpringMessageConsumer<M> implements InitializingBean {
             builder.messagesHandledInParallel(messagesHandledInParallel);
         }
 
+        if (prefetchCount != null)
+            builder.prefetch(prefetchCount);
+
         if (throttlingStrategy == null && retries != null && retries > 0)
             builder.retry(retries, ThrottlingStrategy.ExponentialBackoff.upTo(1, TimeUnit.MINUTES));
         else if (throttlingStrategy != null && (retries == null || retries < 1))
@@ -66,6 +70,11 @@ public final class SpringMessageConsumer<M> implements InitializingBean {
         this.messagesHandledInParallel = messagesHandledInParallel;
     }
 
+    public void setPrefetchCount(int prefetchCount) {
+        Is.greaterThenZero(prefetchCount, "prefetchCount must be greater than zero");
+        this.prefetchCount = prefetchCount;
+    }
+
     public void setRetries(int retries) {
         this.retries = retries;
     }
@@ -3,6 +3,7 @@ package org.openforis.rmb.spring;
 import org.openforis.rmb.MessageBroker;
 import org.openforis.rmb.MessageQueue;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -21,4 +22,8 @@ public final class SpringMessageQueue<M> implements MessageQueue<M> {
     public void publish(M message) {
         delegate.publish(message);
     }
+
+    public void publishAll(Collection<M> messages) {
+        delegate.publishAll(messages);
+    }
 }
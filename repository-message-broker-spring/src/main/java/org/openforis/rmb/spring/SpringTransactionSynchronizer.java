@@ -1,6 +1,6 @@
 package org.openforis.rmb.spring;
 
-import org.openforis.rmb.spi.TransactionSynchronizer;
+import org.openforis.rmb.spi.BufferingTransactionSynchronizer;
 import org.springframework.jdbc.datasource.ConnectionHolder;
 import org.springframework.jdbc.datasource.DelegatingDataSource;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
@@ -8,7 +8,7 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
 
 import javax.sql.DataSource;
 
-public final class SpringTransactionSynchronizer implements TransactionSynchronizer {
+public final class SpringTransactionSynchronizer implements BufferingTransactionSynchronizer {
     private final DataSource dataSource;
 
     public SpringTransactionSynchronizer(DataSource dataSource) {
@@ -29,6 +29,19 @@ public final class SpringTransactionSynchronizer implements TransactionSynchroni
         });
     }
 
+    // Buffers are bound as transaction resources, so they are suspended and resumed together with their transaction
+    public <B extends Buffer> B buffer(Object key, BufferFactory<B> factory) {
+        BufferKey bufferKey = new BufferKey(key);
+        @SuppressWarnings("unchecked")
+        B buffer = (B) TransactionSynchronizationManager.getResource(bufferKey);
+        if (buffer == null) {
+            buffer = factory.create();
+            TransactionSynchronizationManager.bindResource(bufferKey, buffer);
+            TransactionSynchronizationManager.registerSynchronization(new BufferSynchronization(bufferKey, buffer));
+        }
+        return buffer;
+    }
+
     private DataSource determineTargetDataSource() {
         if (dataSource instanceof DelegatingDataSource) {
             return ((DelegatingDataSource) dataSource).getTargetDataSource();
@@ -36,4 +49,47 @@ public final class SpringTransactionSynchronizer implements TransactionSynchroni
             return dataSource;
         }
     }
+
+    private static final class BufferSynchronization extends TransactionSynchronizationAdapter {
+        private final BufferKey key;
+        private final Buffer buffer;
+
+        BufferSynchronization(BufferKey key, Buffer buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResource(key);
+        }
+
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(key, buffer);
+        }
+
+        public void beforeCommit(boolean readOnly) {
+            buffer.flush();
+        }
+
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(key);
+        }
+    }
+
+    // Keeps buffer keys from clashing with other transaction resources
+    private static final class BufferKey {
+        private final Object key;
+
+        BufferKey(Object key) {
+            this.key = key;
+        }
+
+        public boolean equals(Object o) {
+            return this == o || o instanceof BufferKey && key.equals(((BufferKey) o).key);
+        }
+
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
 }
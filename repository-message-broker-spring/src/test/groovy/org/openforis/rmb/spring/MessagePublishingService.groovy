@@ -14,4 +14,15 @@ class MessagePublishingService {
     void publish(String message) {
         messageQueue.publish(message)
     }
+
+    @Transactional
+    void publish(List<String> messages) {
+        messages.each { messageQueue.publish(it) }
+    }
+
+    @Transactional
+    void publishAndFail(String message) {
+        messageQueue.publish(message)
+        throw new IllegalStateException('Failing after publishing')
+    }
 }
@@ -29,4 +29,32 @@ class SpringTest extends Specification {
                 assert handler.messages == ['A message']
             }
     }
+
+    def 'Messages published in a transaction are handled in order'() {
+        handler.messages.clear()
+
+        when:
+            service.publish(['message 1', 'message 2', 'message 3'])
+
+        then:
+            new PollingConditions().eventually {
+                assert handler.messages == ['message 1', 'message 2', 'message 3']
+            }
+    }
+
+    def 'Messages published in a rolled back transaction are not handled'() {
+        handler.messages.clear()
+
+        when:
+            try {
+                service.publishAndFail('a rolled back message')
+            } catch (IllegalStateException ignore) {
+            }
+            service.publish('a committed message')
+
+        then:
+            new PollingConditions().eventually {
+                assert handler.messages == ['a committed message']
+            }
+    }
 }
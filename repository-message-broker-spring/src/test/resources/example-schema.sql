@@ -22,4 +22,8 @@ CREATE TABLE example_message_processing (
   error_message TEXT,
   PRIMARY KEY (message_id, consumer_id),
   FOREIGN KEY (message_id) REFERENCES example_message (id)
-);
\ No newline at end of file
+);
+
+CREATE INDEX example_message_idx ON example_message (sequence_no);
+
+CREATE INDEX example_message_processing_idx ON example_message_processing (consumer_id, state, times_out);
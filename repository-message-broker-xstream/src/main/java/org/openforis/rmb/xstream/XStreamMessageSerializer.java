@@ -2,26 +2,79 @@ package org.openforis.rmb.xstream;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.binary.BinaryStreamDriver;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 import org.openforis.rmb.spi.MessageSerializer;
 import org.openforis.rmb.util.Is;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes messages with XStream, by default to XML Strings.
+ * <p>
+ * Through {@link #builder()}, the serializer can be tuned: message types can be registered up front, and messages
+ * serialized to UTF-8 byte[]s or XStream's binary format instead. Messages serialized to XML, either as String or
+ * byte[], can always be deserialized, so the output can be changed while such messages are still in the repository.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
 public class XStreamMessageSerializer implements MessageSerializer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private final XStream xstream;
+    private final XStream binaryXStream;
+    private final Output output;
 
     public XStreamMessageSerializer() {
-        xstream = new XStream(new StaxDriver());
+        this(new XStream(new StaxDriver()));
     }
 
     public XStreamMessageSerializer(XStream xstream) {
         Is.notNull(xstream, "xstream must not be null");
         this.xstream = xstream;
+        this.binaryXStream = null;
+        this.output = Output.STRING;
+    }
+
+    private XStreamMessageSerializer(Builder builder) {
+        this.xstream = builder.configure(new XStream(new StaxDriver()));
+        this.binaryXStream = builder.output == Output.BINARY
+                ? builder.configure(new XStream(new BinaryStreamDriver()))
+                : null;
+        this.output = builder.output;
+    }
+
+    /**
+     * Provides a builder for creating tuned {@link XStreamMessageSerializer}s.
+     *
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     public Object serialize(Object message) throws SerializationFailed {
         Is.notNull(message, "message must not be null");
         try {
-            return xstream.toXML(message);
+            switch (output) {
+                case UTF8_BYTES:
+                    return toUtf8Bytes(message);
+                case BINARY:
+                    return toBinary(message);
+                default:
+                    return xstream.toXML(message);
+            }
         } catch (XStreamException e) {
             throw new SerializationFailed("Failed to serialize " + message, e);
         }
@@ -29,13 +82,130 @@ public class XStreamMessageSerializer implements MessageSerializer {
 
     public Object deserialize(Object serializedMessage) throws DeserilizationFailed {
         Is.notNull(serializedMessage, "serializedMessage must not be null");
-        if (!(serializedMessage instanceof String))
-            throw new IllegalArgumentException("Expected serialized message to be a string. Was a " + serializedMessage.getClass());
+        if (!(serializedMessage instanceof String) && !(serializedMessage instanceof byte[]))
+            throw new IllegalArgumentException("Expected serialized message to be a string or byte[]. Was a " + serializedMessage.getClass());
 
         try {
-            return xstream.fromXML((String) serializedMessage);
+            if (serializedMessage instanceof String)
+                return xstream.fromXML((String) serializedMessage);
+            byte[] bytes = (byte[]) serializedMessage;
+            return xstreamFor(bytes).fromXML(new ByteArrayInputStream(bytes));
         } catch (XStreamException e) {
             throw new DeserilizationFailed("Failed to deserialize " + serializedMessage, e);
         }
     }
+
+    // Encoded as it's written, without creating a String in between
+    private byte[] toUtf8Bytes(Object message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        Writer writer = new OutputStreamWriter(out, UTF_8);
+        xstream.toXML(message, writer);
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new SerializationFailed("Failed to serialize " + message, e); // Not thrown by a ByteArrayOutputStream
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] toBinary(Object message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        binaryXStream.toXML(message, out);
+        return out.toByteArray();
+    }
+
+    // XML starts with '<', which is never the first token of the binary format
+    private XStream xstreamFor(byte[] bytes) {
+        if (bytes.length > 0 && bytes[0] != '<' && binaryXStream != null)
+            return binaryXStream;
+        return xstream;
+    }
+
+    private enum Output {
+        STRING, UTF8_BYTES, BINARY
+    }
+
+    public static final class Builder {
+        private final List<Class<?>> messageTypes = new ArrayList<Class<?>>();
+        private final Map<String, Class<?>> typeByAlias = new LinkedHashMap<String, Class<?>>();
+        private Output output = Output.STRING;
+
+        private Builder() {
+        }
+
+        /**
+         * Registers the types of the messages to serialize. Their converters are looked up, and their annotations
+         * processed, when the serializer is built, instead of when the first message of the type is serialized.
+         *
+         * @param messageTypes the message types. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder messageTypes(Class<?>... messageTypes) {
+            for (Class<?> messageType : messageTypes) {
+                Is.notNull(messageType, "messageTypes must not contain null");
+                this.messageTypes.add(messageType);
+            }
+            return this;
+        }
+
+        /**
+         * Registers an alias for a type, used instead of the fully qualified class name in serialized messages.
+         * <p>
+         * Messages written with the alias can only be deserialized by serializers knowing about it, so all nodes
+         * must be configured with the alias before any of them start using it.
+         * </p>
+         *
+         * @param alias the alias. Must be specified.
+         * @param type  the type to alias. Must not be null.
+         * @return the builder, so methods can be chained
+         */
+        public Builder alias(String alias, Class<?> type) {
+            Is.hasText(alias, "alias must be specified");
+            Is.notNull(type, "type must not be null");
+            typeByAlias.put(alias, type);
+            return this;
+        }
+
+        /**
+         * Specify that messages should be serialized to UTF-8 encoded XML byte[]s, instead of Strings. They take half
+         * the memory of a String for mostly ASCII XML, and are stored in a binary column.
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder utf8Bytes() {
+            output = Output.UTF8_BYTES;
+            return this;
+        }
+
+        /**
+         * Specify that messages should be serialized with XStream's compact binary format, instead of XML.
+         * It's faster to write and read than XML, but not human readable.
+         *
+         * @return the builder, so methods can be chained
+         */
+        public Builder binary() {
+            output = Output.BINARY;
+            return this;
+        }
+
+        /**
+         * Creates the {@link XStreamMessageSerializer}, based on how the builder's been configured.
+         *
+         * @return the serializer
+         */
+        public XStreamMessageSerializer build() {
+            return new XStreamMessageSerializer(this);
+        }
+
+        private XStream configure(XStream xstream) {
+            for (Map.Entry<String, Class<?>> entry : typeByAlias.entrySet())
+                xstream.alias(entry.getKey(), entry.getValue());
+            if (!messageTypes.isEmpty()) {
+                xstream.processAnnotations(messageTypes.toArray(new Class<?>[messageTypes.size()]));
+                for (Class<?> messageType : messageTypes)
+                    xstream.getConverterLookup().lookupConverterForType(messageType);
+            }
+            return xstream;
+        }
+    }
 }
@@ -55,4 +55,44 @@ class XStreamMessageSerializerTest extends Specification {
                     ['Foo', 'Bar']
             ]
     }
+
+    @Unroll
+    def 'Given #mode output, "#message" can be serialized and deserialized back to original'() {
+        def serializer = builder().messageTypes(Date, ArrayList).build()
+
+        when:
+            def serialized = serializer.serialize(message)
+
+        then:
+            serialized instanceof byte[]
+            serializer.deserialize(serialized) == message
+
+        where:
+            mode    | builder                                         | message
+            'UTF-8' | { XStreamMessageSerializer.builder().utf8Bytes() } | 'Ünïcödé string'
+            'UTF-8' | { XStreamMessageSerializer.builder().utf8Bytes() } | ['Foo', 'Bar']
+            'binary' | { XStreamMessageSerializer.builder().binary() }   | 'Ünïcödé string'
+            'binary' | { XStreamMessageSerializer.builder().binary() }   | ['Foo', 'Bar']
+    }
+
+    def 'Given binary output, messages serialized to XML can still be deserialized'() {
+        def binarySerializer = XStreamMessageSerializer.builder().binary().build()
+        def utf8Serializer = XStreamMessageSerializer.builder().utf8Bytes().build()
+
+        expect:
+            binarySerializer.deserialize(serializer.serialize('A string')) == 'A string'
+            binarySerializer.deserialize(utf8Serializer.serialize('A string')) == 'A string'
+    }
+
+    def 'Aliased type is serialized with its alias'() {
+        def serializer = XStreamMessageSerializer.builder().alias('date', Date).build()
+        def date = new Date()
+
+        when:
+            def serialized = serializer.serialize(date) as String
+
+        then:
+            serialized.contains('<date>')
+            serializer.deserialize(serialized) == date
+    }
 }